@@ -0,0 +1,181 @@
+package com.weejinfu.flume.client.zip;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.flume.Event;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.client.avro.ReliableEventReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the spool directories of several producers through one thread and
+ * one stream of channel transactions. Every directory has its own
+ * {@link ReliableSpoolingZipFileEventReader}, with its own tracker state
+ * and ignore pattern.
+ *
+ * <p/>Batches are taken from the directories with files waiting by smooth
+ * weighted round robin, so a directory of weight 2 gets two batches for
+ * every batch of a directory of weight 1, interleaved, and a producer
+ * with a large backlog cannot starve the others. Directories without files
+ * are skipped without being charged for their turn.
+ *
+ * <p/>A batch is always committed to the directory it was read from, and
+ * an uncommitted batch is read again from that same directory.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class MultiSpoolDirectoryEventReader implements ReliableEventReader {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(MultiSpoolDirectoryEventReader.class);
+
+    private final String[] names;
+    private final ReliableSpoolingZipFileEventReader[] readers;
+    private final int[] weights;
+    // smooth weighted round robin credit of every directory
+    private final long[] credits;
+    // directory of the last batch read, -1 if none
+    private int current = -1;
+    private boolean committed = true;
+
+    public MultiSpoolDirectoryEventReader(List<String> names,
+                                          List<ReliableSpoolingZipFileEventReader> readers,
+                                          List<Integer> weights) {
+        Preconditions.checkArgument(!readers.isEmpty(), "No spool directories");
+        Preconditions.checkArgument(names.size() == readers.size()
+                && names.size() == weights.size(), "Directories, readers and weights do not match");
+        int size = readers.size();
+        this.names = names.toArray(new String[size]);
+        this.readers = readers.toArray(new ReliableSpoolingZipFileEventReader[size]);
+        this.weights = new int[size];
+        this.credits = new long[size];
+        for (int i = 0; i < size; i++) {
+            this.weights[i] = weights.get(i);
+            Preconditions.checkArgument(this.weights[i] > 0,
+                    "Weight of directory %s must be positive: %s", this.names[i], this.weights[i]);
+        }
+    }
+
+    /**
+     * Expand a directory path whose last component may be a glob, such as
+     * "/data/producers/*", to the directories it matches, in name order.
+     * A path without a glob is returned as is.
+     */
+    public static List<File> expand(String path) throws IOException {
+        File file = new File(path);
+        String pattern = file.getName();
+        if (!hasGlob(pattern)) {
+            Preconditions.checkArgument(!hasGlob(path),
+                    "Only the last component of a spool directory may be a glob: %s", path);
+            return Collections.singletonList(file);
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        Preconditions.checkArgument(!hasGlob(parent.getPath()),
+                "Only the last component of a spool directory may be a glob: %s", path);
+        List<File> directories = Lists.newArrayList();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(parent.toPath(), pattern);
+        try {
+            for (Path match : stream) {
+                // tracker directories are hidden, and never spool directories
+                if (Files.isDirectory(match) && !match.getFileName().toString().startsWith(".")) {
+                    directories.add(match.toFile());
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(directories);
+        return directories;
+    }
+
+    private static boolean hasGlob(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0
+                || path.indexOf('[') >= 0 || path.indexOf('{') >= 0;
+    }
+
+    /** Return the file of the last batch read, or null if none was read. */
+    public String getLastFileRead() {
+        return current < 0 ? null : readers[current].getLastFileRead();
+    }
+
+    @Override
+    public Event readEvent() throws IOException {
+        List<Event> events = readEvents(1);
+        return events.isEmpty() ? null : events.get(0);
+    }
+
+    @Override
+    public List<Event> readEvents(int numEvents) throws IOException {
+        if (!committed) {
+            return readers[current].readEvents(numEvents);
+        }
+        boolean[] idle = new boolean[readers.length];
+        int active = readers.length;
+        while (active > 0) {
+            int total = 0;
+            int selected = -1;
+            for (int i = 0; i < readers.length; i++) {
+                if (idle[i]) {
+                    continue;
+                }
+                credits[i] += weights[i];
+                total += weights[i];
+                if (selected < 0 || credits[i] > credits[selected]) {
+                    selected = i;
+                }
+            }
+            credits[selected] -= total;
+            List<Event> events = readers[selected].readEvents(numEvents);
+            if (!events.isEmpty()) {
+                current = selected;
+                committed = false;
+                return events;
+            }
+            // nothing to read there: take the turn back and give it to the others
+            credits[selected] += total;
+            for (int i = 0; i < readers.length; i++) {
+                if (!idle[i]) {
+                    credits[i] -= weights[i];
+                }
+            }
+            idle[selected] = true;
+            active--;
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void commit() throws IOException {
+        if (!committed) {
+            readers[current].commit();
+            committed = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < readers.length; i++) {
+            try {
+                readers[i].close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the reader of directory " + names[i], e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
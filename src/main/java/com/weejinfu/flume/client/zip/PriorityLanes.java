@@ -0,0 +1,194 @@
+package com.weejinfu.flume.client.zip;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.weejinfu.flume.instrumentation.LaneCounter;
+import org.apache.flume.Context;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Named lanes which files are sorted into by name, so that urgent files do
+ * not wait behind a backlog of bulk files:
+ * <pre>
+ * lanes = alert billing
+ * lanes.alert.pattern = ^alert-.*
+ * lanes.alert.weight = 8
+ * lanes.billing.pattern = ^billing-.*
+ * lanes.billing.weight = 4
+ * lanes.default.weight = 1
+ * </pre>
+ * A file goes to the first lane whose pattern matches its whole name, or
+ * else to the {@link #DEFAULT_LANE}. Within a lane files are taken in the
+ * consume order of the reader. Between lanes with files waiting, files are
+ * taken by smooth weighted round robin: out of every 13 files above, 8 come
+ * from the alert lane as long as it has any, interleaved with the others
+ * rather than in bursts. Each lane has a {@link LaneCounter}.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class PriorityLanes {
+
+    public static final String LANES = "lanes";
+    public static final String PATTERN = "pattern";
+    public static final String WEIGHT = "weight";
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /** Lane of the files matching no pattern, the last one. */
+    public static final String DEFAULT_LANE = "default";
+
+    private final String[] names;
+    private final Pattern[] patterns;
+    private final int[] weights;
+    private final LaneCounter[] counters;
+    // smooth weighted round robin credit of every lane
+    private final long[] credits;
+
+    /**
+     * @param patterns
+     *        Patterns of the named lanes, the default lane comes last and
+     *        has none
+     */
+    public PriorityLanes(String counterPrefix, List<String> names, List<Pattern> patterns,
+                         List<Integer> weights) {
+        Preconditions.checkArgument(names.size() == patterns.size() + 1
+                && names.size() == weights.size(), "Lanes, patterns and weights do not match");
+        int lanes = names.size();
+        this.names = names.toArray(new String[lanes]);
+        this.patterns = patterns.toArray(new Pattern[lanes - 1]);
+        this.weights = new int[lanes];
+        this.counters = new LaneCounter[lanes];
+        this.credits = new long[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.weights[i] = weights.get(i);
+            Preconditions.checkArgument(this.weights[i] > 0,
+                    "Weight of lane %s must be positive: %s", this.names[i], this.weights[i]);
+            this.counters[i] = new LaneCounter(counterPrefix + "." + this.names[i]);
+        }
+    }
+
+    /**
+     * Build the lanes configured in a source context.
+     * @param counterPrefix
+     *        Lane counters are named by this prefix, a dot and the lane name
+     * @return null if no lanes are configured
+     */
+    public static PriorityLanes fromContext(String counterPrefix, Context context) {
+        List<String> names = Lists.newArrayList();
+        List<Pattern> patterns = Lists.newArrayList();
+        List<Integer> weights = Lists.newArrayList();
+        if (!parse(context, names, patterns, weights)) {
+            return null;
+        }
+        return new PriorityLanes(counterPrefix, names, patterns, weights);
+    }
+
+    /**
+     * Check the lanes configured in a source context, without building
+     * their counters.
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    public static void validate(Context context) {
+        List<String> names = Lists.newArrayList();
+        List<Integer> weights = Lists.newArrayList();
+        if (parse(context, names, Lists.<Pattern>newArrayList(), weights)) {
+            for (int i = 0; i < names.size(); i++) {
+                Preconditions.checkArgument(weights.get(i) > 0,
+                        "Weight of lane %s must be positive: %s", names.get(i), weights.get(i));
+            }
+        }
+    }
+
+    // read the lanes into the lists, false if no lanes are configured
+    private static boolean parse(Context context, List<String> names, List<Pattern> patterns,
+                                 List<Integer> weights) {
+        String lanes = context.getString(LANES);
+        if (lanes == null || lanes.trim().isEmpty()) {
+            return false;
+        }
+        Context laneContext = new Context(context.getSubProperties(LANES + "."));
+        for (String name : Splitter.on(' ').trimResults().omitEmptyStrings().split(lanes)) {
+            Preconditions.checkArgument(!name.equals(DEFAULT_LANE) && !names.contains(name),
+                    "Duplicate lane name: %s", name);
+            String pattern = laneContext.getString(name + "." + PATTERN);
+            Preconditions.checkArgument(pattern != null,
+                    "Lane %s has no file name pattern", name);
+            names.add(name);
+            patterns.add(Pattern.compile(pattern));
+            weights.add(laneContext.getInteger(name + "." + WEIGHT, DEFAULT_WEIGHT));
+        }
+        names.add(DEFAULT_LANE);
+        weights.add(laneContext.getInteger(DEFAULT_LANE + "." + WEIGHT, DEFAULT_WEIGHT));
+        return true;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int lane) {
+        return names[lane];
+    }
+
+    public LaneCounter getCounter(int lane) {
+        return counters[lane];
+    }
+
+    /** Index of the lane of a file. */
+    int laneOf(String fileName) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].matcher(fileName).matches()) {
+                return i;
+            }
+        }
+        return patterns.length;
+    }
+
+    /**
+     * Pick the next file to consume and update the lane counters.
+     * @return null if no file is waiting in any lane
+     */
+    File select(SpoolFileIndex index, FileFilter filter) {
+        int[] backlog = new int[names.length];
+        SpoolFileIndex.Attributes[] first = index.firstPerLane(filter, backlog);
+        int total = 0;
+        int selected = -1;
+        for (int i = 0; i < names.length; i++) {
+            counters[i].setBacklog(backlog[i]);
+            if (first[i] == null) {
+                continue;
+            }
+            credits[i] += weights[i];
+            total += weights[i];
+            if (selected < 0 || credits[i] > credits[selected]) {
+                selected = i;
+            }
+        }
+        if (selected < 0) {
+            return null;
+        }
+        credits[selected] -= total;
+        counters[selected].addFileOpened(Math.max(0L,
+                System.currentTimeMillis() - first[selected].getLastModified()));
+        return first[selected].getFile();
+    }
+
+    public void start() {
+        for (LaneCounter counter : counters) {
+            counter.start();
+        }
+    }
+
+    public void stop() {
+        for (LaneCounter counter : counters) {
+            counter.stop();
+        }
+    }
+
+}
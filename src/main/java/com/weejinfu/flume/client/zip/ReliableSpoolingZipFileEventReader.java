@@ -4,10 +4,16 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
+import com.weejinfu.flume.event.CopyOnWriteHeaderMap;
 import com.weejinfu.flume.serialization.ResettableZipInputStream;
-import com.weejinfu.flume.serialization.ZipDeserializer;
+import com.weejinfu.flume.serialization.ZipEventDeserializerType;
 import com.weejinfu.flume.source.SpoolDirectoryZipSourceConfigurationConstants;
+import com.weejinfu.flume.utils.PackUtil;
 import com.weejinfu.flume.source.SpoolDirectoryZipSourceConfigurationConstants.ConsumeOrder;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -15,11 +21,13 @@ import org.apache.flume.FlumeException;
 import org.apache.flume.annotations.InterfaceAudience;
 import org.apache.flume.annotations.InterfaceStability;
 import org.apache.flume.client.avro.ReliableEventReader;
+import org.apache.flume.event.EventBuilder;
 import org.apache.flume.serialization.*;
 import org.apache.flume.tools.PlatformDetect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
@@ -27,6 +35,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * Monitor target directory and read new zip file
@@ -54,6 +63,40 @@ import java.util.regex.Pattern;
  *      and delivered to a {@link #readEvents(int)} caller.
  * </ul>
  *
+ * <p/>When {@link Builder#packFiles(int)} is greater than one, the contents
+ * of up to that many consecutive files are packed into a single event (see
+ * {@link PackUtil}), and the packed files are only retired once that event
+ * has been {@link #commit()}ed. Every packed file has a tracker of its own,
+ * and all their positions are committed before any of them is retired.
+ *
+ * <p/>With a {@link Builder#tailIdleTimeout(long)}, multi-member gzip files
+ * modified within the timeout are tailed instead: their complete members
+ * are read as they are appended, and the file is only retired once it has
+ * not been modified for the timeout. While a tailed file has no new member
+ * it is kept open and the other files are read, and every file then has a
+ * tracker of its own.
+ *
+ * <p/>The attributes files are ordered by are read once per file and kept
+ * in a {@link SpoolFileIndex}, so picking the next file does not stat every
+ * file in the directory again.
+ *
+ * <p/>With {@link Builder#priorityLanes(PriorityLanes)}, files are sorted
+ * into lanes by name and the lanes take turns by weight, each in the
+ * consume order.
+ *
+ * <p/>Instances are not thread safe. To read a directory from several
+ * threads, give every thread a reader of its own {@link Builder#shard(int,
+ * int)}: files are split between the shards by a hash of their names, and
+ * every shard has its own tracker files, so no file is read by two shards
+ * and each shard reads its files in the consume order. Changing the number
+ * of shards while files are being read may resend some of their events.
+ *
+ * <p/>Agents in different processes, or hosts sharing the file system, can
+ * read one directory when each has an {@link Builder#agentId(String)}: files
+ * are claimed through the lease files of a {@link SpoolFileLeases}, and the
+ * files of an agent whose leases expire are taken over, resuming from its
+ * last committed position.
+ *
  * Created by Jason on 15/8/12.
  */
 @InterfaceAudience.Private
@@ -64,6 +107,12 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
             .getLogger(ReliableSpoolingZipFileEventReader.class);
 
     static final String metaFileName = ".flumespool-main.meta";
+    static final String blockIndexFileName = ".flumespool-main.bgzfidx";
+    private static final String META_SUFFIX = ".meta";
+    private static final String BLOCK_INDEX_SUFFIX = ".bgzfidx";
+
+    // number of events read at once while packing a file
+    private static final int PACK_READ_BATCH = 100;
 
     private final File spoolDirectory;
     private final String completedSuffix;
@@ -71,6 +120,7 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
     private final Context deserializerContext;
     private final Pattern ignorePattern;
     private final File metaFile;
+    private final File blockIndexFile;
     private final boolean annotateFileName;
     private final boolean annotateBaseName;
     private final String fileNameHeader;
@@ -79,15 +129,35 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
     private final Charset inputCharset;
     private final DecodeErrorPolicy decodeErrorPolicy;
     private final ConsumeOrder consumeOrder;
+    private final int packFiles;
+    private final int packCompressionLevel;
+    private final int decompressThreads;
+    private final int maxNestingDepth;
+    private final long tailIdleTimeout;
+    private final int shardIndex;
+    private final int shardCount;
+    private final File trackerDirectory;
+    private final String agentId;
+    // claims files when agents share the directory, null otherwise
+    private final SpoolFileLeases leases;
 
     private Optional<FileInfo> currentFile = Optional.absent();
     /** Always contains the last file from which lines have been read. **/
     private Optional<FileInfo> lastFileRead = Optional.absent();
     private boolean committed = true;
 
+    /** Tailed files waiting for more data, kept open with their positions. */
+    private final Map<File, FileInfo> tailedFiles = Maps.newHashMap();
+
+    /** Files in the last packed event, retired once it is committed. */
+    private final List<FileInfo> packedFiles = Lists.newArrayList();
+    private List<Event> lastPack = Collections.emptyList();
+
     /** Instance var to Cache directory listing **/
     private Iterator<File> candidateFileIter = null;
     private int listFilesCount = 0;
+    private final SpoolFileIndex fileIndex;
+    private final PriorityLanes priorityLanes;
 
     /**
      * Create a ReliableSpoolingZipFileEventReader to watch the given directory.
@@ -99,7 +169,19 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
                                             String deserializerType, Context deserializerContext,
                                             String deletePolicy, String inputCharset,
                                             DecodeErrorPolicy decodeErrorPolicy,
-                                            ConsumeOrder consumeOrder) throws IOException {
+                                            ConsumeOrder consumeOrder,
+                                            int packFiles, int packCompressionLevel,
+                                            int decompressThreads, int maxNestingDepth,
+                                            long tailIdleTimeout,
+                                            String fileTimestampFormat,
+                                            String fileTimestampRegex,
+                                            PriorityLanes priorityLanes,
+                                            int maxDirectoryDepth, String directoryPattern,
+                                            int directoryListThreads,
+                                            long completedDirectoryRetention,
+                                            int shardIndex, int shardCount,
+                                            String agentId, long leaseTimeout)
+            throws IOException {
 
         // Sanity checks
         Preconditions.checkNotNull(spoolDirectory);
@@ -110,6 +192,19 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
         Preconditions.checkNotNull(deserializerContext);
         Preconditions.checkNotNull(deletePolicy);
         Preconditions.checkNotNull(inputCharset);
+        Preconditions.checkArgument(packCompressionLevel >= Deflater.DEFAULT_COMPRESSION
+                && packCompressionLevel <= Deflater.BEST_COMPRESSION,
+                "Invalid pack compression level: " + packCompressionLevel);
+        Preconditions.checkArgument(decompressThreads > 0,
+                "Invalid number of decompress threads: " + decompressThreads);
+        Preconditions.checkArgument(maxNestingDepth >= 0,
+                "Invalid maximum nesting depth: " + maxNestingDepth);
+        Preconditions.checkArgument(tailIdleTimeout >= 0,
+                "Invalid tail idle timeout: " + tailIdleTimeout);
+        Preconditions.checkArgument(priorityLanes == null || consumeOrder != ConsumeOrder.RANDOM,
+                "Priority lanes cannot be combined with the RANDOM consume order");
+        Preconditions.checkArgument(shardCount > 0 && shardIndex >= 0 && shardIndex < shardCount,
+                "Invalid shard %s of %s", shardIndex, shardCount);
 
         // validate delete policy
         if (!deletePolicy.equalsIgnoreCase(DeletePolicy.NEVER.name()) &&
@@ -160,6 +255,18 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
         this.inputCharset = Charset.forName(inputCharset);
         this.decodeErrorPolicy = Preconditions.checkNotNull(decodeErrorPolicy);
         this.consumeOrder = Preconditions.checkNotNull(consumeOrder);
+        this.packFiles = packFiles;
+        this.packCompressionLevel = packCompressionLevel;
+        this.decompressThreads = decompressThreads;
+        this.maxNestingDepth = maxNestingDepth;
+        this.tailIdleTimeout = tailIdleTimeout;
+        this.priorityLanes = priorityLanes;
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.fileIndex = new SpoolFileIndex(spoolDirectory, consumeOrder,
+                fileTimestampFormat, fileTimestampRegex, priorityLanes, maxDirectoryDepth,
+                Pattern.compile(directoryPattern), directoryListThreads, completedSuffix,
+                completedDirectoryRetention);
 
         File trackerDirectory = new File(trackerDirPath);
 
@@ -182,17 +289,50 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
                     trackerDirectory);
         }
 
-        this.metaFile = new File(trackerDirectory, metaFileName);
+        this.trackerDirectory = trackerDirectory;
+        this.metaFile = new File(trackerDirectory, trackerFileName(agentId) + META_SUFFIX);
+        this.blockIndexFile = new File(trackerDirectory,
+                trackerFileName(agentId) + BLOCK_INDEX_SUFFIX);
+        this.agentId = agentId;
+        this.leases = agentId == null ? null
+                : new SpoolFileLeases(spoolDirectory, agentId, leaseTimeout);
         if(metaFile.exists() && metaFile.length() == 0) {
             deleteMetaFile();
         }
     }
 
+    /**
+     * Name of the tracker files of a reader, without suffix: every agent and
+     * every shard has its own.
+     */
+    private String trackerFileName(String agentId) {
+        return ".flumespool-" + (agentId == null ? "" : agentId + "-")
+                + (shardCount == 1 ? "main" : "shard-" + shardIndex);
+    }
+
+    /**
+     * Tracker file of an agent for a file: the reader's own, or one per file
+     * when packing or tailing, as several files are then open at once.
+     */
+    private File trackerFile(String agentId, File file, String suffix) {
+        String name = trackerFileName(agentId);
+        if (packFiles > 1 || tailIdleTimeout > 0) {
+            String path = spoolDirectory.toPath().relativize(file.toPath()).toString();
+            name += "-file-" + Hashing.md5().hashString(path, Charsets.UTF_8);
+        }
+        return new File(trackerDirectory, name + suffix);
+    }
+
     @VisibleForTesting
     int getListFilesCount() {
         return listFilesCount;
     }
 
+    @VisibleForTesting
+    int getListedDirectoryCount() {
+        return fileIndex.getListedDirectories();
+    }
+
     /** Return the filename which generated the data from the last successful
      * {@link #readEvents(int)} call. Returns null if called before any file
      * contents are read. */
@@ -214,6 +354,9 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
     }
 
     public List<Event> readEvents(int numEvents) throws IOException {
+        if (packFiles > 1) {
+            return readPackedEvents();
+        }
         if (!committed) {
             if (!currentFile.isPresent()) {
                 throw new IllegalStateException("File should not roll when " +
@@ -239,8 +382,20 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
      * If so, try to roll to the next file, if there is one.
      * Loop until events is not empty or there is no next file in case of 0 byte files */
         while (events.isEmpty()) {
-            logger.info("Last read took us just up to a file boundary. Rolling to the next file, if there is one.");
-            retireCurrentFile();
+            FileInfo info = currentFile.get();
+            ResettableZipInputStream input = info.getInput();
+            if (isTailing(info)) {
+                // no new member yet, the other files take their turn meanwhile
+                tailedFiles.put(info.getFile(), info);
+            } else if (input.isTail() && !input.isTailFinished()) {
+                // idle, so its unterminated last line is complete too
+                input.finishTail();
+                events = info.getDeserializer().readEvents(numEvents);
+                continue;
+            } else {
+                logger.info("Last read took us just up to a file boundary. Rolling to the next file, if there is one.");
+                retireCurrentFile();
+            }
             currentFile = getNextFile();
             if (!currentFile.isPresent()) {
                 return Collections.emptyList();
@@ -248,23 +403,72 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
             events = currentFile.get().getDeserializer().readEvents(numEvents);
         }
 
-        if (annotateFileName) {
-            String filename = currentFile.get().getFile().getAbsolutePath();
+        // all events of a file share one immutable header map, which is only
+        // copied if somebody downstream modifies it
+        Map<String, String> fileHeaders = currentFile.get().getHeaders();
+        if (!fileHeaders.isEmpty()) {
             for (Event event : events) {
-                event.getHeaders().put(fileNameHeader, filename);
+                Map<String, String> headers = event.getHeaders();
+                if (headers.isEmpty()) {
+                    event.setHeaders(new CopyOnWriteHeaderMap(fileHeaders));
+                } else {
+                    headers.putAll(fileHeaders);
+                }
             }
         }
 
-        if (annotateBaseName) {
-            String basename = currentFile.get().getFile().getName();
-            for (Event event : events) {
-                event.getHeaders().put(baseNameHeader, basename);
+        committed = false;
+        lastFileRead = currentFile;
+        return events;
+    }
+
+    /**
+     * Read up to {@link #packFiles} whole files into one packed event. The
+     * same event is returned again until it has been committed.
+     */
+    private List<Event> readPackedEvents() throws IOException {
+        if (!committed) {
+            logger.info("Last packed event was never committed - sending it again.");
+            return lastPack;
+        }
+
+        PackUtil.Writer writer = new PackUtil.Writer(packCompressionLevel);
+        while (packedFiles.size() < packFiles) {
+            if (!currentFile.isPresent()) {
+                currentFile = getNextFile();
+            }
+            if (!currentFile.isPresent()) {
+                break;
+            }
+            FileInfo info = currentFile.get();
+            boolean resumed = info.getInput().getMarkPosition() > 0;
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            List<Event> events;
+            while (!(events = info.getDeserializer().readEvents(PACK_READ_BATCH)).isEmpty()) {
+                for (Event event : events) {
+                    contents.write(event.getBody());
+                }
+            }
+            if (resumed && contents.size() == 0) {
+                // committed in a pack whose commit failed before retiring it
+                currentFile = Optional.absent();
+                retireFile(info);
+                continue;
             }
+            writer.add(info.getFile().getName(), contents.toByteArray());
+            packedFiles.add(info);
+            lastFileRead = currentFile;
+            currentFile = Optional.absent();
         }
 
+        if (packedFiles.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Event event = EventBuilder.withBody(writer.toByteArray());
+        event.getHeaders().put(PackUtil.COUNT_HEADER, String.valueOf(writer.size()));
+        lastPack = Collections.singletonList(event);
         committed = false;
-        lastFileRead = currentFile;
-        return events;
+        return lastPack;
     }
 
     @Override
@@ -273,19 +477,63 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
             currentFile.get().getDeserializer().close();
             currentFile = Optional.absent();
         }
+        for (FileInfo info : packedFiles) {
+            info.getDeserializer().close();
+        }
+        packedFiles.clear();
+        for (FileInfo info : tailedFiles.values()) {
+            info.getDeserializer().close();
+        }
+        tailedFiles.clear();
+        fileIndex.close();
+        if (leases != null) {
+            leases.close();
+        }
     }
 
     /** Commit the last lines which were read. */
     @Override
     public void commit() throws IOException {
-        if (!committed && currentFile.isPresent()) {
+        if (!committed && !packedFiles.isEmpty()) {
+            // the files were read to their end: commit every position first,
+            // so that the files a failure leaves unretired are not sent again
+            for (FileInfo info : packedFiles) {
+                info.getDeserializer().mark();
+            }
+            lastPack = Collections.emptyList();
+            committed = true;
+            try {
+                while (!packedFiles.isEmpty()) {
+                    retireFile(packedFiles.remove(0));
+                }
+            } finally {
+                // those left are retired once listed again
+                for (FileInfo info : packedFiles) {
+                    info.getDeserializer().close();
+                }
+                packedFiles.clear();
+            }
+        } else if (!committed && currentFile.isPresent()) {
             currentFile.get().getDeserializer().mark();
             committed = true;
         }
     }
 
     /**
-     * Closes currentFile and attempt to rename it.
+     * Whether the writer of a tailed file may still append to it.
+     */
+    private boolean isTailing(FileInfo info) {
+        return info.getInput().isTail() && System.currentTimeMillis()
+                - info.getFile().lastModified() < tailIdleTimeout;
+    }
+
+    private void retireCurrentFile() throws IOException {
+        Preconditions.checkState(currentFile.isPresent());
+        retireFile(currentFile.get());
+    }
+
+    /**
+     * Closes the given file and attempt to rename it.
      *
      * If these operations fail in a way that may cause duplicate log entries,
      * an error is logged but no exceptions are thrown. If these operations fail
@@ -293,40 +541,59 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
      * FlumeException will be thrown.
      * @throws FlumeException if files do not conform to spooling assumptions
      */
-    private void retireCurrentFile() throws IOException {
-        Preconditions.checkState(currentFile.isPresent());
-
-        File fileToRoll = new File(currentFile.get().getFile().getAbsolutePath());
-
-        currentFile.get().getDeserializer().close();
+    private void retireFile(FileInfo info) throws IOException {
+        File fileToRoll = new File(info.getFile().getAbsolutePath());
+
+        info.getDeserializer().close();
+        fileIndex.remove(info.getFile());
+        if (leases != null && !leases.holds(info.getFile())) {
+            // taken over by another agent, which finishes it
+            logger.warn("Lease of {} lost, leaving it to the agent which took it over",
+                    fileToRoll);
+            return;
+        }
 
         // Verify that spooling assumptions hold
-        if (fileToRoll.lastModified() != currentFile.get().getLastModified()) {
-            String message = "File has been modified since being read: " + fileToRoll;
-            throw new IllegalStateException(message);
-        }
-        if (fileToRoll.length() != currentFile.get().getLength()) {
-            String message = "File has changed size since being read: " + fileToRoll;
-            throw new IllegalStateException(message);
+        if (info.getInput().isTail()) {
+            // tailed files grow while being read, only a trailing partial member is lost
+            long complete = info.getInput().getCompleteLength();
+            if (fileToRoll.length() != complete) {
+                logger.warn("Retiring {} with an incomplete gzip member of {} bytes",
+                        fileToRoll, fileToRoll.length() - complete);
+            }
+        } else {
+            if (fileToRoll.lastModified() != info.getLastModified()) {
+                String message = "File has been modified since being read: " + fileToRoll;
+                throw new IllegalStateException(message);
+            }
+            if (fileToRoll.length() != info.getLength()) {
+                String message = "File has changed size since being read: " + fileToRoll;
+                throw new IllegalStateException(message);
+            }
         }
 
         if (deletePolicy.equalsIgnoreCase(DeletePolicy.NEVER.name())) {
-            rollCurrentFile(fileToRoll);
+            rollFile(info, fileToRoll);
         } else if (deletePolicy.equalsIgnoreCase(DeletePolicy.IMMEDIATE.name())) {
-            deleteCurrentFile(fileToRoll);
+            deleteFile(info, fileToRoll);
         } else {
             // TODO: implement delay in the future
             throw new IllegalArgumentException("Unsupported delete policy: " +
                     deletePolicy);
         }
+        if (leases != null) {
+            leases.release(info.getFile());
+        }
     }
 
     /**
      * Rename the given spooled file
+     * @param info
      * @param fileToRoll
      * @throws IOException
      */
-    private void rollCurrentFile(File fileToRoll) throws IOException {
+    private void rollFile(FileInfo info, File fileToRoll) throws IOException {
+        File file = info.getFile();
 
         File dest = new File(fileToRoll.getPath() + completedSuffix);
         logger.info("Preparing to move file {} to {}", fileToRoll, dest);
@@ -341,7 +608,7 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
        * file was already rolled but the rename was not atomic. If that seems
        * likely, we let it pass with only a warning.
        */
-            if (Files.equal(currentFile.get().getFile(), dest)) {
+            if (Files.equal(file, dest)) {
                 logger.warn("Completed file " + dest +
                         " already exists, but files match, so continuing.");
                 boolean deleted = fileToRoll.delete();
@@ -368,7 +635,7 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
                 logger.debug("Successfully rolled file {} to {}", fileToRoll, dest);
 
                 // now we no longer need the meta file
-                deleteMetaFile();
+                deleteMetaFile(info);
             } else {
         /* If we are here then the file cannot be renamed for a reason other
          * than that the destination file exists (actually, that remains
@@ -383,10 +650,11 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
 
     /**
      * Delete the given spooled file
+     * @param info
      * @param fileToDelete
      * @throws IOException
      */
-    private void deleteCurrentFile(File fileToDelete) throws IOException {
+    private void deleteFile(FileInfo info, File fileToDelete) throws IOException {
         logger.info("Preparing to delete file {}", fileToDelete);
         if (!fileToDelete.exists()) {
             logger.warn("Unable to delete nonexistent file: {}", fileToDelete);
@@ -396,100 +664,163 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
             throw new IOException("Unable to delete spool file: " + fileToDelete);
         }
         // now we no longer need the meta file
-        deleteMetaFile();
+        deleteMetaFile(info);
     }
 
     /**
      * Returns the next file to be consumed from the chosen directory.
      * If the directory is empty or the chosen file is not readable,
      * this will return an absent option.
-     * If the {@link #consumeOrder} variable is {@link ConsumeOrder#OLDEST}
-     * then returns the oldest file. If the {@link #consumeOrder} variable
-     * is {@link ConsumeOrder#YOUNGEST} then returns the youngest file.
-     * If two or more files are equally old/young, then the file name with
-     * lower lexicographical value is returned.
+     * The file is chosen by the {@link #consumeOrder} from the attributes
+     * cached in the {@link #fileIndex}: the oldest or youngest file, the
+     * smallest or largest, or the one with the earliest timestamp in its
+     * name. If two or more files are equal, then the file name with lower
+     * lexicographical value is returned. With {@link #priorityLanes}, the
+     * lane to take the file from is picked first. Files in subdirectories
+     * down to the maximum directory depth are candidates too.
      * If the {@link #consumeOrder} variable is {@link ConsumeOrder#RANDOM}
      * then cache the directory listing to amortize retreival cost, and return
      * any arbitary file from the directory.
      */
     private Optional<FileInfo> getNextFile() {
-        List<File> candidateFiles = Collections.emptyList();
-
-        if (consumeOrder != ConsumeOrder.RANDOM ||
-                candidateFileIter == null ||
-                !candidateFileIter.hasNext()) {
-      /* Filter to exclude finished or hidden files */
-            FileFilter filter = new FileFilter() {
-                public boolean accept(File candidate) {
-                    String fileName = candidate.getName();
-                    if ((candidate.isDirectory()) ||
-                            (fileName.endsWith(completedSuffix)) ||
-                            (fileName.startsWith(".")) ||
-                            ignorePattern.matcher(fileName).matches()) {
-                        return false;
-                    }
-                    return true;
-                }
-            };
-            candidateFiles = Arrays.asList(spoolDirectory.listFiles(filter));
-            listFilesCount++;
-            candidateFileIter = candidateFiles.iterator();
-        }
+        /* Filter to exclude finished or hidden files */
+        SpoolFileIndex.NameFilter nameFilter = new SpoolFileIndex.NameFilter() {
+            public boolean accept(String fileName) {
+                return !fileName.endsWith(completedSuffix)
+                        && !fileName.startsWith(".")
+                        && !ignorePattern.matcher(fileName).matches()
+                        && (shardCount == 1 || shardOf(fileName, shardCount) == shardIndex);
+            }
+        };
+        FileFilter packedFilter = new FileFilter() {
+            public boolean accept(File candidate) {
+                return !isPacked(candidate) && !isWaitingForData(candidate)
+                        && (leases == null || !leases.isUnavailable(candidate));
+            }
+        };
 
-        if (!candidateFileIter.hasNext()) { // No matching file in spooling directory.
+        if (consumeOrder == ConsumeOrder.RANDOM) {
+            if (candidateFileIter == null || !candidateFileIter.hasNext()) {
+                refresh(nameFilter);
+                candidateFileIter = fileIndex.candidates(packedFilter).iterator();
+            }
+            while (candidateFileIter.hasNext()) {
+                File candidate = candidateFileIter.next();
+                String resumeFrom = claim(candidate);
+                if (resumeFrom != null) {
+                    return openClaimedFile(candidate, resumeFrom);
+                }
+            }
+            // No matching file in spooling directory.
             return Optional.absent();
         }
 
-        File selectedFile = candidateFileIter.next();
-        if (consumeOrder == ConsumeOrder.RANDOM) { // Selected file is random.
-            return openFile(selectedFile);
-        } else if (consumeOrder == ConsumeOrder.YOUNGEST) {
-            for (File candidateFile: candidateFiles) {
-                long compare = selectedFile.lastModified() -
-                        candidateFile.lastModified();
-                if (compare == 0) { // ts is same pick smallest lexicographically.
-                    selectedFile = smallerLexicographical(selectedFile, candidateFile);
-                } else if (compare < 0) { // candidate is younger (cand-ts > selec-ts)
-                    selectedFile = candidateFile;
-                }
+        refresh(nameFilter);
+        while (true) {
+            File selectedFile = priorityLanes == null ? fileIndex.first(packedFilter)
+                    : priorityLanes.select(fileIndex, packedFilter);
+            if (selectedFile == null) { // No matching file in spooling directory.
+                return Optional.absent();
             }
-        } else { // default order is OLDEST
-            for (File candidateFile: candidateFiles) {
-                long compare = selectedFile.lastModified() -
-                        candidateFile.lastModified();
-                if (compare == 0) { // ts is same pick smallest lexicographically.
-                    selectedFile = smallerLexicographical(selectedFile, candidateFile);
-                } else if (compare > 0) { // candidate is older (cand-ts < selec-ts).
-                    selectedFile = candidateFile;
-                }
+            // a file which could not be claimed is filtered out from now on
+            String resumeFrom = claim(selectedFile);
+            if (resumeFrom != null) {
+                return openClaimedFile(selectedFile, resumeFrom);
             }
         }
+    }
+
+    private void refresh(SpoolFileIndex.NameFilter nameFilter) {
+        fileIndex.refresh(nameFilter);
+        listFilesCount++;
+        if (leases != null) {
+            leases.expire();
+        }
+    }
 
-        return openFile(selectedFile);
+    /**
+     * Claim a file from the other agents sharing the directory.
+     * @return the agent whose tracker holds the position to resume the file
+     *         from, null if another agent is reading it
+     */
+    private String claim(File file) {
+        return leases == null ? "" : leases.claim(file);
     }
 
-    private File smallerLexicographical(File f1, File f2) {
-        if (f1.getName().compareTo(f2.getName()) < 0) {
-            return f1;
+    private Optional<FileInfo> openClaimedFile(File file, String resumeFrom) {
+        FileInfo tailed = tailedFiles.remove(file);
+        if (tailed != null) {
+            return Optional.of(tailed);
         }
-        return f2;
+        Optional<FileInfo> info = openFile(file, resumeFrom);
+        if (!info.isPresent() && leases != null) {
+            // possibly retired by another agent since it was listed
+            leases.release(file);
+        }
+        return info;
     }
+
+    /**
+     * Shard a file belongs to, from its name only, so that every shard
+     * agrees on it without any coordination.
+     */
+    static int shardOf(String fileName, int shardCount) {
+        // murmur3 finalizer, to spread names differing in the last characters
+        int hash = fileName.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    /** Whether the file is tailed and has not grown since it was read last. */
+    private boolean isWaitingForData(File file) {
+        FileInfo info = tailedFiles.get(file);
+        if (info == null || !isTailing(info)) {
+            return false;
+        }
+        try {
+            return !info.getInput().hasTailGrown();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Whether the file is already part of the pending packed event. */
+    private boolean isPacked(File file) {
+        for (FileInfo info : packedFiles) {
+            if (info.getFile().equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Opens a file for consuming
      * @param file
+     * @param resumeFrom
+     *        Agent whose tracker to resume the file from, with leases
      * @return FileInfo for the file to consume or absent option if the
      * file does not exists or readable.
      */
-    private Optional<FileInfo> openFile(File file) {
+    private Optional<FileInfo> openFile(File file, String resumeFrom) {
         try {
+            if (leases != null) {
+                adoptPosition(file, resumeFrom);
+            }
+            File meta = trackerFile(agentId, file, META_SUFFIX);
+            File blockIndex = trackerFile(agentId, file, BLOCK_INDEX_SUFFIX);
             // roll the meta file, if needed
             String nextPath = file.getPath();
             PositionTracker tracker =
-                    DurablePositionTracker.getInstance(metaFile, nextPath);
+                    DurablePositionTracker.getInstance(meta, nextPath);
             if (!tracker.getTarget().equals(nextPath)) {
                 tracker.close();
-                deleteMetaFile();
-                tracker = DurablePositionTracker.getInstance(metaFile, nextPath);
+                deleteMetaFile(meta, blockIndex);
+                tracker = DurablePositionTracker.getInstance(meta, nextPath);
             }
 
             // sanity check
@@ -497,14 +828,23 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
                     "Tracker target %s does not equal expected filename %s",
                     tracker.getTarget(), nextPath);
 
-            ResettableZipInputStream in =
-                    new ResettableZipInputStream(file, tracker,
-                            ResettableZipInputStream.DEFAULT_BUF_SIZE, inputCharset,
-                            decodeErrorPolicy);
+            ResettableZipInputStream in = new ResettableZipInputStream.Builder()
+                    .file(file)
+                    .tracker(tracker)
+                    .charset(inputCharset)
+                    .decodeErrorPolicy(decodeErrorPolicy)
+                    .blockIndexFile(blockIndex)
+                    .decompressThreads(decompressThreads)
+                    .maxNestingDepth(maxNestingDepth)
+                    .tail(tailIdleTimeout > 0 && packFiles <= 1 && System.currentTimeMillis()
+                            - file.lastModified() < tailIdleTimeout)
+                    .build();
             EventDeserializer deserializer = EventDeserializerFactory.getInstance
-                    (ZipDeserializer.Builder.class.getName(), deserializerContext, in);
+                    (ZipEventDeserializerType.resolve(deserializerType),
+                            deserializerContext, in);
 
-            return Optional.of(new FileInfo(file, deserializer));
+            return Optional.of(new FileInfo(file, in, deserializer, createFileHeaders(file),
+                    meta, blockIndex));
         } catch (FileNotFoundException e) {
             // File could have been deleted in the interim
             logger.warn("Could not find file: " + file, e);
@@ -521,10 +861,63 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
         }
     }
 
+    /**
+     * Take over the position of an agent whose lease on a file expired, so
+     * that only the events it read after its last commit are sent again.
+     * Its tracker is copied into the one this reader keeps for the file, and
+     * left in place for that agent, which may still have it open.
+     */
+    private void adoptPosition(File file, String owner) throws IOException {
+        File ownerMeta = trackerFile(owner, file, META_SUFFIX);
+        File meta = trackerFile(agentId, file, META_SUFFIX);
+        if (ownerMeta.equals(meta) || !ownerMeta.exists()) {
+            return;
+        }
+        File blockIndex = trackerFile(agentId, file, BLOCK_INDEX_SUFFIX);
+        deleteMetaFile(meta, blockIndex);
+        Files.copy(ownerMeta, meta);
+        PositionTracker tracker = DurablePositionTracker.getInstance(meta, file.getPath());
+        boolean resumable = tracker.getTarget().equals(file.getPath());
+        tracker.close();
+        if (resumable) {
+            logger.info("Resuming {} from the position of agent {}", file, owner);
+        } else {
+            deleteMetaFile(meta, blockIndex);
+        }
+    }
+
+    /**
+     * Precompute the headers added to every event read from the given file.
+     */
+    private Map<String, String> createFileHeaders(File file) {
+        if (!annotateFileName && !annotateBaseName) {
+            return ImmutableMap.of();
+        }
+        Map<String, String> headers = Maps.newLinkedHashMap();
+        if (annotateFileName) {
+            headers.put(fileNameHeader, file.getAbsolutePath());
+        }
+        if (annotateBaseName) {
+            headers.put(baseNameHeader, file.getName());
+        }
+        return ImmutableMap.copyOf(headers);
+    }
+
     private void deleteMetaFile() throws IOException {
+        deleteMetaFile(metaFile, blockIndexFile);
+    }
+
+    private void deleteMetaFile(FileInfo info) throws IOException {
+        deleteMetaFile(info.getMetaFile(), info.getBlockIndexFile());
+    }
+
+    private static void deleteMetaFile(File metaFile, File blockIndexFile) throws IOException {
         if (metaFile.exists() && !metaFile.delete()) {
             throw new IOException("Unable to delete old meta file " + metaFile);
         }
+        if (blockIndexFile.exists() && !blockIndexFile.delete()) {
+            throw new IOException("Unable to delete old block index " + blockIndexFile);
+        }
     }
 
     /** An immutable class with information about a file being processed. */
@@ -532,19 +925,33 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
         private final File file;
         private final long length;
         private final long lastModified;
+        private final ResettableZipInputStream input;
         private final EventDeserializer deserializer;
+        private final Map<String, String> headers;
+        private final File metaFile;
+        private final File blockIndexFile;
 
-        public FileInfo(File file, EventDeserializer deserializer) {
+        public FileInfo(File file, ResettableZipInputStream input,
+                        EventDeserializer deserializer, Map<String, String> headers,
+                        File metaFile, File blockIndexFile) {
             this.file = file;
             this.length = file.length();
             this.lastModified = file.lastModified();
+            this.input = input;
             this.deserializer = deserializer;
+            this.headers = headers;
+            this.metaFile = metaFile;
+            this.blockIndexFile = blockIndexFile;
         }
 
         public long getLength() { return length; }
         public long getLastModified() { return lastModified; }
+        public ResettableZipInputStream getInput() { return input; }
         public EventDeserializer getDeserializer() { return deserializer; }
         public File getFile() { return file; }
+        public Map<String, String> getHeaders() { return headers; }
+        public File getMetaFile() { return metaFile; }
+        public File getBlockIndexFile() { return blockIndexFile; }
     }
 
     @InterfaceAudience.Private
@@ -586,6 +993,32 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
                         .toUpperCase(Locale.ENGLISH));
         private ConsumeOrder consumeOrder =
                 SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_CONSUME_ORDER;
+        private int packFiles =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_PACK_FILES;
+        private int packCompressionLevel =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_PACK_COMPRESSION_LEVEL;
+        private int decompressThreads =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_DECOMPRESS_THREADS;
+        private int maxNestingDepth =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_MAX_NESTING_DEPTH;
+        private long tailIdleTimeout =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_TAIL_IDLE_TIMEOUT;
+        private String fileTimestampFormat;
+        private String fileTimestampRegex;
+        private PriorityLanes priorityLanes;
+        private int maxDirectoryDepth =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_MAX_DIRECTORY_DEPTH;
+        private String directoryPattern =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_DIRECTORY_PATTERN;
+        private int directoryListThreads =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_DIRECTORY_LIST_THREADS;
+        private long completedDirectoryRetention =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_COMPLETED_DIRECTORY_RETENTION;
+        private int shardIndex = 0;
+        private int shardCount = 1;
+        private String agentId;
+        private long leaseTimeout =
+                SpoolDirectoryZipSourceConfigurationConstants.DEFAULT_LEASE_TIMEOUT;
 
         public Builder spoolDirectory(File directory) {
             this.spoolDirectory = directory;
@@ -657,12 +1090,99 @@ public class ReliableSpoolingZipFileEventReader implements ReliableEventReader {
             return this;
         }
 
+        public Builder packFiles(int packFiles) {
+            this.packFiles = packFiles;
+            return this;
+        }
+
+        public Builder packCompressionLevel(int packCompressionLevel) {
+            this.packCompressionLevel = packCompressionLevel;
+            return this;
+        }
+
+        public Builder decompressThreads(int decompressThreads) {
+            this.decompressThreads = decompressThreads;
+            return this;
+        }
+
+        public Builder maxNestingDepth(int maxNestingDepth) {
+            this.maxNestingDepth = maxNestingDepth;
+            return this;
+        }
+
+        public Builder tailIdleTimeout(long tailIdleTimeout) {
+            this.tailIdleTimeout = tailIdleTimeout;
+            return this;
+        }
+
+        public Builder fileTimestampFormat(String fileTimestampFormat) {
+            this.fileTimestampFormat = fileTimestampFormat;
+            return this;
+        }
+
+        public Builder fileTimestampRegex(String fileTimestampRegex) {
+            this.fileTimestampRegex = fileTimestampRegex;
+            return this;
+        }
+
+        public Builder priorityLanes(PriorityLanes priorityLanes) {
+            this.priorityLanes = priorityLanes;
+            return this;
+        }
+
+        public Builder maxDirectoryDepth(int maxDirectoryDepth) {
+            this.maxDirectoryDepth = maxDirectoryDepth;
+            return this;
+        }
+
+        public Builder directoryPattern(String directoryPattern) {
+            this.directoryPattern = directoryPattern;
+            return this;
+        }
+
+        public Builder directoryListThreads(int directoryListThreads) {
+            this.directoryListThreads = directoryListThreads;
+            return this;
+        }
+
+        public Builder completedDirectoryRetention(long completedDirectoryRetention) {
+            this.completedDirectoryRetention = completedDirectoryRetention;
+            return this;
+        }
+
+        /**
+         * Read only the files of one shard of the directory, so that
+         * several readers can share it.
+         */
+        public Builder shard(int shardIndex, int shardCount) {
+            this.shardIndex = shardIndex;
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        /**
+         * Claim files through lease files, so that several agents can share
+         * the directory. Every agent needs an id of its own.
+         */
+        public Builder agentId(String agentId) {
+            this.agentId = agentId;
+            return this;
+        }
+
+        public Builder leaseTimeout(long leaseTimeout) {
+            this.leaseTimeout = leaseTimeout;
+            return this;
+        }
+
         public ReliableSpoolingZipFileEventReader build() throws IOException {
             return new ReliableSpoolingZipFileEventReader(spoolDirectory, completedSuffix,
                     ignorePattern, trackerDirPath, annotateFileName, fileNameHeader,
                     annotateBaseName, baseNameHeader, deserializerType,
                     deserializerContext, deletePolicy, inputCharset, decodeErrorPolicy,
-                    consumeOrder);
+                    consumeOrder, packFiles, packCompressionLevel, decompressThreads,
+                    maxNestingDepth, tailIdleTimeout, fileTimestampFormat, fileTimestampRegex,
+                    priorityLanes, maxDirectoryDepth, directoryPattern, directoryListThreads,
+                    completedDirectoryRetention, shardIndex, shardCount, agentId, leaseTimeout);
         }
     }
 
@@ -0,0 +1,564 @@
+package com.weejinfu.flume.client.zip;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.weejinfu.flume.source.SpoolDirectoryZipSourceConfigurationConstants.ConsumeOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The files of a spooling directory with the attributes they are consumed
+ * in order of: length, modification time and the timestamp in their name.
+ *
+ * <p/>Spooled files are not modified once they are placed in the directory,
+ * so their attributes are read only once, with a single stat, when they are
+ * first listed. Later listings only read the names of the directory, and
+ * picking the next file compares cached values. So does sorting files into
+ * {@link PriorityLanes}.
+ *
+ * <p/>Subdirectories are indexed too, down to a maximum depth, one level at
+ * a time with the directories of a level listed in parallel. A directory
+ * whose files have all been consumed, and which was not modified in the
+ * last couple of seconds, is pruned: as long as neither its modification
+ * time nor those of its subdirectories change, it is stat'ed instead of
+ * listed, so that listing costs follow the new files rather than the size
+ * of the tree. Pruned directories holding only completed files may
+ * be removed once they have been idle for some time.
+ */
+class SpoolFileIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpoolFileIndex.class);
+
+    // date format letters which are formatted as digits
+    private static final String NUMERIC_FIELDS = "yMdHhkKmsS";
+
+    // coarsest modification time granularity of the file systems expected
+    private static final long MTIME_GRANULARITY = 2000L;
+
+    private final File directory;
+    private final Comparator<Attributes> comparator;
+    private final Pattern timestampPattern;
+    private final SimpleDateFormat timestampFormat;
+    private final PriorityLanes lanes;
+    private final int maxDepth;
+    private final Pattern directoryPattern;
+    private final String completedSuffix;
+    private final long completedDirectoryRetention;
+    // lists the directories of a level in parallel, null to list them in turn
+    private final ThreadPoolExecutor listExecutor;
+    // indexed files, by path relative to the directory
+    private Map<String, Attributes> files = Maps.newHashMap();
+    // paths of files which were stat'ed as possible directories, and were not
+    private Set<String> unindexedFiles = Sets.newHashSet();
+    // modification time of every pruned directory, by relative path
+    private final TreeMap<String, Long> prunedDirectories = Maps.newTreeMap();
+    // pruned directories holding only completed files
+    private final Set<String> removableDirectories = Sets.newHashSet();
+    private int listedDirectories;
+
+    /**
+     * @param timestampFormat
+     *        {@link SimpleDateFormat} pattern of the timestamp in file names,
+     *        only used by {@link ConsumeOrder#FILENAME_TIMESTAMP}
+     *
+     * @param timestampRegex
+     *        Regular expression locating the timestamp in file names, its
+     *        first group (or the whole match) is parsed; derived from the
+     *        format if null
+     *
+     * @param lanes
+     *        Lanes to sort files into, may be null
+     *
+     * @param maxDepth
+     *        Levels of subdirectories to index, 0 for none
+     *
+     * @param directoryPattern
+     *        Names of the subdirectories to index
+     *
+     * @param completedDirectoryRetention
+     *        Milliseconds a pruned directory holding only completed files is
+     *        kept once idle, negative to keep it forever
+     */
+    SpoolFileIndex(File directory, ConsumeOrder consumeOrder, String timestampFormat,
+                   String timestampRegex, PriorityLanes lanes, int maxDepth,
+                   Pattern directoryPattern, int listThreads, String completedSuffix,
+                   long completedDirectoryRetention) {
+        Preconditions.checkArgument(maxDepth >= 0, "Invalid maximum directory depth: %s",
+                maxDepth);
+        Preconditions.checkArgument(listThreads > 0, "Invalid number of list threads: %s",
+                listThreads);
+        this.directory = directory;
+        this.lanes = lanes;
+        this.maxDepth = maxDepth;
+        this.directoryPattern = directoryPattern;
+        this.completedSuffix = completedSuffix;
+        this.completedDirectoryRetention = completedDirectoryRetention;
+        if (listThreads > 1 && maxDepth > 0) {
+            listExecutor = new ThreadPoolExecutor(listThreads, listThreads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("spool-lister-%d").build());
+            listExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            listExecutor = null;
+        }
+        this.comparator = comparator(consumeOrder);
+        if (consumeOrder == ConsumeOrder.FILENAME_TIMESTAMP) {
+            Preconditions.checkArgument(timestampFormat != null,
+                    "Consume order %s requires a file name timestamp format", consumeOrder);
+            this.timestampFormat = new SimpleDateFormat(timestampFormat);
+            this.timestampFormat.setLenient(false);
+            this.timestampPattern = Pattern.compile(timestampRegex != null
+                    ? timestampRegex : toRegex(timestampFormat));
+        } else {
+            this.timestampFormat = null;
+            this.timestampPattern = null;
+        }
+    }
+
+    // a regex matching the dates of a format made of numeric fields
+    static String toRegex(String format) {
+        StringBuilder regex = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && NUMERIC_FIELDS.indexOf(c) >= 0) {
+                regex.append("\\d");
+            } else if (!quoted && Character.isLetter(c)) {
+                throw new IllegalArgumentException("Cannot locate the non numeric field '" + c
+                        + "' of timestamp format " + format + " in file names,"
+                        + " configure a timestamp regex");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Reads the names in the directory and its subdirectories, indexing the
+     * new ones and dropping those which are gone.
+     * @param filter
+     *        Accepts the names of files to index; is given no attributes, so
+     *        that rejected files are not stat'ed
+     */
+    void refresh(NameFilter filter) {
+        Map<String, Attributes> listed = Maps.newHashMapWithExpectedSize(files.size() + 16);
+        Set<String> unindexed = Sets.newHashSet();
+        List<Listing> listings = Lists.newArrayList();
+        List<Listing> level = Collections.singletonList(new Listing(directory, "", 0));
+        while (!level.isEmpty()) {
+            list(level, filter);
+            List<Listing> next = Lists.newArrayList();
+            for (Listing listing : level) {
+                listings.add(listing);
+                listed.putAll(listing.files);
+                unindexed.addAll(listing.unindexed);
+                for (String path : listing.subdirectories) {
+                    if (!isPruned(path)) {
+                        Listing child = new Listing(new File(directory, path), path,
+                                listing.depth + 1);
+                        listing.children.add(child);
+                        next.add(child);
+                    }
+                }
+            }
+            level = next;
+        }
+        files = listed;
+        unindexedFiles = unindexed;
+        listedDirectories = listings.size();
+        prune(listings);
+    }
+
+    private void list(List<Listing> level, final NameFilter filter) {
+        if (listExecutor == null || level.size() == 1) {
+            for (Listing listing : level) {
+                list(listing, filter);
+            }
+            return;
+        }
+        List<Future<?>> futures = Lists.newArrayListWithCapacity(level.size());
+        for (final Listing listing : level) {
+            futures.add(listExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    list(listing, filter);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+    }
+
+    // lists one directory; only reads the index, so listings may run in parallel
+    private void list(Listing listing, NameFilter filter) {
+        // read before listing, so that files added meanwhile change it
+        listing.lastModified = listing.directory.lastModified();
+        listing.listedAt = System.currentTimeMillis();
+        String[] names = listing.directory.list();
+        if (names == null) {
+            listing.missing = true;
+            return;
+        }
+        for (String name : names) {
+            String path = listing.path.isEmpty() ? name : listing.path + File.separator + name;
+            Attributes attributes = files.get(path);
+            if (attributes != null) {
+                listing.files.put(path, attributes);
+                continue;
+            }
+            if (unindexedFiles.contains(path)) {
+                listing.unindexed.add(path);
+                listing.found(path, name, completedSuffix);
+                continue;
+            }
+            boolean descend = listing.depth < maxDepth && !name.startsWith(".")
+                    && directoryPattern.matcher(name).matches();
+            boolean accepted = filter.accept(name);
+            if (!accepted && !descend) {
+                listing.found(path, name, completedSuffix);
+                continue;
+            }
+            BasicFileAttributes stat;
+            try {
+                stat = Files.readAttributes(new File(directory, path).toPath(),
+                        BasicFileAttributes.class);
+            } catch (IOException e) {
+                // deleted in the interim
+                continue;
+            }
+            if (stat.isDirectory()) {
+                if (descend) {
+                    listing.subdirectories.add(path);
+                } else {
+                    listing.onlyCompleted = false;
+                }
+            } else if (accepted) {
+                listing.files.put(path, attributes(path, name, stat));
+            } else {
+                listing.unindexed.add(path);
+                listing.found(path, name, completedSuffix);
+            }
+        }
+    }
+
+    private Attributes attributes(String path, String name, BasicFileAttributes stat) {
+        long lastModified = stat.lastModifiedTime().toMillis();
+        return new Attributes(new File(directory, path), stat.size(), lastModified,
+                timestampPattern == null ? lastModified : parseTimestamp(name, lastModified),
+                lanes == null ? 0 : lanes.laneOf(name));
+    }
+
+    /**
+     * Whether a directory is pruned and unchanged, along with every pruned
+     * directory below it. A changed one, or one due for removal, is listed
+     * again; the unchanged directories below it stay pruned.
+     */
+    private boolean isPruned(String path) {
+        Long lastModified = prunedDirectories.get(path);
+        if (lastModified == null) {
+            return false;
+        }
+        boolean unchanged = new File(directory, path).lastModified() == lastModified
+                && !(removableDirectories.contains(path)
+                && System.currentTimeMillis() - lastModified > completedDirectoryRetention);
+        Map<String, Long> below = prunedDirectories.subMap(path + File.separator,
+                path + File.separator + Character.MAX_VALUE);
+        for (Map.Entry<String, Long> entry : below.entrySet()) {
+            if (!unchanged) {
+                break;
+            }
+            unchanged = new File(directory, entry.getKey()).lastModified() == entry.getValue();
+        }
+        if (!unchanged) {
+            // listed again, and pruned again if still consumed
+            prunedDirectories.remove(path);
+            removableDirectories.remove(path);
+        }
+        return unchanged;
+    }
+
+    // prunes, and maybe removes, the subdirectories without files to consume
+    private void prune(List<Listing> listings) {
+        long now = System.currentTimeMillis();
+        // the deepest first, the spool directory itself last and never
+        for (int i = listings.size() - 1; i > 0; i--) {
+            Listing listing = listings.get(i);
+            // a file added in the same mtime tick as the listing would not
+            // change the mtime, so a directory modified lately is not pruned
+            boolean consumed = !listing.missing && listing.files.isEmpty()
+                    && listing.listedAt - listing.lastModified >= MTIME_GRANULARITY;
+            for (Listing child : listing.children) {
+                consumed &= child.consumed;
+            }
+            listing.consumed = consumed;
+            if (!consumed) {
+                continue;
+            }
+            boolean removable = completedDirectoryRetention >= 0 && listing.onlyCompleted;
+            if (removable && now - listing.lastModified > completedDirectoryRetention
+                    && remove(listing)) {
+                continue;
+            }
+            prunedDirectories.put(listing.path, listing.lastModified);
+            if (removable) {
+                removableDirectories.add(listing.path);
+            }
+        }
+    }
+
+    // deletes a consumed directory with its completed files
+    private boolean remove(Listing listing) {
+        for (String path : listing.completed) {
+            if (!new File(directory, path).delete()) {
+                return false;
+            }
+            unindexedFiles.remove(path);
+        }
+        if (!listing.directory.delete()) {
+            // something new arrived or a subdirectory stays
+            return false;
+        }
+        logger.info("Removed completed directory {}", listing.directory);
+        for (Listing child : listing.children) {
+            prunedDirectories.remove(child.path);
+            removableDirectories.remove(child.path);
+        }
+        return true;
+    }
+
+    /** Number of directories listed by the last refresh. */
+    int getListedDirectories() {
+        return listedDirectories;
+    }
+
+    /** Stop the threads listing directories in parallel. */
+    void close() {
+        if (listExecutor != null) {
+            listExecutor.shutdown();
+        }
+    }
+
+    private long parseTimestamp(String name, long fallback) {
+        Matcher matcher = timestampPattern.matcher(name);
+        if (matcher.find()) {
+            String timestamp = matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+            try {
+                return timestampFormat.parse(timestamp).getTime();
+            } catch (ParseException e) {
+                // fall through
+            }
+        }
+        logger.warn("No timestamp in the name of {}, using its modification time", name);
+        return fallback;
+    }
+
+    /** Forget a file which has been consumed. */
+    void remove(File file) {
+        files.remove(directory.toPath().relativize(file.toPath()).toString());
+    }
+
+    /** The indexed files accepted by the filter, in no particular order. */
+    List<File> candidates(FileFilter filter) {
+        List<File> result = Lists.newArrayListWithCapacity(files.size());
+        for (Attributes attributes : files.values()) {
+            if (filter.accept(attributes.getFile())) {
+                result.add(attributes.getFile());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The file to consume first among the indexed files accepted by the
+     * filter, null if there is none.
+     */
+    File first(FileFilter filter) {
+        Attributes first = null;
+        for (Attributes attributes : files.values()) {
+            if (filter.accept(attributes.getFile())
+                    && (first == null || comparator.compare(attributes, first) < 0)) {
+                first = attributes;
+            }
+        }
+        return first == null ? null : first.getFile();
+    }
+
+    /**
+     * The file to consume first in every lane, among the indexed files
+     * accepted by the filter.
+     * @param backlog
+     *        Receives the number of files accepted in every lane
+     */
+    Attributes[] firstPerLane(FileFilter filter, int[] backlog) {
+        Attributes[] first = new Attributes[backlog.length];
+        for (Attributes attributes : files.values()) {
+            if (!filter.accept(attributes.getFile())) {
+                continue;
+            }
+            int lane = attributes.getLane();
+            backlog[lane]++;
+            if (first[lane] == null || comparator.compare(attributes, first[lane]) < 0) {
+                first[lane] = attributes;
+            }
+        }
+        return first;
+    }
+
+    private static Comparator<Attributes> comparator(ConsumeOrder consumeOrder) {
+        switch (consumeOrder) {
+            case YOUNGEST:
+                return new Comparator<Attributes>() {
+                    @Override
+                    public int compare(Attributes a, Attributes b) {
+                        int c = compareLongs(b.getLastModified(), a.getLastModified());
+                        return c != 0 ? c : compareNames(a, b);
+                    }
+                };
+            case SMALLEST_FIRST:
+                return new Comparator<Attributes>() {
+                    @Override
+                    public int compare(Attributes a, Attributes b) {
+                        int c = compareLongs(a.getLength(), b.getLength());
+                        return c != 0 ? c : OLDEST_FIRST.compare(a, b);
+                    }
+                };
+            case LARGEST_FIRST:
+                return new Comparator<Attributes>() {
+                    @Override
+                    public int compare(Attributes a, Attributes b) {
+                        int c = compareLongs(b.getLength(), a.getLength());
+                        return c != 0 ? c : OLDEST_FIRST.compare(a, b);
+                    }
+                };
+            case FILENAME_TIMESTAMP:
+                return new Comparator<Attributes>() {
+                    @Override
+                    public int compare(Attributes a, Attributes b) {
+                        int c = compareLongs(a.getNameTimestamp(), b.getNameTimestamp());
+                        return c != 0 ? c : compareNames(a, b);
+                    }
+                };
+            default:
+                return OLDEST_FIRST;
+        }
+    }
+
+    private static final Comparator<Attributes> OLDEST_FIRST = new Comparator<Attributes>() {
+        @Override
+        public int compare(Attributes a, Attributes b) {
+            int c = compareLongs(a.getLastModified(), b.getLastModified());
+            return c != 0 ? c : compareNames(a, b);
+        }
+    };
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    // equal files are consumed in lexicographical order of their paths
+    private static int compareNames(Attributes a, Attributes b) {
+        return a.getFile().getPath().compareTo(b.getFile().getPath());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // Nested classes:
+    ///////////////////////////////////////////////////////////////////////////////
+    /** Selects the names worth indexing, without touching the files. */
+    interface NameFilter {
+        boolean accept(String name);
+    }
+
+    /** What listing a directory found. */
+    private static class Listing {
+        private final File directory;
+        private final String path;
+        private final int depth;
+        private final Map<String, Attributes> files = Maps.newHashMap();
+        private final List<String> unindexed = Lists.newArrayList();
+        private final List<String> completed = Lists.newArrayList();
+        private final List<String> subdirectories = Lists.newArrayList();
+        private final List<Listing> children = Lists.newArrayList();
+        private long lastModified;
+        private long listedAt;
+        private boolean missing;
+        // whether every file found was completed
+        private boolean onlyCompleted = true;
+        // whether no file is left to consume here or below
+        private boolean consumed;
+
+        Listing(File directory, String path, int depth) {
+            this.directory = directory;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        // a file which is not indexed
+        void found(String path, String name, String completedSuffix) {
+            if (name.endsWith(completedSuffix)) {
+                completed.add(path);
+            } else {
+                onlyCompleted = false;
+            }
+        }
+    }
+
+    /** Attributes of a file as they were when it was first listed. */
+    static class Attributes {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final long nameTimestamp;
+        private final int lane;
+
+        Attributes(File file, long length, long lastModified, long nameTimestamp, int lane) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.nameTimestamp = nameTimestamp;
+            this.lane = lane;
+        }
+
+        File getFile() { return file; }
+        long getLength() { return length; }
+        long getLastModified() { return lastModified; }
+        long getNameTimestamp() { return nameTimestamp; }
+        int getLane() { return lane; }
+    }
+
+}
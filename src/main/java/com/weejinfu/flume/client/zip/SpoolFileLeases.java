@@ -0,0 +1,264 @@
+package com.weejinfu.flume.client.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease files through which the agents sharing a spool directory, in one
+ * process or several, claim the files they read.
+ *
+ * <p/>An agent claims a file by creating its lease file in the
+ * {@link #LEASE_DIRECTORY} of the spool directory, which only one agent
+ * can do, and writing its id into it. A heartbeat thread touches the
+ * leases it holds every third of the lease timeout. A lease left untouched
+ * for longer than the timeout has expired: its agent is considered dead,
+ * and the first agent to create the takeover marker of that expiry, named
+ * after the lease, its owner and its modification time, takes the file over
+ * by writing its own id into the lease. A lease is only ever deleted by its
+ * owner, once the file has been retired.
+ */
+class SpoolFileLeases {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpoolFileLeases.class);
+
+    /** Directory of the lease files, hidden so that it is never spooled. */
+    static final String LEASE_DIRECTORY = ".flumespool-leases";
+    private static final String LEASE_SUFFIX = ".lease";
+    static final String TAKEOVER_SUFFIX = ".takeover";
+
+    private final File spoolDirectory;
+    private final File leaseDirectory;
+    private final String agentId;
+    private final long leaseTimeout;
+    // leases held by this agent, by the file they are for
+    private final ConcurrentMap<File, File> held = Maps.newConcurrentMap();
+    // when files were found leased by other agents, or could not be claimed
+    private final Map<File, Long> unavailable = Maps.newHashMap();
+    private final ScheduledExecutorService heartbeat;
+
+    SpoolFileLeases(File spoolDirectory, String agentId, long leaseTimeout) throws IOException {
+        Preconditions.checkArgument(agentId.matches("[A-Za-z0-9_.-]+"),
+                "Invalid agent id: %s", agentId);
+        Preconditions.checkArgument(leaseTimeout > 0, "Invalid lease timeout: %s", leaseTimeout);
+        this.spoolDirectory = spoolDirectory;
+        this.leaseDirectory = new File(spoolDirectory, LEASE_DIRECTORY);
+        this.agentId = agentId;
+        this.leaseTimeout = leaseTimeout;
+        if (!leaseDirectory.isDirectory() && !leaseDirectory.mkdir()
+                && !leaseDirectory.isDirectory()) {
+            throw new IOException("Unable to mkdir lease directory " + leaseDirectory);
+        }
+        long period = Math.max(1L, leaseTimeout / 3);
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("spool-lease-" + agentId + "-%d").build());
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renew();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private File leaseFile(File file) {
+        String path = spoolDirectory.toPath().relativize(file.toPath()).toString();
+        return new File(leaseDirectory, path.replace(File.separatorChar, '#') + LEASE_SUFFIX);
+    }
+
+    /**
+     * Whether the file was lately found leased by another agent, or could
+     * not be claimed, within the last lease timeout.
+     */
+    synchronized boolean isUnavailable(File file) {
+        Long since = unavailable.get(file);
+        return since != null && System.currentTimeMillis() - since <= leaseTimeout;
+    }
+
+    /**
+     * Forget the files found unavailable longer than the lease timeout ago,
+     * whose leases may have expired since, or which may be gone.
+     */
+    synchronized void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = unavailable.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() > leaseTimeout) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Claim a file.
+     * @return the agent whose position in the file to resume from: this
+     *         agent, or the agent whose expired lease was taken over; null if
+     *         the file is leased by another agent or its lease could not be
+     *         written, in which case it is unavailable for a lease timeout
+     */
+    synchronized String claim(File file) {
+        if (held.containsKey(file)) {
+            return agentId;
+        }
+        File lease = leaseFile(file);
+        // a lease may vanish or be taken over between the steps below
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                Files.write(lease.toPath(), agentId.getBytes(Charsets.UTF_8),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                held.put(file, lease);
+                unavailable.remove(file);
+                return agentId;
+            } catch (FileAlreadyExistsException e) {
+                // leased already
+            } catch (IOException e) {
+                logger.warn("Unable to create lease " + lease, e);
+                break;
+            }
+
+            String owner = owner(lease);
+            if (owner == null) {
+                continue;
+            }
+            if (owner.equals(agentId)) {
+                // held before a restart of this agent
+                lease.setLastModified(System.currentTimeMillis());
+                held.put(file, lease);
+                return agentId;
+            }
+            long lastModified = lease.lastModified();
+            if (System.currentTimeMillis() - lastModified <= leaseTimeout) {
+                break;
+            }
+
+            // expired: only the agent creating the marker of this expiry takes
+            // it over, rewriting the lease in place so that it never vanishes
+            File marker = new File(leaseDirectory, lease.getName() + "." + owner + "."
+                    + lastModified + TAKEOVER_SUFFIX);
+            if (!createMarker(marker)) {
+                break;
+            }
+            try {
+                if (!owner.equals(owner(lease)) || lease.lastModified() != lastModified) {
+                    // renewed, released or taken over meanwhile
+                    continue;
+                }
+                Files.write(lease.toPath(), agentId.getBytes(Charsets.UTF_8),
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                lease.setLastModified(System.currentTimeMillis());
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (IOException e) {
+                logger.warn("Unable to take over lease " + lease, e);
+                break;
+            } finally {
+                // the rewritten lease keeps any later agent from taking over
+                if (!marker.delete()) {
+                    logger.warn("Unable to delete takeover marker {}", marker);
+                }
+            }
+            logger.info("Taking over {} from agent {}, whose lease expired", file, owner);
+            held.put(file, lease);
+            unavailable.remove(file);
+            return owner;
+        }
+        unavailable.put(file, System.currentTimeMillis());
+        return null;
+    }
+
+    /**
+     * Create a takeover marker, which only one agent can do. A marker older
+     * than the lease timeout was left by an agent which died taking over,
+     * and is replaced.
+     */
+    private boolean createMarker(File marker) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                Files.createFile(marker.toPath());
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                if (System.currentTimeMillis() - marker.lastModified() <= leaseTimeout) {
+                    return false;
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to create takeover marker " + marker, e);
+                return false;
+            }
+            // only one agent manages to move a stale marker out of the way
+            File stale = new File(leaseDirectory, marker.getName() + "." + agentId + ".stale");
+            if (!marker.renameTo(stale)) {
+                return false;
+            }
+            boolean wasStale = System.currentTimeMillis() - stale.lastModified() > leaseTimeout;
+            if (!stale.delete()) {
+                logger.warn("Unable to delete takeover marker {}", stale);
+            }
+            if (!wasStale) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // the agent holding a lease, null if there is none
+    private static String owner(File lease) {
+        try {
+            return new String(Files.readAllBytes(lease.toPath()), Charsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /** Whether this agent still holds the lease of a file. */
+    boolean holds(File file) {
+        File lease = held.get(file);
+        return lease != null && agentId.equals(owner(lease));
+    }
+
+    /** Give up the lease of a file, once it has been retired. */
+    void release(File file) {
+        File lease = held.remove(file);
+        if (lease != null && agentId.equals(owner(lease)) && !lease.delete()) {
+            logger.warn("Unable to delete lease {}", lease);
+        }
+    }
+
+    // touch the leases held, and drop those taken over by other agents
+    private void renew() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<File, File> entry : held.entrySet()) {
+            File lease = entry.getValue();
+            if (!agentId.equals(owner(lease))) {
+                logger.error("Lost the lease of {} to another agent", entry.getKey());
+                held.remove(entry.getKey(), lease);
+            } else if (!lease.setLastModified(now)) {
+                logger.warn("Unable to renew lease {}", lease);
+            }
+        }
+    }
+
+    /**
+     * Stop renewing the leases. They are kept, for this agent to resume its
+     * files after a restart, or for others to take them over on expiry.
+     */
+    void close() {
+        heartbeat.shutdownNow();
+    }
+
+}
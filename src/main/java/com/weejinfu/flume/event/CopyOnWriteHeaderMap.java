@@ -0,0 +1,175 @@
+package com.weejinfu.flume.event;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Event header map which shares an immutable set of headers between
+ * all the events read from one file, and only copies them into a private
+ * map the first time somebody (e.g. an interceptor) modifies it.
+ *
+ * <p/>Lookups never allocate. The views honour the whole {@link Map}
+ * contract: removing through an iterator or setting the value of an entry
+ * copies the headers first, like any other write.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class CopyOnWriteHeaderMap extends AbstractMap<String, String> {
+
+    private final Map<String, String> shared;
+    private Map<String, String> own;
+    private Set<Entry<String, String>> entrySet;
+
+    /**
+     * @param shared
+     *        Headers shared with other events, must not be modified afterwards
+     */
+    public CopyOnWriteHeaderMap(Map<String, String> shared) {
+        this.shared = Preconditions.checkNotNull(shared);
+    }
+
+    private Map<String, String> current() {
+        return own != null ? own : shared;
+    }
+
+    private Map<String, String> ensureOwn() {
+        if (own == null) {
+            own = Maps.newHashMap(shared);
+        }
+        return own;
+    }
+
+    @Override
+    public int size() {
+        return current().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return current().isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return current().containsKey(key);
+    }
+
+    @Override
+    public String get(Object key) {
+        return current().get(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return ensureOwn().put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> m) {
+        ensureOwn().putAll(m);
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (own == null && !shared.containsKey(key)) {
+            return null;
+        }
+        return ensureOwn().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        if (own == null) {
+            own = Maps.newHashMap();
+        } else {
+            own.clear();
+        }
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    // entries of the current map, copying the shared ones before any write
+    private class EntrySet extends AbstractSet<Entry<String, String>> {
+
+        @Override
+        public int size() {
+            return current().size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return current().entrySet().contains(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (own == null && !shared.entrySet().contains(o)) {
+                return false;
+            }
+            return ensureOwn().entrySet().remove(o);
+        }
+
+        @Override
+        public void clear() {
+            CopyOnWriteHeaderMap.this.clear();
+        }
+
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            if (own != null) {
+                return own.entrySet().iterator();
+            }
+            final Iterator<Entry<String, String>> it = shared.entrySet().iterator();
+            return new Iterator<Entry<String, String>>() {
+                private Entry<String, String> last;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Entry<String, String> next() {
+                    last = new SharedEntry(it.next());
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    Preconditions.checkState(last != null, "No entry to remove");
+                    ensureOwn().remove(last.getKey());
+                    last = null;
+                }
+            };
+        }
+    }
+
+    // a shared entry, whose value is only set in the copy of the headers
+    private class SharedEntry extends SimpleEntry<String, String> {
+
+        SharedEntry(Entry<String, String> entry) {
+            super(entry);
+        }
+
+        @Override
+        public String setValue(String value) {
+            ensureOwn().put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+}
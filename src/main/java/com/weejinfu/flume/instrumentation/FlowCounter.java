@@ -0,0 +1,57 @@
+package com.weejinfu.flume.instrumentation;
+
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.instrumentation.MonitoredCounterGroup;
+
+/**
+ * Counters of the flow control of a source: the current batch size, summed
+ * over the shards of the source, the milliseconds the last batch took from
+ * being read to being committed, and the number of chunks the channels
+ * rejected.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class FlowCounter extends MonitoredCounterGroup implements FlowCounterMBean {
+
+    private static final String COUNTER_BATCH_SIZE = "flow.batch.size";
+    private static final String COUNTER_BATCH_LATENCY = "flow.batch.latency";
+    private static final String COUNTER_CHANNEL_REJECTED = "flow.channel.rejected";
+
+    private static final String[] ATTRIBUTES = {
+            COUNTER_BATCH_SIZE, COUNTER_BATCH_LATENCY, COUNTER_CHANNEL_REJECTED
+    };
+
+    public FlowCounter(String name) {
+        super(Type.OTHER, name, ATTRIBUTES);
+    }
+
+    /** Add the change in the batch size of one shard. */
+    public long addToBatchSize(long delta) {
+        return addAndGet(COUNTER_BATCH_SIZE, delta);
+    }
+
+    @Override
+    public long getBatchSize() {
+        return get(COUNTER_BATCH_SIZE);
+    }
+
+    public void setBatchLatency(long batchLatency) {
+        set(COUNTER_BATCH_LATENCY, batchLatency);
+    }
+
+    @Override
+    public long getBatchLatency() {
+        return get(COUNTER_BATCH_LATENCY);
+    }
+
+    public long incrementChannelRejectedCount() {
+        return increment(COUNTER_CHANNEL_REJECTED);
+    }
+
+    @Override
+    public long getChannelRejectedCount() {
+        return get(COUNTER_CHANNEL_REJECTED);
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.weejinfu.flume.instrumentation;
+
+/**
+ * How a source paces the delivery of events to its channels.
+ */
+public interface FlowCounterMBean {
+
+    long getBatchSize();
+
+    long getBatchLatency();
+
+    long getChannelRejectedCount();
+
+    long getStartTime();
+
+    long getStopTime();
+
+    String getType();
+
+}
@@ -0,0 +1,62 @@
+package com.weejinfu.flume.instrumentation;
+
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.instrumentation.MonitoredCounterGroup;
+
+/**
+ * Counters of a priority lane: the files waiting in it, the files opened
+ * from it, and how long they waited, from their last modification to being
+ * opened, in milliseconds.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class LaneCounter extends MonitoredCounterGroup implements LaneCounterMBean {
+
+    private static final String COUNTER_BACKLOG = "lane.backlog";
+    private static final String COUNTER_FILE_OPENED = "lane.file.opened";
+    private static final String COUNTER_LAST_WAIT_TIME = "lane.wait.time.last";
+    private static final String COUNTER_TOTAL_WAIT_TIME = "lane.wait.time.total";
+
+    private static final String[] ATTRIBUTES = {
+            COUNTER_BACKLOG, COUNTER_FILE_OPENED, COUNTER_LAST_WAIT_TIME, COUNTER_TOTAL_WAIT_TIME
+    };
+
+    public LaneCounter(String name) {
+        super(Type.OTHER, name, ATTRIBUTES);
+    }
+
+    public void setBacklog(long backlog) {
+        set(COUNTER_BACKLOG, backlog);
+    }
+
+    @Override
+    public long getBacklog() {
+        return get(COUNTER_BACKLOG);
+    }
+
+    /**
+     * Count a file opened after waiting for the given time.
+     */
+    public void addFileOpened(long waitTime) {
+        increment(COUNTER_FILE_OPENED);
+        set(COUNTER_LAST_WAIT_TIME, waitTime);
+        addAndGet(COUNTER_TOTAL_WAIT_TIME, waitTime);
+    }
+
+    @Override
+    public long getFileOpenedCount() {
+        return get(COUNTER_FILE_OPENED);
+    }
+
+    @Override
+    public long getLastWaitTime() {
+        return get(COUNTER_LAST_WAIT_TIME);
+    }
+
+    @Override
+    public long getTotalWaitTime() {
+        return get(COUNTER_TOTAL_WAIT_TIME);
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.weejinfu.flume.instrumentation;
+
+/**
+ * Backlog and latency of one priority lane of a spooling directory.
+ */
+public interface LaneCounterMBean {
+
+    long getBacklog();
+
+    long getFileOpenedCount();
+
+    long getLastWaitTime();
+
+    long getTotalWaitTime();
+
+    long getStartTime();
+
+    long getStopTime();
+
+    String getType();
+
+}
@@ -0,0 +1,113 @@
+package com.weejinfu.flume.instrumentation;
+
+import com.google.common.collect.Maps;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.instrumentation.MonitoredCounterGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counters of the records accepted and dropped by the record filters of
+ * the deserializers of one source. Deserializers are created for every
+ * file, so the counters registered under a name are shared through
+ * {@link #getInstance(String)}, and unregistered once every user has
+ * given them back through {@link #release(RecordFilterCounter)}.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class RecordFilterCounter extends MonitoredCounterGroup
+        implements RecordFilterCounterMBean {
+
+    private static final String COUNTER_RECORD_ACCEPTED = "record.filter.accepted";
+    private static final String COUNTER_RECORD_EXCLUDED = "record.filter.excluded";
+    private static final String COUNTER_RECORD_SAMPLED_OUT = "record.filter.sampled.out";
+
+    private static final String[] ATTRIBUTES = {
+            COUNTER_RECORD_ACCEPTED, COUNTER_RECORD_EXCLUDED, COUNTER_RECORD_SAMPLED_OUT
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordFilterCounter.class);
+
+    private static final Map<String, RecordFilterCounter> INSTANCES = Maps.newHashMap();
+
+    private final String name;
+    // users of a registered counter, guarded by the class
+    private int references;
+
+    public RecordFilterCounter(String name) {
+        super(Type.OTHER, name, ATTRIBUTES);
+        this.name = name;
+    }
+
+    /**
+     * The started counter registered under a name, created on first use.
+     * Every call must be matched by a {@link #release(RecordFilterCounter)}.
+     */
+    public static synchronized RecordFilterCounter getInstance(String name) {
+        RecordFilterCounter counter = INSTANCES.get(name);
+        if (counter == null) {
+            counter = new RecordFilterCounter(name);
+            counter.start();
+            INSTANCES.put(name, counter);
+        }
+        counter.references++;
+        return counter;
+    }
+
+    /**
+     * Give back a counter of {@link #getInstance(String)}: the last user
+     * stops and unregisters it. Other counters are left alone.
+     */
+    public static synchronized void release(RecordFilterCounter counter) {
+        if (INSTANCES.get(counter.name) != counter || --counter.references > 0) {
+            return;
+        }
+        INSTANCES.remove(counter.name);
+        counter.stop();
+        try {
+            ObjectName objectName = new ObjectName("org.apache.flume."
+                    + Type.OTHER.name().toLowerCase(Locale.ENGLISH) + ":type=" + counter.name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to unregister record filter counter " + counter.name, e);
+        }
+    }
+
+    public long incrementRecordAcceptedCount() {
+        return increment(COUNTER_RECORD_ACCEPTED);
+    }
+
+    @Override
+    public long getRecordAcceptedCount() {
+        return get(COUNTER_RECORD_ACCEPTED);
+    }
+
+    public long incrementRecordExcludedCount() {
+        return increment(COUNTER_RECORD_EXCLUDED);
+    }
+
+    @Override
+    public long getRecordExcludedCount() {
+        return get(COUNTER_RECORD_EXCLUDED);
+    }
+
+    public long incrementRecordSampledOutCount() {
+        return increment(COUNTER_RECORD_SAMPLED_OUT);
+    }
+
+    @Override
+    public long getRecordSampledOutCount() {
+        return get(COUNTER_RECORD_SAMPLED_OUT);
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.weejinfu.flume.instrumentation;
+
+/**
+ * Counts of the records seen by the record filters of a source.
+ */
+public interface RecordFilterCounterMBean {
+
+    long getRecordAcceptedCount();
+
+    long getRecordExcludedCount();
+
+    long getRecordSampledOutCount();
+
+    long getStartTime();
+
+    long getStopTime();
+
+    String getType();
+
+}
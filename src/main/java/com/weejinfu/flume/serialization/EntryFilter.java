@@ -0,0 +1,144 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.Context;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the entries of an archive to read by name and uncompressed size,
+ * so that the others are skipped without being inflated.
+ *
+ * <p/>Name patterns are comma separated and either globs (the default, or
+ * with a "glob:" prefix) or regular expressions with a "regex:" prefix.
+ * In globs "*" and "?" don't match "/" while "**" does, so "**.log"
+ * selects log files in any directory. An entry is read if it is a file,
+ * matches one of the include patterns (if any), none of the exclude
+ * patterns, and its size is within the configured bounds.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class EntryFilter {
+
+    public static final String INCLUDE_KEY = "includeEntries";
+    public static final String EXCLUDE_KEY = "excludeEntries";
+    public static final String MIN_SIZE_KEY = "minEntrySize";
+    public static final String MAX_SIZE_KEY = "maxEntrySize";
+
+    private static final String GLOB_PREFIX = "glob:";
+    private static final String REGEX_PREFIX = "regex:";
+
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final long minSize;
+    private final long maxSize;
+
+    public EntryFilter(List<Pattern> includes, List<Pattern> excludes,
+                       long minSize, long maxSize) {
+        if (minSize < 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid entry size range ["
+                    + minSize + ", " + maxSize + "]");
+        }
+        this.includes = ImmutableList.copyOf(includes);
+        this.excludes = ImmutableList.copyOf(excludes);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Build the filter configured in a deserializer context.
+     */
+    public static EntryFilter fromContext(Context context) {
+        return new EntryFilter(parsePatterns(context.getString(INCLUDE_KEY)),
+                parsePatterns(context.getString(EXCLUDE_KEY)),
+                context.getLong(MIN_SIZE_KEY, 0L),
+                context.getLong(MAX_SIZE_KEY, Long.MAX_VALUE));
+    }
+
+    /**
+     * Whether any condition is configured at all.
+     */
+    public boolean isActive() {
+        return !includes.isEmpty() || !excludes.isEmpty()
+                || minSize > 0 || maxSize < Long.MAX_VALUE;
+    }
+
+    /**
+     * @param name
+     *        Name of the entry, with "/" separated directories
+     *
+     * @param size
+     *        Uncompressed size of the entry
+     */
+    public boolean accept(String name, long size) {
+        if (name.endsWith("/") || size < minSize || size > maxSize) {
+            return false;
+        }
+        if (!includes.isEmpty() && !matchesAny(includes, name)) {
+            return false;
+        }
+        return !matchesAny(excludes, name);
+    }
+
+    public boolean accept(ZipArchive.Entry entry) {
+        return accept(entry.getName(), entry.getSize());
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static List<Pattern> parsePatterns(String patterns) {
+        if (patterns == null) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<Pattern> result = ImmutableList.builder();
+        for (String pattern : Splitter.on(',').trimResults().omitEmptyStrings().split(patterns)) {
+            if (pattern.startsWith(REGEX_PREFIX)) {
+                result.add(Pattern.compile(pattern.substring(REGEX_PREFIX.length())));
+            } else if (pattern.startsWith(GLOB_PREFIX)) {
+                result.add(globToPattern(pattern.substring(GLOB_PREFIX.length())));
+            } else {
+                result.add(globToPattern(pattern));
+            }
+        }
+        return result.build();
+    }
+
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (literalStart < i) {
+                regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            }
+            if (c == '?') {
+                regex.append("[^/]");
+            } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append("[^/]*");
+            }
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+}
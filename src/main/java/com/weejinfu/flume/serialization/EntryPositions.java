@@ -0,0 +1,32 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Positions kept in the tracker by deserializers reading archives entry by
+ * entry: the index of the entry in the high bits and the offset within the
+ * uncompressed entry in the low {@link #ENTRY_SHIFT} bits.
+ */
+final class EntryPositions {
+
+    static final int ENTRY_SHIFT = 40;
+    static final long MAX_ENTRY_OFFSET = (1L << ENTRY_SHIFT) - 1;
+
+    private EntryPositions() {
+    }
+
+    static long encode(int entryIndex, long offset) {
+        Preconditions.checkArgument(offset >= 0 && offset <= MAX_ENTRY_OFFSET,
+                "Entry offset out of range: %s", offset);
+        return ((long) entryIndex << ENTRY_SHIFT) | offset;
+    }
+
+    static int entryIndex(long position) {
+        return (int) (position >>> ENTRY_SHIFT);
+    }
+
+    static long offset(long position) {
+        return position & MAX_ENTRY_OFFSET;
+    }
+
+}
@@ -0,0 +1,341 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import org.apache.flume.Context;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies fields of event bodies into headers, for channel selectors and
+ * path templates to route on: top level keys of a JSON object, or columns
+ * of delimiter separated text. Fields are taken from the start of the body,
+ * its first JSON object or its first line.
+ *
+ * <p/>Bodies are scanned once, byte by byte, and Strings are only created
+ * for the values of the configured fields. Both settings are comma
+ * separated lists of "field:header" pairs, the header defaulting to the
+ * field name (for JSON keys) or to "column" and the index (for columns):
+ * <pre>
+ * extractJsonKeys = tenant:tenantId, level
+ * extractColumns = 0:timestamp, 3:tenant
+ * columnDelimiter = \t
+ * </pre>
+ * JSON strings are unescaped, other JSON values are copied as they are.
+ * Keys of nested objects are not extracted.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class FieldExtractor {
+
+    public static final String JSON_KEYS_KEY = "extractJsonKeys";
+    public static final String COLUMNS_KEY = "extractColumns";
+    public static final String COLUMN_DELIMITER_KEY = "columnDelimiter";
+    public static final String COLUMN_DELIMITER_DEFAULT = "\t";
+
+    private final byte[][] jsonKeys;
+    private final String[] jsonHeaders;
+    private final int[] columns;
+    private final String[] columnHeaders;
+    private final byte[] delimiter;
+
+    private FieldExtractor(List<String[]> jsonFields, List<String[]> columnFields,
+                           String delimiter) {
+        this.jsonKeys = new byte[jsonFields.size()][];
+        this.jsonHeaders = new String[jsonFields.size()];
+        for (int i = 0; i < jsonKeys.length; i++) {
+            jsonKeys[i] = jsonFields.get(i)[0].getBytes(Charsets.UTF_8);
+            jsonHeaders[i] = jsonFields.get(i)[1];
+        }
+        this.columns = new int[columnFields.size()];
+        this.columnHeaders = new String[columnFields.size()];
+        for (int i = 0; i < columns.length; i++) {
+            try {
+                columns[i] = Integer.parseInt(columnFields.get(i)[0]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid column index in " + COLUMNS_KEY
+                        + ": " + columnFields.get(i)[0]);
+            }
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("Negative column index in " + COLUMNS_KEY
+                        + ": " + columns[i]);
+            }
+            columnHeaders[i] = columnFields.get(i)[1];
+        }
+        if (jsonKeys.length > 0 && columns.length > 0) {
+            throw new IllegalArgumentException("Only one of the configuration parameters "
+                    + JSON_KEYS_KEY + " and " + COLUMNS_KEY + " may be set");
+        }
+        if (delimiter.isEmpty()) {
+            throw new IllegalArgumentException("Configuration parameter "
+                    + COLUMN_DELIMITER_KEY + " must not be empty");
+        }
+        this.delimiter = delimiter.getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Build the extractor configured in a deserializer context.
+     * @return null if no fields are configured
+     */
+    public static FieldExtractor fromContext(Context context) {
+        List<String[]> jsonFields = parseFields(context.getString(JSON_KEYS_KEY), "");
+        List<String[]> columnFields = parseFields(context.getString(COLUMNS_KEY), "column");
+        if (jsonFields.isEmpty() && columnFields.isEmpty()) {
+            return null;
+        }
+        return new FieldExtractor(jsonFields, columnFields,
+                context.getString(COLUMN_DELIMITER_KEY, COLUMN_DELIMITER_DEFAULT));
+    }
+
+    private static List<String[]> parseFields(String fields, String headerPrefix) {
+        List<String[]> result = Lists.newArrayList();
+        if (fields == null) {
+            return result;
+        }
+        for (String field : Splitter.on(',').trimResults().omitEmptyStrings().split(fields)) {
+            int colon = field.lastIndexOf(':');
+            if (colon < 0) {
+                result.add(new String[] { field, headerPrefix + field });
+            } else {
+                result.add(new String[] { field.substring(0, colon).trim(),
+                        field.substring(colon + 1).trim() });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the configured fields found in the body to the headers.
+     */
+    public void extract(byte[] body, Map<String, String> headers) {
+        if (jsonKeys.length > 0) {
+            extractJson(body, headers);
+        } else {
+            extractColumns(body, headers);
+        }
+    }
+
+    private void extractColumns(byte[] body, Map<String, String> headers) {
+        int lastColumn = 0;
+        for (int column : columns) {
+            lastColumn = Math.max(lastColumn, column);
+        }
+        int column = 0;
+        int start = 0;
+        int i = 0;
+        while (column <= lastColumn) {
+            boolean endOfLine = i == body.length || body[i] == '\n';
+            if (endOfLine || matchesDelimiter(body, i)) {
+                int end = i > start && endOfLine && body[i - 1] == '\r' ? i - 1 : i;
+                for (int j = 0; j < columns.length; j++) {
+                    if (columns[j] == column) {
+                        headers.put(columnHeaders[j], new String(body, start, end - start,
+                                Charsets.UTF_8));
+                    }
+                }
+                if (endOfLine) {
+                    return;
+                }
+                column++;
+                i += delimiter.length;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private boolean matchesDelimiter(byte[] body, int pos) {
+        if (pos + delimiter.length > body.length) {
+            return false;
+        }
+        for (int i = 0; i < delimiter.length; i++) {
+            if (body[pos + i] != delimiter[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void extractJson(byte[] body, Map<String, String> headers) {
+        int found = 0;
+        // whether each open bracket is an object rather than an array
+        boolean[] objects = new boolean[16];
+        int depth = 0;
+        boolean expectKey = false;
+        int i = 0;
+        while (i < body.length && found < jsonKeys.length) {
+            byte b = body[i];
+            if (b == '"') {
+                int end = stringEnd(body, i + 1);
+                if (end < 0) {
+                    return;
+                }
+                int field = expectKey && depth == 1 ? fieldOf(body, i + 1, end) : -1;
+                i = end + 1;
+                if (expectKey) {
+                    expectKey = false;
+                    i = skipWhitespace(body, i);
+                    if (i >= body.length || body[i] != ':') {
+                        return;
+                    }
+                    i = skipWhitespace(body, i + 1);
+                    if (field >= 0 && i < body.length) {
+                        int valueEnd = valueEnd(body, i);
+                        if (valueEnd < 0) {
+                            return;
+                        }
+                        headers.put(jsonHeaders[field], body[i] == '"'
+                                ? unescape(body, i + 1, valueEnd - 1)
+                                : new String(body, i, valueEnd - i, Charsets.UTF_8));
+                        found++;
+                        i = valueEnd;
+                    }
+                }
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                if (depth == objects.length) {
+                    objects = Arrays.copyOf(objects, depth * 2);
+                }
+                objects[depth++] = b == '{';
+                expectKey = b == '{';
+            } else if (b == '}' || b == ']') {
+                if (--depth <= 0) {
+                    return;
+                }
+            } else if (b == ',' && depth > 0) {
+                expectKey = objects[depth - 1];
+            }
+            i++;
+        }
+    }
+
+    private int fieldOf(byte[] body, int start, int end) {
+        for (int i = 0; i < jsonKeys.length; i++) {
+            byte[] key = jsonKeys[i];
+            if (key.length == end - start && regionMatches(body, start, key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] body, int start, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (body[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // index of the closing quote of the string starting at start
+    private static int stringEnd(byte[] body, int start) {
+        for (int i = start; i < body.length; i++) {
+            if (body[i] == '\\') {
+                i++;
+            } else if (body[i] == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // end (exclusive) of the value starting at start
+    private static int valueEnd(byte[] body, int start) {
+        byte b = body[start];
+        if (b == '"') {
+            int end = stringEnd(body, start + 1);
+            return end < 0 ? -1 : end + 1;
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            for (int i = start; i < body.length; i++) {
+                byte c = body[i];
+                if (c == '"') {
+                    i = stringEnd(body, i + 1);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+            }
+            return -1;
+        }
+        int i = start;
+        while (i < body.length && body[i] != ',' && body[i] != '}' && body[i] != ']'
+                && !isWhitespace(body[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipWhitespace(byte[] body, int i) {
+        while (i < body.length && isWhitespace(body[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static String unescape(byte[] body, int start, int end) {
+        int backslash = start;
+        while (backslash < end && body[backslash] != '\\') {
+            backslash++;
+        }
+        if (backslash == end) {
+            return new String(body, start, end - start, Charsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(new String(body, start, backslash - start, Charsets.UTF_8));
+        int i = backslash;
+        int run = i;
+        while (i < end) {
+            if (body[i] != '\\' || i + 1 >= end) {
+                i++;
+                continue;
+            }
+            sb.append(new String(body, run, i - run, Charsets.UTF_8));
+            char c = (char) body[i + 1];
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (i + 6 <= end) {
+                        try {
+                            sb.append((char) Integer.parseInt(
+                                    new String(body, i + 2, 4, Charsets.US_ASCII), 16));
+                        } catch (NumberFormatException e) {
+                            sb.append(new String(Arrays.copyOfRange(body, i, i + 6),
+                                    Charsets.US_ASCII));
+                        }
+                        i += 4;
+                    }
+                    break;
+                default: sb.append(c);
+            }
+            i += 2;
+            run = i;
+        }
+        sb.append(new String(body, run, end - run, Charsets.UTF_8));
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.collect.Maps;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * An {@link Event} whose body is a range of a zip entry which is only
+ * inflated from the mapped archive the first time {@link #getBody()} is
+ * called. Events dropped on their headers alone never cost any
+ * decompression.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class LazyZipEvent implements Event {
+
+    private final ZipArchive archive;
+    private final ZipArchive.Entry entry;
+    private final long offset;
+    private final int length;
+    private Map<String, String> headers;
+    private byte[] body;
+
+    /**
+     * @param archive
+     *        Archive holding the entry
+     *
+     * @param entry
+     *        Entry the body is read from
+     *
+     * @param offset
+     *        Offset of the body in the uncompressed entry
+     *
+     * @param length
+     *        Length of the body
+     */
+    public LazyZipEvent(ZipArchive archive, ZipArchive.Entry entry,
+                        long offset, int length) {
+        this.archive = archive;
+        this.entry = entry;
+        this.offset = offset;
+        this.length = length;
+        this.headers = Maps.newHashMap();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public void setHeaders(Map<String, String> headers) {
+        this.headers = headers;
+    }
+
+    @Override
+    public synchronized byte[] getBody() {
+        if (body == null) {
+            try {
+                body = archive.read(entry, offset, length);
+            } catch (IOException e) {
+                throw new FlumeException("Unable to inflate entry " + entry.getName()
+                        + " of " + archive.getFile(), e);
+            }
+        }
+        return body;
+    }
+
+    @Override
+    public synchronized void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    /** Length of the body, without inflating it. */
+    public synchronized int getBodyLength() {
+        return body != null ? body.length : length;
+    }
+
+    /** Whether the body has been inflated (or set) already. */
+    public synchronized boolean isBodyLoaded() {
+        return body != null;
+    }
+
+    @Override
+    public String toString() {
+        return "[Event headers = " + headers + ", entry = " + entry.getName()
+                + ", offset = " + offset + ", length = " + length + " ]";
+    }
+
+}
@@ -0,0 +1,381 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.RemoteMarkable;
+import org.apache.flume.serialization.ResettableInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A deserializer which groups lines into records, such as stack traces or
+ * pretty printed JSON: a record starts at a line matching
+ * {@link #START_PATTERN_KEY} (with {@link Matcher#lookingAt()}) or starting
+ * with {@link #START_PREFIX_KEY}, and holds all following lines up to the
+ * next such line. The trailing newline of a record is dropped.
+ *
+ * <p/>Lines are scanned in a byte window over the decompressed stream, and
+ * the pattern sees their bytes as ISO-8859-1 characters without decoding
+ * them, so it should only rely on ASCII. Records longer than
+ * {@link #MAX_RECORD_SIZE_KEY} bytes are split.
+ *
+ * <p/>The last record of the data is only complete once the following
+ * record starts or the data ends. While a tailed file may still grow (see
+ * {@link ResettableZipInputStream#isTail()}) it is held back until no more
+ * data has arrived for {@link #FLUSH_TIMEOUT_KEY} milliseconds, or until
+ * the tail of the file is finished (see
+ * {@link ResettableZipInputStream#finishTail()}), whichever comes first.
+ *
+ * <p/>Fields configured for a {@link FieldExtractor} are copied from every
+ * record into the headers of its event.
+ *
+ * <p/>Records rejected by a {@link RecordFilter} are skipped where they lie
+ * in the window, without being copied. A record split by the maximum size
+ * is filtered part by part.
+ *
+ * <p/>{@link #mark()} records the start of the first record not returned
+ * yet, so that the stream is always resumed at a record boundary.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class MultilineDeserializer implements EventDeserializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultilineDeserializer.class);
+
+    /** Regular expression matching the first line of a record. */
+    public static final String START_PATTERN_KEY = "startPattern";
+
+    /** Prefix of the first line of a record, an alternative to the pattern. */
+    public static final String START_PREFIX_KEY = "startPrefix";
+
+    public static final String MAX_RECORD_SIZE_KEY = "maxRecordSize";
+    public static final int MAX_RECORD_SIZE_DEFAULT = 1024 * 1024;
+
+    /** Milliseconds to wait for more lines of the last record of a tailed file. */
+    public static final String FLUSH_TIMEOUT_KEY = "flushTimeout";
+    public static final long FLUSH_TIMEOUT_DEFAULT = 0L;
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_PRESIZED_BATCH = 1024;
+
+    private final ResettableInputStream in;
+    private final RemoteMarkable markable;
+    private final Matcher startMatcher;
+    private final byte[] startPrefix;
+    private final int maxRecordSize;
+    private final long flushTimeout;
+    private final FieldExtractor fieldExtractor;
+    private final RecordFilter recordFilter;
+    private final ByteCharSequence line = new ByteCharSequence();
+    private byte[] window = new byte[WINDOW_SIZE];
+    // stream position of window[0]
+    private long windowPosition = -1;
+    // the record being assembled starts at recordStart, lines from lineStart
+    // on have not been looked at yet, the window holds data up to limit
+    private int recordStart;
+    private int lineStart;
+    private int limit;
+    // no newline between lineStart and scanned
+    private int scanned;
+    private long pendingSince = -1;
+    private volatile boolean isOpen;
+
+    protected MultilineDeserializer(Context context, ResettableInputStream in) {
+        Preconditions.checkArgument(in instanceof RemoteMarkable,
+                "%s requires a %s stream", getClass().getSimpleName(),
+                RemoteMarkable.class.getSimpleName());
+        this.in = in;
+        this.markable = (RemoteMarkable) in;
+        String pattern = context.getString(START_PATTERN_KEY);
+        String prefix = context.getString(START_PREFIX_KEY);
+        if ((pattern == null) == (prefix == null)) {
+            throw new IllegalArgumentException("Exactly one of the configuration parameters "
+                    + START_PATTERN_KEY + " and " + START_PREFIX_KEY + " must be set");
+        }
+        this.startMatcher = pattern == null ? null : Pattern.compile(pattern).matcher("");
+        this.startPrefix = prefix == null ? null : prefix.getBytes(Charsets.UTF_8);
+        this.maxRecordSize = context.getInteger(MAX_RECORD_SIZE_KEY, MAX_RECORD_SIZE_DEFAULT);
+        if (maxRecordSize <= 0) {
+            throw new IllegalArgumentException("Configuration parameter " + MAX_RECORD_SIZE_KEY
+                    + " must be greater than zero: " + maxRecordSize);
+        }
+        this.flushTimeout = context.getLong(FLUSH_TIMEOUT_KEY, FLUSH_TIMEOUT_DEFAULT);
+        this.fieldExtractor = FieldExtractor.fromContext(context);
+        this.recordFilter = RecordFilter.fromContext(context);
+        this.isOpen = true;
+    }
+
+    /**
+     * Reads the next complete record
+     * @return event holding the record, or null if there is none yet
+     * @throws IOException
+     */
+    @Override
+    public Event readEvent() throws IOException {
+        ensureOpen();
+        if (windowPosition < 0) {
+            windowPosition = in.tell();
+        }
+        Event event;
+        while (true) {
+            if (lineStart - recordStart >= maxRecordSize) {
+                if ((event = split()) != null) {
+                    return event;
+                }
+                continue;
+            }
+            int end = indexOf('\n', Math.max(lineStart, scanned), limit);
+            if (end < 0) {
+                scanned = limit;
+                if (limit - recordStart >= maxRecordSize) {
+                    if ((event = split()) != null) {
+                        return event;
+                    }
+                    continue;
+                }
+                if (!fill()) {
+                    if (limit == recordStart || !flushPending()) {
+                        return null;
+                    }
+                    // the last line may start a record without ending with a newline
+                    if (lineStart > recordStart && lineStart < limit
+                            && isRecordStart(lineStart, limit)) {
+                        event = emit(lineStart, true);
+                    } else {
+                        event = emit(limit, true);
+                    }
+                    if (event != null) {
+                        return event;
+                    }
+                }
+                continue;
+            }
+            if (lineStart > recordStart && isRecordStart(lineStart, end)) {
+                if ((event = emit(lineStart, true)) != null) {
+                    return event;
+                }
+            }
+            lineStart = end + 1;
+        }
+    }
+
+    private Event split() {
+        logger.warn("Record exceeds maxRecordSize ({}), splitting it", maxRecordSize);
+        return emit(recordStart + maxRecordSize, false);
+    }
+
+    private boolean isRecordStart(int start, int end) {
+        if (startPrefix != null) {
+            if (end - start < startPrefix.length) {
+                return false;
+            }
+            for (int i = 0; i < startPrefix.length; i++) {
+                if (window[start + i] != startPrefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        line.set(window, start, end);
+        return startMatcher.reset(line).lookingAt();
+    }
+
+    // whether to return the last record now, or wait for more of it
+    private boolean flushPending() {
+        if (!mayGrow() || flushTimeout <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (pendingSince < 0) {
+            pendingSince = now;
+        }
+        return now - pendingSince >= flushTimeout;
+    }
+
+    // whether the data may still grow: asked every time, as the tail of a
+    // file is finished once it has been idle
+    private boolean mayGrow() {
+        if (!(in instanceof ResettableZipInputStream)) {
+            return false;
+        }
+        ResettableZipInputStream zin = (ResettableZipInputStream) in;
+        return zin.isTail() && !zin.isTailFinished();
+    }
+
+    // the record up to end, without its trailing newline unless it is split,
+    // null if the record filter rejects it
+    private Event emit(int end, boolean complete) {
+        int bodyEnd = end;
+        if (complete && bodyEnd > recordStart && window[bodyEnd - 1] == '\n') {
+            bodyEnd--;
+            if (bodyEnd > recordStart && window[bodyEnd - 1] == '\r') {
+                bodyEnd--;
+            }
+        }
+        Event event = null;
+        if (recordFilter == null || recordFilter.accept(window, recordStart, bodyEnd)) {
+            byte[] body = Arrays.copyOfRange(window, recordStart, bodyEnd);
+            event = EventBuilder.withBody(body);
+            if (fieldExtractor != null) {
+                fieldExtractor.extract(body, event.getHeaders());
+            }
+        }
+        recordStart = end;
+        lineStart = Math.max(lineStart, end);
+        pendingSince = -1;
+        return event;
+    }
+
+    /**
+     * Read more data after the window, dropping the records already returned.
+     * @return false if there is no more data for now
+     */
+    private boolean fill() throws IOException {
+        if (recordStart > 0) {
+            System.arraycopy(window, recordStart, window, 0, limit - recordStart);
+            windowPosition += recordStart;
+            lineStart -= recordStart;
+            scanned = Math.max(0, scanned - recordStart);
+            limit -= recordStart;
+            recordStart = 0;
+        }
+        if (limit == window.length) {
+            window = Arrays.copyOf(window, window.length * 2);
+        }
+        int n = in.read(window, limit, window.length - limit);
+        if (n <= 0) {
+            return false;
+        }
+        limit += n;
+        pendingSince = -1;
+        return true;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (window[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Batch record read
+     * @param numEvents Maximum number of events to return.
+     * @return List of events containing read records
+     * @throws IOException
+     */
+    @Override
+    public List<Event> readEvents(int numEvents) throws IOException {
+        ensureOpen();
+        List<Event> events = Lists.newArrayListWithCapacity(
+                Math.min(numEvents, MAX_PRESIZED_BATCH));
+        for (int i = 0; i < numEvents; i++) {
+            Event event = readEvent();
+            if (event != null) {
+                events.add(event);
+            } else {
+                break;
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public void mark() throws IOException {
+        ensureOpen();
+        if (windowPosition >= 0) {
+            markable.markPosition(windowPosition + recordStart);
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        ensureOpen();
+        in.reset();
+        windowPosition = -1;
+        recordStart = lineStart = limit = scanned = 0;
+        pendingSince = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isOpen) {
+            reset();
+            in.close();
+            if (recordFilter != null) {
+                recordFilter.close();
+            }
+            isOpen = false;
+        }
+    }
+
+    private void ensureOpen() {
+        if (!isOpen) {
+            throw new IllegalStateException("Serializer has been closed");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // Nested classes:
+    ///////////////////////////////////////////////////////////////////////////////
+    /** The bytes of a line seen as ISO-8859-1 characters, without copying them. */
+    private static class ByteCharSequence implements CharSequence {
+        private byte[] bytes;
+        private int start;
+        private int end;
+
+        void set(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[start + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            ByteCharSequence sub = new ByteCharSequence();
+            sub.set(bytes, start + from, start + to);
+            return sub;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, end - start, Charsets.ISO_8859_1);
+        }
+    }
+
+    /** Builder implementations MUST have a public no-arg constructor */
+    public static class Builder implements EventDeserializer.Builder {
+
+        @Override
+        public MultilineDeserializer build(Context context, ResettableInputStream in) {
+            return new MultilineDeserializer(context, in);
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.weejinfu.flume.instrumentation.RecordFilterCounter;
+import org.apache.flume.Context;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.util.List;
+
+/**
+ * Drops records by their content before events are built for them, in
+ * place of interceptors which only see the events after the body has been
+ * copied and wrapped.
+ *
+ * <p/>Records are matched byte by byte where they lie in the buffer of the
+ * deserializer, so rejected records are never copied. Matchers are comma
+ * separated strings, compared as UTF-8 bytes: a record is kept if it
+ * contains one of the {@link #INCLUDE_KEY} strings (if any) and none of the
+ * {@link #EXCLUDE_KEY} strings. Of the records kept, a fraction of
+ * {@link #SAMPLE_RATE_KEY} is then selected by a hash of their bytes, so the
+ * same records are selected again when a file is replayed or read by
+ * another agent.
+ * <pre>
+ * excludeContains = " DEBUG ", GET /health
+ * sampleRate = 0.1
+ * </pre>
+ * The outcome is counted in the {@link RecordFilterCounter} named by
+ * {@link #COUNTER_NAME_KEY}, which the source sets to its own name. The
+ * filter holds on to that counter until it is {@link #close()}d.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class RecordFilter {
+
+    public static final String INCLUDE_KEY = "includeContains";
+    public static final String EXCLUDE_KEY = "excludeContains";
+
+    /** Fraction of the records to keep, between 0 and 1. */
+    public static final String SAMPLE_RATE_KEY = "sampleRate";
+    public static final double SAMPLE_RATE_DEFAULT = 1.0;
+
+    public static final String COUNTER_NAME_KEY = "filterCounterName";
+
+    private final byte[][] includes;
+    private final byte[][] excludes;
+    // records whose unsigned hash is below the threshold are kept
+    private final long sampleThreshold;
+    private final RecordFilterCounter counter;
+
+    public RecordFilter(List<String> includes, List<String> excludes, double sampleRate,
+                        RecordFilterCounter counter) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("Configuration parameter " + SAMPLE_RATE_KEY
+                    + " must be between 0 and 1: " + sampleRate);
+        }
+        this.includes = toBytes(includes);
+        this.excludes = toBytes(excludes);
+        this.sampleThreshold = (long) (sampleRate * (1L << 32));
+        this.counter = counter;
+    }
+
+    /**
+     * Build the filter configured in a deserializer context.
+     * @return null if nothing is configured
+     */
+    public static RecordFilter fromContext(Context context) {
+        List<String> includes = parseMatchers(context.getString(INCLUDE_KEY));
+        List<String> excludes = parseMatchers(context.getString(EXCLUDE_KEY));
+        double sampleRate = SAMPLE_RATE_DEFAULT;
+        String rate = context.getString(SAMPLE_RATE_KEY);
+        if (rate != null) {
+            try {
+                sampleRate = Double.parseDouble(rate.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + SAMPLE_RATE_KEY + ": " + rate);
+            }
+        }
+        if (includes.isEmpty() && excludes.isEmpty() && sampleRate == SAMPLE_RATE_DEFAULT) {
+            return null;
+        }
+        String name = context.getString(COUNTER_NAME_KEY);
+        RecordFilterCounter counter = name == null
+                ? new RecordFilterCounter("recordFilter") : RecordFilterCounter.getInstance(name);
+        return new RecordFilter(includes, excludes, sampleRate, counter);
+    }
+
+    private static List<String> parseMatchers(String matchers) {
+        List<String> result = Lists.newArrayList();
+        if (matchers == null) {
+            return result;
+        }
+        for (String matcher : Splitter.on(',').trimResults().omitEmptyStrings().split(matchers)) {
+            // quotes keep leading and trailing blanks
+            if (matcher.length() >= 2 && matcher.startsWith("\"") && matcher.endsWith("\"")) {
+                matcher = matcher.substring(1, matcher.length() - 1);
+            }
+            if (!matcher.isEmpty()) {
+                result.add(matcher);
+            }
+        }
+        return result;
+    }
+
+    private static byte[][] toBytes(List<String> matchers) {
+        byte[][] bytes = new byte[matchers.size()][];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = matchers.get(i).getBytes(Charsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    public RecordFilterCounter getCounter() {
+        return counter;
+    }
+
+    /** Give back the counter, once the filter is no longer used. */
+    public void close() {
+        RecordFilterCounter.release(counter);
+    }
+
+    /**
+     * Whether to build an event for the record between start and end.
+     */
+    public boolean accept(byte[] buf, int start, int end) {
+        if ((includes.length > 0 && !containsAny(buf, start, end, includes))
+                || containsAny(buf, start, end, excludes)) {
+            counter.incrementRecordExcludedCount();
+            return false;
+        }
+        if (sampleThreshold <= 0xffffffffL && (hash(buf, start, end) & 0xffffffffL) >= sampleThreshold) {
+            counter.incrementRecordSampledOutCount();
+            return false;
+        }
+        counter.incrementRecordAcceptedCount();
+        return true;
+    }
+
+    public boolean accept(byte[] body) {
+        return accept(body, 0, body.length);
+    }
+
+    private static boolean containsAny(byte[] buf, int start, int end, byte[][] matchers) {
+        for (byte[] matcher : matchers) {
+            if (indexOf(buf, start, end, matcher) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static int indexOf(byte[] buf, int start, int end, byte[] matcher) {
+        byte first = matcher[0];
+        int last = end - matcher.length;
+        for (int i = start; i <= last; i++) {
+            if (buf[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < matcher.length && buf[i + j] == matcher[j]) {
+                j++;
+            }
+            if (j == matcher.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // FNV-1a with the murmur3 finalizer, which spreads it over all bits
+    static int hash(byte[] buf, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            h ^= buf[i] & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
@@ -1,6 +1,19 @@
 package com.weejinfu.flume.serialization;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weejinfu.flume.serialization.codec.BgzfCodec;
+import com.weejinfu.flume.serialization.codec.BgzfIndex;
+import com.weejinfu.flume.serialization.codec.BgzfInputStream;
+import com.weejinfu.flume.serialization.codec.CompressionCodec;
+import com.weejinfu.flume.serialization.codec.CompressionCodecs;
+import com.weejinfu.flume.serialization.codec.GzipCodec;
+import com.weejinfu.flume.serialization.codec.GzipMemberInputStream;
+import com.weejinfu.flume.serialization.codec.ZipCodec;
 import org.apache.flume.annotations.InterfaceAudience;
 import org.apache.flume.annotations.InterfaceStability;
 import org.apache.flume.serialization.*;
@@ -11,24 +24,59 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
 
 /**
- * For reading zip file, read one zip entry to buffer, so if
- * one entry is bigger than the buf size, will throw exception.
+ * For reading compressed files. The format of each file is picked by
+ * {@link CompressionCodecs} (zip, gzip, zlib, raw deflate or a plugged in
+ * {@link CompressionCodec}) and the decompressed data is streamed through a
+ * fixed size buffer. Positions are offsets in the decompressed data.
  * This version can only support one entry in a zip file.
  *
+ * <p/>Seeks are only applied on the next read, so callers which merely
+ * {@link #seek(long)} over the data (see {@link ZipDeserializer}'s lazy
+ * mode) never pay for decompression. Seeking backwards out of the buffer
+ * decompresses the file again from its start.
+ *
+ * <p/>Entries stored without compression are not copied at all: they are
+ * read straight from a slice of the memory mapped file, seeking is O(1) and
+ * the zip size limit does not apply to them. Deflated entries are streamed,
+ * and the file is only mapped when the archive is asked for; the mapping is
+ * released on {@link #close()}.
+ *
+ * <p/>Blocked gzip (BGZF) files are read through a {@link BgzfIndex}: seeks
+ * start decompressing at the block holding the new position, so resuming
+ * only inflates that one block again, and with more than one decompress
+ * thread the blocks ahead of the reader are inflated in parallel.
+ *
+ * <p/>Up to maxNestingDepth archives nested in the file (a zip in a zip, a
+ * gzip file in a zip, ...) are detected by their magic bytes and expanded
+ * on the fly, each level streaming through its own inflater. Positions are
+ * then offsets in the innermost data, and {@link #getNestedPath()} names
+ * the entries that were opened.
+ *
+ * <p/>In tail mode a multi-member gzip file, or a BGZF file whose blocks are
+ * gzip members too, may still be appended to: only complete members are
+ * read (see {@link GzipMemberInputStream}), the end of the data is not
+ * final, and reads return more data once more members have been written. The member boundaries seen are kept, so that seeking
+ * backwards starts inflating again at a member boundary. An unterminated
+ * last line is held back until the next member or {@link #finishTail()}.
+ *
  * Created by Jason on 15/8/12.
  */
 @InterfaceAudience.Private
@@ -40,9 +88,26 @@ public class ResettableZipInputStream extends ResettableInputStream
 
     public static final int DEFAULT_BUF_SIZE = 16384;
 
-    public static final int MAX_ENTRY_SIZE = 65536; // default max zip entry size 64K
+    /**
+     * @deprecated entries are streamed through a buffer of
+     * {@link #DEFAULT_BUF_SIZE}, whatever their size, and this limit is no
+     * longer enforced
+     */
+    @Deprecated
+    public static final int MAX_ENTRY_SIZE = 65536;
+
+    /**
+     * @deprecated zip files of any size, including Zip64, are streamed and
+     * this limit is no longer enforced
+     */
+    @Deprecated
+    public static final int MAX_ZIP_SIZE = 16384;
 
-    public static final int MAX_ZIP_SIZE = 16384; // default max zip file size 16K
+    /** Separates the levels of a nested path, as in jar URLs. */
+    public static final String NESTED_PATH_SEPARATOR = "!/";
+
+    /** BGZF blocks read ahead per decompress thread. */
+    static final int BLOCKS_PER_THREAD = 4;
 
     /**
      * The minimum acceptable buffer size to store bytes read
@@ -54,16 +119,37 @@ public class ResettableZipInputStream extends ResettableInputStream
 
     private final File file;
     private final PositionTracker tracker;
-    private ZipInputStream in;
+    private final CompressionCodec codec;
+    private final int bufSize;
+    private InputStream in;
     private ReadableByteChannel chan;
-    private final ByteBuffer buf;
+    private ByteBuffer buf;
+    // offset of the first byte of buf in the decompressed data
+    private long bufStart;
+    private boolean endOfStream;
     private final CharBuffer charBuf;
     private final byte[] byteBuf;
     private final long fileSize;
     private final CharsetDecoder decoder;
+    private final DecodeErrorPolicy decodeErrorPolicy;
     private long position;
     private long syncPosition;
     private int maxCharWidth;
+    private ZipArchive archive;
+    private boolean stored = false;
+    private final File blockIndexFile;
+    private final int decompressThreads;
+    private BgzfIndex blockIndex;
+    private ExecutorService inflaters;
+    private final int maxNestingDepth;
+    // entry of the zip file itself, null for other formats
+    private ZipEntry zipEntry;
+    private String nestedPath;
+    private final boolean tail;
+    // in tail mode, whether the writer is done with the file
+    private boolean tailFinished;
+    // uncompressed -> compressed offsets of the gzip member boundaries seen
+    private final NavigableMap<Long, Long> members;
 
 
     /**
@@ -122,34 +208,64 @@ public class ResettableZipInputStream extends ResettableInputStream
     public ResettableZipInputStream(File file, PositionTracker tracker,
                                      int bufSize, Charset charset, DecodeErrorPolicy decodeErrorPolicy)
             throws IOException {
+        this(file, tracker, bufSize, charset, decodeErrorPolicy, null, 1, 0, false);
+    }
+
+    /**
+     * Used by {@link Builder}, see there for the optional parameters.
+     */
+    private ResettableZipInputStream(File file, PositionTracker tracker,
+                                     int bufSize, Charset charset, DecodeErrorPolicy decodeErrorPolicy,
+                                     File blockIndexFile, int decompressThreads, int maxNestingDepth,
+                                     boolean tail)
+            throws IOException {
+        if (decompressThreads < 1) {
+            throw new IllegalArgumentException("Number of decompress threads must be positive: "
+                    + decompressThreads);
+        }
+        if (maxNestingDepth < 0) {
+            throw new IllegalArgumentException("Maximum nesting depth must not be negative: "
+                    + maxNestingDepth);
+        }
+        this.maxNestingDepth = maxNestingDepth;
+        this.blockIndexFile = blockIndexFile;
+        this.decompressThreads = decompressThreads;
         this.file = file;
         this.fileSize = file.length();
         this.tracker = tracker;
-        this.in = new ZipInputStream(new FileInputStream(file));
-        this.buf = ByteBuffer.allocateDirect(Math.max(Math.max(bufSize, MIN_BUF_SIZE), MAX_ENTRY_SIZE));
-        buf.flip();
+        this.codec = CompressionCodecs.forFile(file);
+        // BGZF blocks are gzip members, read one by one while the file grows
+        this.tail = tail && (codec instanceof GzipCodec || codec instanceof BgzfCodec);
+        this.members = new TreeMap<Long, Long>();
+        members.put(0L, 0L);
+        this.bufSize = Math.max(bufSize, MIN_BUF_SIZE);
         this.byteBuf = new byte[1]; // single byte
         this.charBuf = CharBuffer.allocate(2); // two chars for surrogate pairs
         charBuf.flip();
         this.decoder = charset.newDecoder();
+        this.decodeErrorPolicy = decodeErrorPolicy;
         this.position = 0;
         this.syncPosition = 0;
 
-        // get entry in zip file
-        ZipEntry zipEntry = in.getNextEntry();
-        if (null == zipEntry) {
-            // there no file in the zip file
-            throw new IOException("There is no compressed file in the zip file.");
-        }
-
-        // check zip size
-        if (fileSize > MAX_ZIP_SIZE) {
-            throw new IndexOutOfBoundsException("Zip size is out of file size limit "
-                    + MAX_ZIP_SIZE);
+        openStream(0);
+        if (zipEntry != null && zipEntry.getMethod() == ZipEntry.STORED && nestedPath == null) {
+            ZipArchive.Entry entry = getArchive().getEntry(zipEntry.getName());
+            if (entry == null) {
+                throw new IOException("Entry " + zipEntry.getName()
+                        + " is missing from the central directory of " + file);
+            }
+            // serve the entry straight from the mapped file, unless it spans
+            // two mapped segments of a big archive and would have to be copied
+            if (getArchive().hasContiguousData(entry)) {
+                in.close();
+                this.in = null;
+                this.chan = null;
+                this.buf = getArchive().slice(entry);
+                this.endOfStream = true;
+                this.stored = true;
+            }
         }
 
-        this.chan = Channels.newChannel(in);
-
         if(charset.name().startsWith("UTF-8")) {
             // some JDKs wrongly report 3 bytes max
             this.maxCharWidth = 4;
@@ -181,10 +297,129 @@ public class ResettableZipInputStream extends ResettableInputStream
         decoder.onMalformedInput(errorAction);
         decoder.onUnmappableCharacter(errorAction);
 
-        refillBuf();
         seek(tracker.getPosition());
     }
 
+    /**
+     * The archive being read, with its central directory loaded on first use.
+     */
+    public synchronized ZipArchive getArchive() throws IOException {
+        if (archive == null) {
+            archive = ZipArchive.open(file);
+        }
+        return archive;
+    }
+
+    /**
+     * The file being read.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Character set used for decoding text.
+     */
+    public Charset getCharset() {
+        return decoder.charset();
+    }
+
+    /**
+     * How decoding errors are handled.
+     */
+    public DecodeErrorPolicy getDecodeErrorPolicy() {
+        return decodeErrorPolicy;
+    }
+
+    /**
+     * The codec the file is read with.
+     */
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * The file name and the names of the entries leading to the nested
+     * archive being read, separated by {@link #NESTED_PATH_SEPARATOR}; null
+     * if no nested archive was expanded.
+     */
+    public String getNestedPath() {
+        return nestedPath;
+    }
+
+    /**
+     * Whether the file is read in tail mode, see {@link Builder#tail(boolean)}.
+     */
+    public boolean isTail() {
+        return tail;
+    }
+
+    /**
+     * In tail mode, declare that the file will not be appended to anymore,
+     * so that its unterminated last line is read too.
+     */
+    public void finishTail() {
+        tailFinished = true;
+        if (in instanceof GzipMemberInputStream) {
+            ((GzipMemberInputStream) in).finish();
+        }
+    }
+
+    /** Whether {@link #finishTail()} was called. */
+    public boolean isTailFinished() {
+        return tailFinished;
+    }
+
+    /**
+     * In tail mode, whether the file has grown since the end of its complete
+     * members was last reached, so that reading it may return more data.
+     */
+    public boolean hasTailGrown() throws IOException {
+        return !(in instanceof GzipMemberInputStream) || ((GzipMemberInputStream) in).hasGrown();
+    }
+
+    /**
+     * In tail mode, the length of the complete gzip members read so far.
+     */
+    public long getCompleteLength() {
+        return members.lastEntry().getValue();
+    }
+
+    /**
+     * Whether the file is a zip archive, for which {@link #getArchive()}
+     * and {@link #getEntry()} are available.
+     */
+    public boolean isZip() {
+        return codec instanceof ZipCodec;
+    }
+
+    /**
+     * Number of bytes left in the entry after the current position, or -1
+     * if the decompressed size is not known up front.
+     */
+    public synchronized long remaining() throws IOException {
+        if (stored) {
+            ensurePositioned();
+            return buf.remaining();
+        }
+        // from the local header streamed, the archive is only mapped when needed
+        if (isZip() && nestedPath == null && zipEntry != null && zipEntry.getSize() >= 0) {
+            return Math.max(0, zipEntry.getSize() - position);
+        }
+        return -1;
+    }
+
+    /**
+     * The central directory entry of the zip entry being read.
+     */
+    public ZipArchive.Entry getEntry() throws IOException {
+        ZipArchive zipArchive = getArchive();
+        if (zipArchive.getEntries().isEmpty()) {
+            throw new IOException("There is no compressed file in the zip file.");
+        }
+        return zipArchive.getEntries().get(0);
+    }
+
     @Override
     public synchronized int read() throws IOException {
         int len = read(byteBuf, 0, 1);
@@ -202,7 +437,8 @@ public class ResettableZipInputStream extends ResettableInputStream
     public synchronized int read(byte[] b, int off, int len) throws IOException {
         logger.trace("read(buf, {}, {})", off, len);
 
-        if (!buf.hasRemaining()) {
+        ensurePositioned();
+        if (!buf.hasRemaining() && !refillBuf()) {
             return -1;
         }
 
@@ -229,20 +465,16 @@ public class ResettableZipInputStream extends ResettableInputStream
         // The decoder can have issues with multi-byte characters.
         // This check ensures that there are at least maxCharWidth bytes in the buffer
         // before reaching EOF.
-//        if (buf.remaining() < maxCharWidth) {
-//            buf.clear();
-//            buf.flip();
-//            refillBuf();
-//        }
+        ensurePositioned();
+        if (buf.remaining() < maxCharWidth) {
+            refillBuf();
+        }
 
         int start = buf.position();
         charBuf.clear();
         charBuf.limit(1);
 
-        boolean isEndOfInput = false;
-        if (!buf.hasRemaining()) {
-            isEndOfInput = true;
-        }
+        boolean isEndOfInput = endOfStream;
 
         CoderResult res = decoder.decode(buf, charBuf, isEndOfInput);
         if (res.isMalformed() || res.isUnmappable()) {
@@ -299,11 +531,126 @@ public class ResettableZipInputStream extends ResettableInputStream
     }
 
 
-    // load the whole entry to the buf
-    private void refillBuf() throws IOException {
+    // (re)open the decompressed stream at its start, or for BGZF at the
+    // start of the block holding the given position
+    private void openStream(long target) throws IOException {
+        if (in != null) {
+            in.close();
+        }
+        long start = 0;
+        if (tail) {
+            Map.Entry<Long, Long> member = members.floorEntry(target);
+            start = member.getKey();
+            GzipMemberInputStream memberStream = new GzipMemberInputStream(file,
+                    member.getValue(), start, members);
+            if (tailFinished) {
+                memberStream.finish();
+            }
+            this.in = memberStream;
+        } else if (codec instanceof BgzfCodec) {
+            if (blockIndex == null) {
+                blockIndex = BgzfIndex.open(file, blockIndexFile);
+            }
+            int block = blockIndex.blockFor(target);
+            start = blockIndex.getUncompressedOffset(block);
+            this.in = new BgzfInputStream(file, blockIndex, block, getInflaters(),
+                    decompressThreads * BLOCKS_PER_THREAD);
+        } else {
+            this.in = expandNested(codec.decompress(new FileInputStream(file)));
+        }
+        this.chan = Channels.newChannel(in);
+        if (buf == null) {
+            this.buf = ByteBuffer.allocateDirect(bufSize);
+        }
         buf.clear();
-        chan.read(buf);
         buf.flip();
+        this.bufStart = start;
+        this.endOfStream = false;
+    }
+
+    // open the archives nested in the decompressed data, up to maxNestingDepth
+    private InputStream expandNested(InputStream data) throws IOException {
+        List<String> path = Lists.newArrayList(file.getName());
+        zipEntry = null;
+        if (data instanceof ZipCodec.EntryInputStream) {
+            zipEntry = ((ZipCodec.EntryInputStream) data).getEntry();
+            path.add(zipEntry.getName());
+        }
+        int depth = 0;
+        while (depth < maxNestingDepth) {
+            PushbackInputStream peek = new PushbackInputStream(data, CompressionCodecs.MAGIC_LENGTH);
+            byte[] magic = new byte[CompressionCodecs.MAGIC_LENGTH];
+            int length = 0;
+            int n;
+            while (length < magic.length
+                    && (n = peek.read(magic, length, magic.length - length)) != -1) {
+                length += n;
+            }
+            peek.unread(magic, 0, length);
+            data = peek;
+
+            CompressionCodec nested = CompressionCodecs.forNestedMagic(magic, length);
+            if (nested == null) {
+                break;
+            }
+            data = nested.decompress(data);
+            if (data instanceof ZipCodec.EntryInputStream) {
+                path.add(((ZipCodec.EntryInputStream) data).getEntry().getName());
+            }
+            depth++;
+        }
+        nestedPath = depth > 0 ? Joiner.on(NESTED_PATH_SEPARATOR).join(path) : null;
+        return data;
+    }
+
+    private ExecutorService getInflaters() {
+        if (decompressThreads > 1 && inflaters == null) {
+            inflaters = Executors.newFixedThreadPool(decompressThreads,
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("bgzf-inflater-%d").build());
+        }
+        return inflaters;
+    }
+
+    /**
+     * Keep the unread bytes and read more data after them.
+     * @return whether there are bytes left to read in the buffer
+     */
+    private boolean refillBuf() throws IOException {
+        if (!endOfStream) {
+            bufStart += buf.position();
+            buf.compact();
+            int n = 0;
+            while (n == 0 && buf.hasRemaining()) {
+                n = chan.read(buf);
+            }
+            // in tail mode more members may be appended later
+            if (n == -1 && !tail) {
+                endOfStream = true;
+            }
+            buf.flip();
+        }
+        return buf.hasRemaining();
+    }
+
+    // apply the last seek: move within the buffer if possible, otherwise
+    // skip forward in the stream, starting over when moving backwards
+    // (BGZF jumps to the block holding the position instead of skipping)
+    private void ensurePositioned() throws IOException {
+        if (bufStart + buf.position() == position) {
+            return;
+        }
+        if (position < bufStart || (blockIndex != null
+                && position - (bufStart + buf.limit()) > BgzfCodec.MAX_BLOCK_SIZE)) {
+            openStream(position);
+        }
+        while (position > bufStart + buf.limit()) {
+            buf.position(buf.limit());
+            if (!refillBuf()) {
+                break;
+            }
+        }
+        buf.position((int) Math.min(position - bufStart, buf.limit()));
     }
 
     @Override
@@ -323,10 +670,7 @@ public class ResettableZipInputStream extends ResettableInputStream
 
     @Override
     public void reset() throws IOException {
-        this.in = new ZipInputStream(new FileInputStream(file));
-        in.getNextEntry();
-        this.chan = Channels.newChannel(in);
-        refillBuf();
+        this.hasLowSurrogate = false;
         seek(tracker.getPosition());
     }
 
@@ -350,9 +694,7 @@ public class ResettableZipInputStream extends ResettableInputStream
         long relativeChange = newPos - position;
         if (relativeChange == 0) return; // seek to current pos => no-op
 
-        int skipBytes = (int)newPos;
-        byte[] bytes = new byte[skipBytes];
-        buf.get(bytes, 0, skipBytes);
+        // the stream itself is only moved by the next read, see ensurePositioned()
 
         // clear decoder state
         decoder.reset();
@@ -371,7 +713,122 @@ public class ResettableZipInputStream extends ResettableInputStream
     @Override
     public void close() throws IOException {
         tracker.close();
-        in.close();
+        if (in != null) {
+            in.close();
+        }
+        if (inflaters != null) {
+            inflaters.shutdownNow();
+        }
+        synchronized (this) {
+            if (archive != null) {
+                archive.close();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    synchronized boolean isArchiveOpen() {
+        return archive != null;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // Nested classes:
+    ///////////////////////////////////////////////////////////////////////////////
+    /**
+     * Builder for the options beyond those of the public constructors.
+     */
+    public static class Builder {
+        private File file;
+        private PositionTracker tracker;
+        private int bufSize = DEFAULT_BUF_SIZE;
+        private Charset charset = Charsets.UTF_8;
+        private DecodeErrorPolicy decodeErrorPolicy = DecodeErrorPolicy.FAIL;
+        private File blockIndexFile;
+        private int decompressThreads = 1;
+        private int maxNestingDepth = 0;
+        private boolean tail = false;
+
+        /** File to read. */
+        public Builder file(File file) {
+            this.file = file;
+            return this;
+        }
+
+        /** PositionTracker implementation to make offset position durable. */
+        public Builder tracker(PositionTracker tracker) {
+            this.tracker = tracker;
+            return this;
+        }
+
+        /**
+         * Size of the underlying buffer used for input. If lesser than
+         * {@link #MIN_BUF_SIZE}, a buffer of length {@link #MIN_BUF_SIZE}
+         * will be created instead.
+         */
+        public Builder bufSize(int bufSize) {
+            this.bufSize = bufSize;
+            return this;
+        }
+
+        /** Character set used for decoding text, as necessary. */
+        public Builder charset(Charset charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        /** How the decoder behaves on malformed input and unmappable characters. */
+        public Builder decodeErrorPolicy(DecodeErrorPolicy decodeErrorPolicy) {
+            this.decodeErrorPolicy = decodeErrorPolicy;
+            return this;
+        }
+
+        /**
+         * Where the block index of BGZF files is kept, null (the default) to
+         * rebuild it every time the file is opened.
+         */
+        public Builder blockIndexFile(File blockIndexFile) {
+            this.blockIndexFile = blockIndexFile;
+            return this;
+        }
+
+        /**
+         * Number of threads inflating BGZF blocks, 1 (the default) inflates
+         * them on the reading thread.
+         */
+        public Builder decompressThreads(int decompressThreads) {
+            this.decompressThreads = decompressThreads;
+            return this;
+        }
+
+        /**
+         * Maximum number of archives nested in the file to expand, 0 (the
+         * default) returns the data of the file as it is.
+         */
+        public Builder maxNestingDepth(int maxNestingDepth) {
+            this.maxNestingDepth = maxNestingDepth;
+            return this;
+        }
+
+        /**
+         * Read a multi-member gzip or BGZF file which may still be appended
+         * to, false (the default) expects the file to be complete. Ignored
+         * for other formats.
+         */
+        public Builder tail(boolean tail) {
+            this.tail = tail;
+            return this;
+        }
+
+        /**
+         * @throws java.io.FileNotFoundException If the file to read does not exist
+         * @throws IOException If the position reported by the tracker cannot be sought
+         */
+        public ResettableZipInputStream build() throws IOException {
+            Preconditions.checkNotNull(file, "file");
+            Preconditions.checkNotNull(tracker, "tracker");
+            return new ResettableZipInputStream(file, tracker, bufSize, charset,
+                    decodeErrorPolicy, blockIndexFile, decompressThreads, maxNestingDepth, tail);
+        }
     }
 
 }
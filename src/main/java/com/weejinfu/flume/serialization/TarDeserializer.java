@@ -0,0 +1,439 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.RemoteMarkable;
+import org.apache.flume.serialization.ResettableInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A deserializer which walks the members of a tar archive, plain or
+ * inside any format {@link ResettableZipInputStream} can decompress
+ * (tar.gz, a tar in a zip, ...). Nothing is extracted to disk.
+ *
+ * <p/>Every regular file member is shipped as one or more events of at
+ * most {@link #CHUNK_SIZE_KEY} bytes each, so members are never held in
+ * memory as a whole. The events carry the member name, its size and the
+ * offset of the chunk in the member as headers. Directories, links and
+ * other special members are skipped, as are members rejected by the
+ * configured {@link EntryFilter}. GNU long names and pax path and size
+ * records are supported. A tar found in a nested archive also gets the
+ * nested path header of {@link ZipDeserializer}.
+ *
+ * <p/>The position kept in the tracker is the index of the member in the
+ * archive and the offset within that member (see {@link EntryPositions}),
+ * not an offset in the decompressed stream.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class TarDeserializer implements EventDeserializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TarDeserializer.class);
+
+    public static final String CHUNK_SIZE_KEY = "chunkSize";
+    public static final int CHUNK_SIZE_DEFAULT = 1024 * 1024;
+
+    /** Headers describing the member a chunk belongs to. */
+    public static final String MEMBER_HEADER_KEY = "tarMember";
+    public static final String MEMBER_SIZE_HEADER_KEY = "tarMemberSize";
+    public static final String MEMBER_OFFSET_HEADER_KEY = "tarMemberOffset";
+
+    private static final int BLOCK_SIZE = 512;
+    // upper bound for GNU long names and pax headers, which are read whole
+    private static final int MAX_EXTENDED_HEADER_SIZE = 1024 * 1024;
+    private static final int MAX_PRESIZED_BATCH = 1024;
+
+    private final ResettableInputStream in;
+    private final RemoteMarkable markable;
+    private final int chunkSize;
+    private final String nestedPath;
+    private final EntryFilter entryFilter;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    // stream offset of the first header block of every member walked so far,
+    // plus the one following the last of them
+    private final List<Long> memberOffsets = Lists.newArrayList(0L);
+    private Member member;
+    private boolean positioned;
+    private boolean endOfArchive;
+    private volatile boolean isOpen;
+
+    protected TarDeserializer(Context context, ResettableInputStream in) {
+        Preconditions.checkArgument(in instanceof RemoteMarkable,
+                "%s requires a %s stream", getClass().getSimpleName(),
+                RemoteMarkable.class.getSimpleName());
+        this.in = in;
+        this.markable = (RemoteMarkable) in;
+        this.nestedPath = in instanceof ResettableZipInputStream
+                ? ((ResettableZipInputStream) in).getNestedPath() : null;
+        this.chunkSize = context.getInteger(CHUNK_SIZE_KEY, CHUNK_SIZE_DEFAULT);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Configuration parameter " + CHUNK_SIZE_KEY
+                    + " must be greater than zero: " + chunkSize);
+        }
+        this.entryFilter = EntryFilter.fromContext(context);
+        this.isOpen = true;
+    }
+
+    /**
+     * Reads the next chunk of the current member, moving on to the next
+     * regular file member as needed
+     * @return event holding the chunk, or null at the end of the archive
+     * @throws IOException
+     */
+    @Override
+    public Event readEvent() throws IOException {
+        ensureOpen();
+        ensurePositioned();
+        while (member == null || !member.regular || in.tell() >= member.dataEnd()
+                || !entryFilter.accept(member.name, member.size)) {
+            if (!nextMember()) {
+                return null;
+            }
+        }
+
+        long offset = in.tell() - member.dataStart;
+        byte[] body = new byte[(int) Math.min(chunkSize, member.size - offset)];
+        readFully(body);
+
+        Event event = EventBuilder.withBody(body);
+        Map<String, String> headers = event.getHeaders();
+        headers.put(MEMBER_HEADER_KEY, member.name);
+        headers.put(MEMBER_SIZE_HEADER_KEY, String.valueOf(member.size));
+        headers.put(MEMBER_OFFSET_HEADER_KEY, String.valueOf(offset));
+        if (nestedPath != null) {
+            headers.put(ZipDeserializer.NESTED_PATH_HEADER_KEY, nestedPath);
+        }
+        return event;
+    }
+
+    @Override
+    public List<Event> readEvents(int numEvents) throws IOException {
+        ensureOpen();
+        List<Event> events = Lists.newArrayListWithCapacity(
+                Math.min(numEvents, MAX_PRESIZED_BATCH));
+        for (int i = 0; i < numEvents; i++) {
+            Event event = readEvent();
+            if (event != null) {
+                events.add(event);
+            } else {
+                break;
+            }
+        }
+        return events;
+    }
+
+    private boolean nextMember() throws IOException {
+        if (endOfArchive) {
+            return false;
+        }
+        Member next = readMember(member == null ? 0 : member.index + 1);
+        if (next == null) {
+            endOfArchive = true;
+            return false;
+        }
+        member = next;
+        return true;
+    }
+
+    /**
+     * Parse the header(s) of a member whose start is already known and
+     * leave the stream at its first data byte.
+     * @return the member, or null at the end of the archive
+     */
+    private Member readMember(int index) throws IOException {
+        in.seek(memberOffsets.get(index));
+        String longName = null;
+        String paxName = null;
+        long paxSize = -1;
+        while (true) {
+            if (!readHeader()) {
+                return null;
+            }
+            byte type = header[156];
+            long size = parseNumber(124, 12);
+            long dataStart = in.tell();
+
+            if (type == 'L') {
+                longName = cString(readExtendedHeader(size), 0, (int) size);
+            } else if (type == 'x') {
+                byte[] pax = readExtendedHeader(size);
+                paxName = paxRecord(pax, "path");
+                String sizeRecord = paxRecord(pax, "size");
+                if (sizeRecord != null) {
+                    paxSize = Long.parseLong(sizeRecord);
+                }
+            } else if (type != 'g') {
+                String name = longName != null ? longName
+                        : paxName != null ? paxName : headerName();
+                if (paxSize >= 0) {
+                    size = paxSize;
+                }
+                Member found = new Member(index, name, size, dataStart,
+                        type == '0' || type == 0 || type == '7');
+                if (memberOffsets.size() == index + 1) {
+                    memberOffsets.add(dataStart + padded(size));
+                }
+                return found;
+            }
+            in.seek(dataStart + padded(size));
+        }
+    }
+
+    // read one header block, false at the end of the archive
+    private boolean readHeader() throws IOException {
+        int n = readUpTo(header);
+        if (n == 0) {
+            logger.warn("Tar archive ends without end of archive marker");
+            return false;
+        }
+        if (n < BLOCK_SIZE) {
+            throw new IOException("Truncated tar header at offset " + (in.tell() - n));
+        }
+        boolean zero = true;
+        for (byte b : header) {
+            if (b != 0) {
+                zero = false;
+                break;
+            }
+        }
+        if (zero) {
+            return false;
+        }
+
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            byte b = i >= 148 && i < 156 ? (byte) ' ' : header[i];
+            unsigned += b & 0xff;
+            signed += b;
+        }
+        long checksum = parseNumber(148, 8);
+        if (checksum != unsigned && checksum != signed) {
+            throw new IOException("Invalid tar header checksum at offset "
+                    + (in.tell() - BLOCK_SIZE));
+        }
+        return true;
+    }
+
+    private byte[] readExtendedHeader(long size) throws IOException {
+        if (size > MAX_EXTENDED_HEADER_SIZE) {
+            throw new IOException("Tar extended header too large: " + size);
+        }
+        byte[] data = new byte[(int) size];
+        readFully(data);
+        return data;
+    }
+
+    private String headerName() {
+        String name = cString(header, 0, 100);
+        // ustar splits long paths into a prefix and a name
+        if (cString(header, 257, 5).equals("ustar")) {
+            String prefix = cString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    // octal, or base-256 with the high bit of the first byte set (GNU)
+    private long parseNumber(int offset, int length) throws IOException {
+        long value = 0;
+        if ((header[offset] & 0x80) != 0) {
+            value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        int i = offset;
+        int end = offset + length;
+        while (i < end && (header[i] == ' ' || header[i] == 0)) {
+            i++;
+        }
+        for (; i < end && header[i] != ' ' && header[i] != 0; i++) {
+            if (header[i] < '0' || header[i] > '7') {
+                throw new IOException("Invalid octal number in tar header at offset "
+                        + (in.tell() - BLOCK_SIZE));
+            }
+            value = (value << 3) + (header[i] - '0');
+        }
+        return value;
+    }
+
+    private static String cString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, Charsets.UTF_8);
+    }
+
+    // value of a "<length> <key>=<value>\n" pax record, or null
+    private static String paxRecord(byte[] pax, String key) throws IOException {
+        int pos = 0;
+        while (pos < pax.length) {
+            int space = pos;
+            while (space < pax.length && pax[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(pax, pos, space - pos, Charsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid pax header record", e);
+            }
+            if (length <= space - pos || pos + length > pax.length) {
+                throw new IOException("Invalid pax header record length " + length);
+            }
+            String record = new String(pax, space + 1, pos + length - space - 2, Charsets.UTF_8);
+            int eq = record.indexOf('=');
+            if (eq > 0 && record.substring(0, eq).equals(key)) {
+                return record.substring(eq + 1);
+            }
+            pos += length;
+        }
+        return null;
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private int readUpTo(byte[] data) throws IOException {
+        int off = 0;
+        int n;
+        while (off < data.length && (n = in.read(data, off, data.length - off)) != -1) {
+            off += n;
+        }
+        return off;
+    }
+
+    private void readFully(byte[] data) throws IOException {
+        int n = readUpTo(data);
+        if (n < data.length) {
+            throw new IOException("Unexpected end of tar archive after " + in.tell() + " bytes");
+        }
+    }
+
+    // restore the position from the tracker before the first read
+    private void ensurePositioned() throws IOException {
+        if (!positioned) {
+            restore(markable.getMarkPosition());
+        }
+    }
+
+    /**
+     * Walk to the member and offset of a tracked position, starting from
+     * the closest member already known.
+     */
+    private void restore(long position) throws IOException {
+        int index = EntryPositions.entryIndex(position);
+        long offset = EntryPositions.offset(position);
+        member = null;
+        endOfArchive = false;
+        positioned = true;
+
+        Member found = null;
+        for (int i = Math.min(index, memberOffsets.size() - 1); i <= index; i++) {
+            Member next = readMember(i);
+            if (next == null) {
+                endOfArchive = true;
+                break;
+            }
+            found = next;
+        }
+        if (found == null) {
+            return;
+        }
+        if (found.index != index) {
+            logger.warn("Tar archive has no member {}, resuming after member {}",
+                    index, found.index);
+            offset = found.size;
+        }
+        member = found;
+        in.seek(found.dataStart + Math.min(offset, found.size));
+    }
+
+    @Override
+    public void mark() throws IOException {
+        ensureOpen();
+        if (!positioned) {
+            // nothing read yet, the tracker already holds the position
+            return;
+        }
+        if (member == null) {
+            markable.markPosition(0);
+        } else {
+            long offset = Math.min(in.tell() - member.dataStart, member.size);
+            markable.markPosition(EntryPositions.encode(member.index, offset));
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        ensureOpen();
+        restore(markable.getMarkPosition());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isOpen) {
+            in.close();
+            isOpen = false;
+        }
+    }
+
+    private void ensureOpen() {
+        if (!isOpen) {
+            throw new IllegalStateException("Serializer has been closed");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // Nested classes:
+    ///////////////////////////////////////////////////////////////////////////////
+    /** Builder implementations MUST have a public no-arg constructor */
+    public static class Builder implements EventDeserializer.Builder {
+
+        @Override
+        public TarDeserializer build(Context context, ResettableInputStream in) {
+            return new TarDeserializer(context, in);
+        }
+
+    }
+
+    /** A member of the archive. */
+    private static class Member {
+        final int index;
+        final String name;
+        final long size;
+        final long dataStart;
+        final boolean regular;
+
+        Member(int index, String name, long size, long dataStart, boolean regular) {
+            this.index = index;
+            this.name = name;
+            this.size = size;
+            this.dataStart = dataStart;
+            this.regular = regular;
+        }
+
+        long dataEnd() {
+            return dataStart + size;
+        }
+    }
+
+}
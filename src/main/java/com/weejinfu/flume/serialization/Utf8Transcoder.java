@@ -0,0 +1,191 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.serialization.DecodeErrorPolicy;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Converts event bodies from the input character set to UTF-8.
+ *
+ * <p/>Bodies which need no conversion are returned as they are without
+ * being copied: pure ASCII in any ASCII compatible character set, and valid
+ * UTF-8 when reading UTF-8. Other bodies are decoded and encoded in bulk
+ * through char and byte buffers which are kept for the next body. Instances
+ * are not thread safe.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class Utf8Transcoder {
+
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder;
+    private final boolean utf8;
+    private final boolean asciiCompatible;
+    private CharBuffer chars = CharBuffer.allocate(0);
+    private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+    public Utf8Transcoder(Charset charset, DecodeErrorPolicy decodeErrorPolicy) {
+        CodingErrorAction errorAction;
+        switch (decodeErrorPolicy) {
+            case FAIL:
+                errorAction = CodingErrorAction.REPORT;
+                break;
+            case REPLACE:
+                errorAction = CodingErrorAction.REPLACE;
+                break;
+            case IGNORE:
+                errorAction = CodingErrorAction.IGNORE;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unexpected value for decode error policy: " + decodeErrorPolicy);
+        }
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(errorAction)
+                .onUnmappableCharacter(errorAction);
+        this.encoder = Charsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.utf8 = charset.equals(Charsets.UTF_8);
+        this.asciiCompatible = isAsciiCompatible(charset);
+    }
+
+    // whether the bytes 0 to 127 decode to the same ASCII characters
+    private static boolean isAsciiCompatible(Charset charset) {
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        try {
+            CharBuffer decoded = charset.newDecoder().decode(ByteBuffer.wrap(ascii));
+            if (decoded.remaining() != ascii.length) {
+                return false;
+            }
+            for (int i = 0; i < ascii.length; i++) {
+                if (decoded.get(i) != i) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the body in UTF-8, the same array if it needed no conversion
+     * @throws CharacterCodingException if the body cannot be decoded and
+     * the decode error policy is FAIL
+     */
+    public byte[] transcode(byte[] body) throws CharacterCodingException {
+        int ascii = asciiPrefix(body);
+        if (ascii == body.length && asciiCompatible) {
+            return body;
+        }
+        if (utf8 && isValidUtf8(body, ascii)) {
+            return body;
+        }
+
+        // usually at most one char per input byte, three UTF-8 bytes per char
+        if (chars.capacity() < body.length) {
+            chars = CharBuffer.allocate(body.length);
+        }
+        chars.clear();
+        decoder.reset();
+        ByteBuffer in = ByteBuffer.wrap(body);
+        CoderResult result;
+        while ((result = decoder.decode(in, chars, true)).isOverflow()) {
+            chars = grow(chars);
+        }
+        check(result);
+        while ((result = decoder.flush(chars)).isOverflow()) {
+            chars = grow(chars);
+        }
+        check(result);
+        chars.flip();
+
+        int maxBytes = chars.remaining() * 3;
+        if (bytes.capacity() < maxBytes) {
+            bytes = ByteBuffer.allocate(maxBytes);
+        }
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(chars, bytes, true);
+        encoder.flush(bytes);
+        return Arrays.copyOf(bytes.array(), bytes.position());
+    }
+
+    private static CharBuffer grow(CharBuffer chars) {
+        chars.flip();
+        return CharBuffer.allocate(chars.capacity() * 2 + 16).put(chars);
+    }
+
+    private static void check(CoderResult result) throws CharacterCodingException {
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    private static int asciiPrefix(byte[] body) {
+        int i = 0;
+        while (i < body.length && body[i] >= 0) {
+            i++;
+        }
+        return i;
+    }
+
+    // strict UTF-8: no overlong forms, surrogates or code points above U+10FFFF
+    static boolean isValidUtf8(byte[] body, int start) {
+        int i = start;
+        while (i < body.length) {
+            int b = body[i] & 0xff;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int length;
+            int min;
+            if (b >= 0xc2 && b <= 0xdf) {
+                length = 2;
+                min = 0x80;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                length = 3;
+                min = 0x800;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                length = 4;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + length > body.length) {
+                return false;
+            }
+            int codePoint = b & (0x7f >> length);
+            for (int j = 1; j < length; j++) {
+                int c = body[i + j] & 0xff;
+                if ((c & 0xc0) != 0x80) {
+                    return false;
+                }
+                codePoint = (codePoint << 6) | (c & 0x3f);
+            }
+            if (codePoint < min || codePoint > 0x10ffff
+                    || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                return false;
+            }
+            i += length;
+        }
+        return true;
+    }
+
+}
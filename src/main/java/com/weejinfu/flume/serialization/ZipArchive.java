@@ -0,0 +1,568 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read only view of a zip file based on its central directory.
+ *
+ * <p/>The file is memory mapped once when opened and the channel is closed
+ * right away, so instances hold no file descriptor and stay readable after
+ * the file has been renamed or deleted. {@link #close()} releases the
+ * mapping right away where the JVM allows it, rather than when the archive
+ * is garbage collected, so that the disk space of deleted files is freed
+ * and files can be renamed or deleted on Windows; the archive can no longer
+ * be read then.
+ *
+ * <p/>Zip64 archives are supported: sizes and offsets are 64 bit, and files
+ * bigger than a single mapping can address are mapped as several segments.
+ * Entry data is always streamed piece by piece, so reading an entry of any
+ * size takes constant memory.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class ZipArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZipArchive.class);
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    /** Size of the mapped segments of big files. */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff;
+
+    private static final int INFLATE_CHUNK_SIZE = 8192;
+    // the largest byte array the JVM reliably allocates
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final File file;
+    private final long length;
+    private final long segmentSize;
+    private final MappedByteBuffer[] segments;
+    private final List<Entry> entries;
+    private boolean closed;
+    // inflater left where the last read of a deflated entry ended, so that
+    // the chunks of an entry read in order are inflated only once
+    private Entry cursorEntry;
+    private InputStream cursor;
+    private long cursorPosition;
+
+    private ZipArchive(File file, long length, long segmentSize, MappedByteBuffer[] segments)
+            throws IOException {
+        this.file = file;
+        this.length = length;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        for (MappedByteBuffer segment : segments) {
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        this.entries = readCentralDirectory();
+    }
+
+    /**
+     * Map the given file and read its central directory.
+     * @throws IOException if the file cannot be read or is not a zip file
+     */
+    public static ZipArchive open(File file) throws IOException {
+        return open(file, SEGMENT_SIZE);
+    }
+
+    static ZipArchive open(File file, long segmentSize) throws IOException {
+        Preconditions.checkArgument(segmentSize > 0 && segmentSize <= Integer.MAX_VALUE,
+                "Invalid segment size %s", segmentSize);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            MappedByteBuffer[] segments =
+                    new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(segmentSize, size - start));
+            }
+            return new ZipArchive(file, size, segmentSize, segments);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Size of the zip file. */
+    public long length() {
+        return length;
+    }
+
+    /** Entries in central directory order. */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the entry with the given name, or null if there is none
+     */
+    public Entry getEntry(String name) {
+        for (Entry entry : entries) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a read only view of the whole mapped file.
+     * @throws IOException if the file is too big for a single buffer
+     */
+    public synchronized ByteBuffer getBuffer() throws IOException {
+        ensureOpen();
+        if (segments.length > 1) {
+            throw new IOException("Zip file " + file + " is too big for a single buffer");
+        }
+        ByteBuffer data = segments[0].duplicate();
+        data.clear();
+        return data;
+    }
+
+    /**
+     * Returns a read only buffer holding the raw (still compressed) data of
+     * the given entry: a slice of the mapped file, or a copy if the entry
+     * spans two segments of a big file.
+     * @throws IOException if the entry is truncated or too big for a buffer
+     */
+    public synchronized ByteBuffer slice(Entry entry) throws IOException {
+        ensureOpen();
+        List<ByteBuffer> pieces = pieces(dataOffset(entry), entry.getCompressedSize(), entry);
+        if (pieces.size() == 1) {
+            return pieces.get(0);
+        }
+        if (entry.getCompressedSize() > MAX_ARRAY_SIZE) {
+            throw new IOException("Entry " + entry.getName() + " is too big for a single buffer");
+        }
+        ByteBuffer copy = ByteBuffer.allocate((int) entry.getCompressedSize());
+        for (ByteBuffer piece : pieces) {
+            copy.put(piece);
+        }
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Whether {@link #slice(Entry)} is a view of the mapped file rather than
+     * a copy.
+     */
+    public synchronized boolean hasContiguousData(Entry entry) throws IOException {
+        ensureOpen();
+        long start = dataOffset(entry);
+        long end = start + entry.getCompressedSize();
+        return entry.getCompressedSize() == 0
+                || start / segmentSize == (end - 1) / segmentSize;
+    }
+
+    /**
+     * Read the uncompressed bytes [offset, offset + length) of an entry.
+     * Deflated entries are inflated up to offset + length only, continuing
+     * from where the previous read ended if it was in the same entry and
+     * not beyond offset.
+     */
+    public synchronized byte[] read(Entry entry, long offset, int length) throws IOException {
+        Preconditions.checkArgument(offset >= 0 && length >= 0,
+                "Invalid range [%s, %s)", offset, offset + length);
+        ensureOpen();
+        byte[] result = new byte[length];
+        if (entry.getMethod() == METHOD_STORED) {
+            if (offset + length > entry.getCompressedSize()) {
+                throw new IOException("Read beyond end of entry " + entry.getName());
+            }
+            int filled = 0;
+            for (ByteBuffer piece : pieces(dataOffset(entry) + offset, length, entry)) {
+                int n = piece.remaining();
+                piece.get(result, filled, n);
+                filled += n;
+            }
+            return result;
+        }
+        if (cursor == null || cursorEntry != entry || cursorPosition > offset) {
+            closeCursor();
+            cursor = openStream(entry);
+            cursorEntry = entry;
+            cursorPosition = 0;
+        }
+        boolean keepOpen = false;
+        try {
+            ByteStreams.skipFully(cursor, offset - cursorPosition);
+            ByteStreams.readFully(cursor, result);
+            cursorPosition = offset + length;
+            keepOpen = cursorPosition < entry.getSize();
+            return result;
+        } catch (EOFException e) {
+            throw new IOException("Unexpected end of entry " + entry.getName()
+                    + " in " + file, e);
+        } finally {
+            if (!keepOpen) {
+                // read to the end, or failed
+                closeCursor();
+            }
+        }
+    }
+
+    private void closeCursor() throws IOException {
+        if (cursor != null) {
+            InputStream in = cursor;
+            cursor = null;
+            cursorEntry = null;
+            in.close();
+        }
+    }
+
+    /**
+     * Stream the uncompressed data of an entry from the mapped file. Only
+     * the pages of this entry are read from disk.
+     */
+    public synchronized InputStream openStream(Entry entry) throws IOException {
+        ensureOpen();
+        List<ByteBuffer> pieces = pieces(dataOffset(entry), entry.getCompressedSize(), entry);
+        List<InputStream> streams = Lists.newArrayListWithCapacity(pieces.size() + 1);
+        for (ByteBuffer piece : pieces) {
+            streams.add(new BufferInputStream(piece));
+        }
+        switch (entry.getMethod()) {
+            case METHOD_STORED:
+                return streams.size() == 1 ? streams.get(0)
+                        : new SequenceInputStream(Collections.enumeration(streams));
+            case METHOD_DEFLATED:
+                // nowrap inflaters may need one extra byte to finish
+                streams.add(new ByteArrayInputStream(new byte[1]));
+                InputStream raw = new SequenceInputStream(Collections.enumeration(streams));
+                final Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(raw, inflater, INFLATE_CHUNK_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            default:
+                throw new IOException("Unsupported compression method "
+                        + entry.getMethod() + " for entry " + entry.getName());
+        }
+    }
+
+    /**
+     * Release the mapping of the file. Buffers and streams obtained from the
+     * archive must not be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeCursor();
+        for (MappedByteBuffer segment : segments) {
+            unmap(segment);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Zip archive " + file + " is closed");
+        }
+    }
+
+    // unmap a buffer now, through the JDK internals of Java 9+ or Java 8
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            // left to the garbage collector
+            logger.debug("Unable to unmap zip archive", e);
+        }
+    }
+
+    /**
+     * Offset of the first data byte of an entry, right after its local header.
+     */
+    long dataOffset(Entry entry) throws IOException {
+        if (entry.dataOffset < 0) {
+            long header = entry.getLocalHeaderOffset();
+            if (header + LOCAL_HEADER_SIZE > length || getInt(header) != LOCAL_HEADER_SIG) {
+                throw new IOException("Invalid local header for entry "
+                        + entry.getName() + " in " + file);
+            }
+            int nameLength = getUnsignedShort(header + 26);
+            int extraLength = getUnsignedShort(header + 28);
+            entry.dataOffset = header + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        }
+        return entry.dataOffset;
+    }
+
+    // views of the mapped range [start, start + size), one per segment it spans
+    private List<ByteBuffer> pieces(long start, long size, Entry entry) throws IOException {
+        if (start + size > length) {
+            throw new IOException("Truncated entry " + entry.getName() + " in " + file);
+        }
+        List<ByteBuffer> pieces = Lists.newArrayListWithCapacity(1);
+        long end = start + size;
+        do {
+            int segment = (int) (start / segmentSize);
+            long segmentStart = segment * segmentSize;
+            ByteBuffer piece = segments[segment].duplicate();
+            piece.limit((int) (Math.min(segmentStart + segmentSize, end) - segmentStart));
+            piece.position((int) (start - segmentStart));
+            pieces.add(piece.slice());
+            start = segmentStart + piece.limit();
+        } while (start < end);
+        return pieces;
+    }
+
+    private int getByte(long pos) {
+        return segments[(int) (pos / segmentSize)].get((int) (pos % segmentSize)) & 0xff;
+    }
+
+    private int getUnsignedShort(long pos) {
+        return getByte(pos) | (getByte(pos + 1) << 8);
+    }
+
+    // the header fields of big files may span two segments
+    private int getInt(long pos) {
+        MappedByteBuffer segment = segments[(int) (pos / segmentSize)];
+        int offset = (int) (pos % segmentSize);
+        if (offset + 4 <= segment.capacity()) {
+            return segment.getInt(offset);
+        }
+        return getUnsignedShort(pos) | (getUnsignedShort(pos + 2) << 16);
+    }
+
+    private long getUnsignedInt(long pos) {
+        return getInt(pos) & 0xffffffffL;
+    }
+
+    private long getLong(long pos) {
+        return getUnsignedInt(pos) | (getUnsignedInt(pos + 4) << 32);
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long eocd = findEndOfCentralDirectory();
+        long count = getUnsignedShort(eocd + 10);
+        long offset = getUnsignedInt(eocd + 16);
+        if (count == ZIP64_MAGIC_COUNT || offset == ZIP64_MAGIC) {
+            long locator = eocd - ZIP64_LOCATOR_SIZE;
+            if (locator >= 0 && getInt(locator) == ZIP64_LOCATOR_SIG) {
+                long zip64Eocd = getLong(locator + 8);
+                if (zip64Eocd < 0 || zip64Eocd + ZIP64_END_OF_CENTRAL_DIR_SIZE > length
+                        || getInt(zip64Eocd) != ZIP64_END_OF_CENTRAL_DIR_SIG) {
+                    throw new IOException("Invalid zip64 end of central directory in " + file);
+                }
+                count = getLong(zip64Eocd + 32);
+                offset = getLong(zip64Eocd + 48);
+            }
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many entries in " + file + ": " + count);
+        }
+
+        List<Entry> result = Lists.newArrayListWithCapacity((int) count);
+        long pos = offset;
+        for (int i = 0; i < count; i++) {
+            if (pos < 0 || pos + CENTRAL_HEADER_SIZE > length
+                    || getInt(pos) != CENTRAL_HEADER_SIG) {
+                throw new IOException("Invalid central directory in " + file);
+            }
+            int method = getUnsignedShort(pos + 10);
+            long crc = getUnsignedInt(pos + 16);
+            long compressedSize = getUnsignedInt(pos + 20);
+            long size = getUnsignedInt(pos + 24);
+            int nameLength = getUnsignedShort(pos + 28);
+            int extraLength = getUnsignedShort(pos + 30);
+            int commentLength = getUnsignedShort(pos + 32);
+            long localHeaderOffset = getUnsignedInt(pos + 42);
+            if (pos + CENTRAL_HEADER_SIZE + nameLength + extraLength > length) {
+                throw new IOException("Invalid central directory in " + file);
+            }
+
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = (byte) getByte(pos + CENTRAL_HEADER_SIZE + j);
+            }
+
+            // the zip64 extra field holds the values which don't fit, in this order
+            long extra = pos + CENTRAL_HEADER_SIZE + nameLength;
+            long extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd && (size == ZIP64_MAGIC
+                    || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC)) {
+                int id = getUnsignedShort(extra);
+                int dataLength = getUnsignedShort(extra + 2);
+                if (id == ZIP64_EXTRA_ID) {
+                    long field = extra + 4;
+                    long fieldEnd = Math.min(field + dataLength, extraEnd);
+                    if (size == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                        size = getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                        compressedSize = getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                        localHeaderOffset = getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + dataLength;
+            }
+
+            result.add(new Entry(new String(name, Charsets.UTF_8), method, crc,
+                    compressedSize, size, localHeaderOffset));
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return ImmutableList.copyOf(result);
+    }
+
+    private long findEndOfCentralDirectory() throws IOException {
+        long last = length - END_OF_CENTRAL_DIR_SIZE;
+        long first = Math.max(0, last - MAX_COMMENT_SIZE);
+        for (long pos = last; pos >= first; pos--) {
+            if (getInt(pos) == END_OF_CENTRAL_DIR_SIG) {
+                return pos;
+            }
+        }
+        throw new IOException("No zip central directory found in " + file);
+    }
+
+    /** Reads the remaining bytes of a buffer. */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer data;
+
+        BufferInputStream(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return data.hasRemaining() ? data.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, data.remaining());
+            data.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, data.remaining()));
+            data.position(data.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return data.remaining();
+        }
+    }
+
+    /** An entry of the central directory. */
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+        private long dataOffset = -1;
+
+        Entry(String name, int method, long crc, long compressedSize,
+              long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() { return name; }
+        public int getMethod() { return method; }
+        public long getCrc() { return crc; }
+        public long getCompressedSize() { return compressedSize; }
+        public long getSize() { return size; }
+        public long getLocalHeaderOffset() { return localHeaderOffset; }
+        public boolean isDirectory() { return name.endsWith("/"); }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.weejinfu.flume.serialization;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -8,11 +9,14 @@ import org.apache.flume.annotations.InterfaceAudience;
 import org.apache.flume.annotations.InterfaceStability;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.RemoteMarkable;
 import org.apache.flume.serialization.ResettableInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 
@@ -20,6 +24,32 @@ import java.util.List;
  * A deserializer that reads a Zip File per event; To be used with
  * Flume SpoolDirectorySource.
  *
+ * <p/>With {@link #LAZY_BODY_KEY} enabled the events of zip files only carry
+ * the entry name and size from the zip central directory, and their body is
+ * inflated the first time it is read (see {@link LazyZipEvent}). Other
+ * formats have no central directory and are always read eagerly, as are
+ * nested archives expanded by {@link ResettableZipInputStream}, whose events
+ * carry the nested path in the {@link #NESTED_PATH_HEADER_KEY} header.
+ *
+ * <p/>With an {@link EntryFilter} configured, zip files are read entry by
+ * entry in central directory order, and entries rejected by the filter are
+ * skipped without being inflated or even read from disk. The tracked
+ * position is then the entry index and the offset within that entry (see
+ * {@link EntryPositions}).
+ *
+ * <p/>With {@link #TRANSCODE_KEY} enabled, event bodies are converted from
+ * the input character set of the stream to UTF-8 by a {@link Utf8Transcoder}.
+ * Bodies split by {@link #MAX_FILE_LENGTH_KEY} may break a character at the
+ * split, which is then handled by the decode error policy.
+ *
+ * <p/>Fields configured for a {@link FieldExtractor} are copied from the
+ * (transcoded) bodies into headers.
+ *
+ * <p/>Bodies rejected by a {@link RecordFilter} are dropped before they are
+ * transcoded or wrapped in an event, and reading goes on with the next one.
+ * With a filter, bodies are read into a buffer reused across records and
+ * only the accepted ones are copied out of it.
+ *
  * Created by Jason on 15/8/12.
  */
 @InterfaceAudience.Private
@@ -28,12 +58,41 @@ public class ZipDeserializer implements EventDeserializer {
 
     private ResettableInputStream in;
     private final int maxFileLength;
+    private final boolean lazyBody;
+    private final EntryFilter entryFilter;
+    private final Utf8Transcoder transcoder;
+    private final FieldExtractor fieldExtractor;
+    private final RecordFilter recordFilter;
+    // records are read into it while filtering, so that rejected ones are never copied
+    private byte[] window = new byte[0];
+    // entry by entry reading of filtered zip files
+    private boolean entriesPositioned;
+    private int entryIndex;
+    private long entryOffset;
+    private InputStream entryStream;
     private volatile boolean isOpen;
 
     public static final String MAX_FILE_LENGTH_KEY = "maxFileLength";
     public static final int MAX_FILE_LENGTH_DEFAULT = 100 * 1000 * 1000;
 
+    /** Whether to inflate event bodies only when they are read. */
+    public static final String LAZY_BODY_KEY = "lazyBody";
+    public static final boolean LAZY_BODY_DEFAULT = false;
+
+    /** Whether to convert event bodies from the input character set to UTF-8. */
+    public static final String TRANSCODE_KEY = "transcodeToUtf8";
+    public static final boolean TRANSCODE_DEFAULT = false;
+
+    /** Headers filled from the zip central directory. */
+    public static final String ENTRY_HEADER_KEY = "zipEntry";
+    public static final String ENTRY_SIZE_HEADER_KEY = "zipEntrySize";
+
+    /** Header naming the entries leading to an expanded nested archive. */
+    public static final String NESTED_PATH_HEADER_KEY = "nestedPath";
+
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
+    // upper bound for the initial capacity of the list returned by readEvents
+    private static final int MAX_PRESIZED_BATCH = 1024;
     private static final Logger LOGGER = LoggerFactory.getLogger(ZipDeserializer.class);
 
     protected ZipDeserializer(Context context, ResettableInputStream in) {
@@ -43,6 +102,33 @@ public class ZipDeserializer implements EventDeserializer {
             throw new ConcurrentModificationException("Configuration parameter " + MAX_FILE_LENGTH_KEY
                     + "must be greater than zero: " + maxFileLength);
         }
+        this.lazyBody = context.getBoolean(LAZY_BODY_KEY, LAZY_BODY_DEFAULT);
+        if (lazyBody && !(in instanceof ResettableZipInputStream)) {
+            throw new IllegalArgumentException("Configuration parameter " + LAZY_BODY_KEY
+                    + " requires a " + ResettableZipInputStream.class.getSimpleName());
+        }
+        this.entryFilter = EntryFilter.fromContext(context);
+        if (context.getBoolean(TRANSCODE_KEY, TRANSCODE_DEFAULT)) {
+            if (lazyBody || !(in instanceof ResettableZipInputStream)) {
+                throw new IllegalArgumentException("Configuration parameter " + TRANSCODE_KEY
+                        + " requires a " + ResettableZipInputStream.class.getSimpleName()
+                        + " and cannot be combined with " + LAZY_BODY_KEY);
+            }
+            ResettableZipInputStream zin = (ResettableZipInputStream) in;
+            this.transcoder = new Utf8Transcoder(zin.getCharset(), zin.getDecodeErrorPolicy());
+        } else {
+            this.transcoder = null;
+        }
+        this.fieldExtractor = FieldExtractor.fromContext(context);
+        if (fieldExtractor != null && lazyBody) {
+            throw new IllegalArgumentException("Extracting fields cannot be combined with "
+                    + LAZY_BODY_KEY);
+        }
+        this.recordFilter = RecordFilter.fromContext(context);
+        if (recordFilter != null && lazyBody) {
+            throw new IllegalArgumentException("Filtering records cannot be combined with "
+                    + LAZY_BODY_KEY);
+        }
         this.isOpen = true;
     }
 
@@ -55,8 +141,39 @@ public class ZipDeserializer implements EventDeserializer {
     @Override
     public Event readEvent() throws IOException {
         ensureOpen();
-        ByteArrayOutputStream bos = null;
+        if (in instanceof ResettableZipInputStream) {
+            ResettableZipInputStream zin = (ResettableZipInputStream) in;
+            String nestedPath = zin.getNestedPath();
+            if (nestedPath != null) {
+                Event event = readStreamedEvent();
+                if (event != null) {
+                    event.getHeaders().put(NESTED_PATH_HEADER_KEY, nestedPath);
+                }
+                return event;
+            }
+            if (entryFilter.isActive() && zin.isZip()) {
+                return readFilteredEvent(zin);
+            }
+            if (lazyBody && zin.isZip()) {
+                return readLazyEvent(zin);
+            }
+            long remaining = zin.remaining();
+            if (remaining >= 0) {
+                return readSizedEvent(zin, remaining);
+            }
+        }
+        return readStreamedEvent();
+    }
+
+    /**
+     * The size of the data is unknown, read up to maxFileLength bytes.
+     */
+    private Event readStreamedEvent() throws IOException {
+        if (recordFilter != null) {
+            return readWindowedEvent();
+        }
         byte[] buf = new byte[Math.min(maxFileLength, DEFAULT_BUFFER_SIZE)];
+        ByteArrayOutputStream bos = null;
         int fileLength = 0;
         int n = 0;
         while ((n = in.read(buf, 0, Math.min(buf.length, maxFileLength - fileLength))) != -1) {
@@ -73,8 +190,183 @@ public class ZipDeserializer implements EventDeserializer {
 
         if (null == bos) {
             return null;
-        } else {
-            return EventBuilder.withBody(bos.toByteArray());
+        }
+        byte[] body = bos.toByteArray();
+        return withBody(body, body.length);
+    }
+
+    /**
+     * Read up to maxFileLength bytes of unknown size into the window, until
+     * the record filter accepts them.
+     */
+    private Event readWindowedEvent() throws IOException {
+        while (true) {
+            int length = 0;
+            int n;
+            while (length < maxFileLength) {
+                if (length == window.length) {
+                    window = Arrays.copyOf(window, (int) Math.min(maxFileLength,
+                            Math.max(DEFAULT_BUFFER_SIZE, 2L * window.length)));
+                }
+                if ((n = in.read(window, length, window.length - length)) == -1) {
+                    break;
+                }
+                length += n;
+            }
+            if (length == 0) {
+                return null;
+            }
+            if (length >= maxFileLength) {
+                LOGGER.warn("File length exceeds maxFileLength ({}), truncating file event!", maxFileLength);
+            }
+            Event event = withBody(window, length);
+            if (event != null) {
+                return event;
+            }
+        }
+    }
+
+    /**
+     * The size of the entry is known up front, so read the body straight
+     * into an array of the right size instead of growing a buffer.
+     */
+    private Event readSizedEvent(ResettableZipInputStream zin, long remaining)
+            throws IOException {
+        while (remaining > 0) {
+            if (remaining > maxFileLength) {
+                LOGGER.warn("File length exceeds maxFileLength ({}), truncating file event!", maxFileLength);
+            }
+            int length = (int) Math.min(remaining, maxFileLength);
+            byte[] body = recordBuffer(length);
+            int off = 0;
+            int n;
+            while (off < length && (n = zin.read(body, off, length - off)) != -1) {
+                off += n;
+            }
+            if (off < length) {
+                throw new IOException("Unexpected end of entry after " + off + " bytes");
+            }
+            Event event = withBody(body, length);
+            if (event != null) {
+                return event;
+            }
+            remaining -= length;
+        }
+        return null;
+    }
+
+    // the array to read a record into: its body, or the window while filtering
+    private byte[] recordBuffer(int length) {
+        if (recordFilter == null) {
+            return new byte[length];
+        }
+        if (window.length < length) {
+            window = new byte[length];
+        }
+        return window;
+    }
+
+    // null if the record filter rejects the record, which is copied out of
+    // the window only once accepted
+    private Event withBody(byte[] buf, int length) throws IOException {
+        byte[] body = buf;
+        if (recordFilter != null) {
+            if (!recordFilter.accept(buf, 0, length)) {
+                return null;
+            }
+            body = Arrays.copyOf(buf, length);
+        }
+        if (transcoder != null) {
+            body = transcoder.transcode(body);
+        }
+        Event event = EventBuilder.withBody(body);
+        if (fieldExtractor != null) {
+            fieldExtractor.extract(body, event.getHeaders());
+        }
+        return event;
+    }
+
+    /**
+     * Create an event for the next part of the entry without inflating it,
+     * the stream is only moved past the bytes the event covers.
+     */
+    private Event readLazyEvent(ResettableZipInputStream zin) throws IOException {
+        ZipArchive.Entry entry = zin.getEntry();
+        long position = zin.tell();
+        long remaining = entry.getSize() - position;
+        if (remaining <= 0) {
+            return null;
+        }
+        if (remaining > maxFileLength) {
+            LOGGER.warn("File length exceeds maxFileLength ({}), truncating file event!", maxFileLength);
+        }
+        int length = (int) Math.min(remaining, maxFileLength);
+
+        Event event = new LazyZipEvent(zin.getArchive(), entry, position, length);
+        event.getHeaders().put(ENTRY_HEADER_KEY, entry.getName());
+        event.getHeaders().put(ENTRY_SIZE_HEADER_KEY, String.valueOf(entry.getSize()));
+        zin.seek(position + length);
+        return event;
+    }
+
+    /**
+     * Read the next part of the next entry accepted by the entry filter,
+     * the data of rejected entries is never touched.
+     */
+    private Event readFilteredEvent(ResettableZipInputStream zin) throws IOException {
+        if (!entriesPositioned) {
+            positionEntries();
+        }
+        ZipArchive archive = zin.getArchive();
+        List<ZipArchive.Entry> entries = archive.getEntries();
+        while (entryIndex < entries.size()) {
+            ZipArchive.Entry entry = entries.get(entryIndex);
+            if (entryOffset < entry.getSize() && entryFilter.accept(entry)) {
+                if (entryOffset == 0 && entry.getSize() > maxFileLength) {
+                    LOGGER.warn("Entry {} exceeds maxFileLength ({}), splitting it into several events",
+                            entry.getName(), maxFileLength);
+                }
+                int length = (int) Math.min(entry.getSize() - entryOffset, maxFileLength);
+                Event event;
+                if (lazyBody) {
+                    event = new LazyZipEvent(archive, entry, entryOffset, length);
+                } else {
+                    if (entryStream == null) {
+                        entryStream = archive.openStream(entry);
+                        ByteStreams.skipFully(entryStream, entryOffset);
+                    }
+                    byte[] body = recordBuffer(length);
+                    ByteStreams.readFully(entryStream, body, 0, length);
+                    event = withBody(body, length);
+                }
+                entryOffset += length;
+                if (event == null) {
+                    continue;
+                }
+                event.getHeaders().put(ENTRY_HEADER_KEY, entry.getName());
+                event.getHeaders().put(ENTRY_SIZE_HEADER_KEY, String.valueOf(entry.getSize()));
+                return event;
+            }
+            closeEntryStream();
+            entryIndex++;
+            entryOffset = 0;
+        }
+        return null;
+    }
+
+    // take the entry and offset to read from the tracked position
+    private void positionEntries() throws IOException {
+        long position = ((RemoteMarkable) in).getMarkPosition();
+        closeEntryStream();
+        entryIndex = EntryPositions.entryIndex(position);
+        entryOffset = EntryPositions.offset(position);
+        entriesPositioned = true;
+    }
+
+    private void closeEntryStream() throws IOException {
+        if (entryStream != null) {
+            entryStream.close();
+            entryStream = null;
         }
     }
 
@@ -87,7 +379,8 @@ public class ZipDeserializer implements EventDeserializer {
     @Override
     public List<Event> readEvents(int numEvents) throws IOException {
         ensureOpen();
-        List<Event> events = Lists.newLinkedList();
+        List<Event> events = Lists.newArrayListWithCapacity(
+                Math.min(numEvents, MAX_PRESIZED_BATCH));
         for (int i = 0; i < numEvents; i++) {
             Event event = readEvent();
             if (event != null) {
@@ -102,20 +395,31 @@ public class ZipDeserializer implements EventDeserializer {
     @Override
     public void mark() throws IOException {
         ensureOpen();
-        in.mark();
+        if (entriesPositioned) {
+            ((RemoteMarkable) in).markPosition(EntryPositions.encode(entryIndex, entryOffset));
+        } else {
+            in.mark();
+        }
     }
 
     @Override
     public void reset() throws IOException {
         ensureOpen();
         in.reset();
+        if (entriesPositioned) {
+            positionEntries();
+        }
     }
 
     @Override
     public void close() throws IOException {
         if (isOpen) {
             reset();
+            closeEntryStream();
             in.close();
+            if (recordFilter != null) {
+                recordFilter.close();
+            }
             isOpen = false;
         }
     }
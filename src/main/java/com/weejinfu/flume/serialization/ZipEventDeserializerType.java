@@ -0,0 +1,51 @@
+package com.weejinfu.flume.serialization;
+
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.serialization.EventDeserializer;
+
+import java.util.Locale;
+
+/**
+ * Aliases of the deserializers shipped with the zip spooling source, in the
+ * spirit of {@link org.apache.flume.serialization.EventDeserializerType}.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public enum ZipEventDeserializerType {
+    ZIP(ZipDeserializer.Builder.class),
+    PASSTHROUGH(ZipPassthroughDeserializer.Builder.class),
+    TAR(TarDeserializer.Builder.class),
+    MULTILINE(MultilineDeserializer.Builder.class),
+    OTHER(null);
+
+    private final Class<? extends EventDeserializer.Builder> builderClass;
+
+    ZipEventDeserializerType(Class<? extends EventDeserializer.Builder> builderClass) {
+        this.builderClass = builderClass;
+    }
+
+    public Class<? extends EventDeserializer.Builder> getBuilderClass() {
+        return builderClass;
+    }
+
+    /**
+     * Resolve a configured deserializer type to a name understood by
+     * {@link org.apache.flume.serialization.EventDeserializerFactory}.
+     * Known aliases and the simple names of the deserializers in this
+     * package map to their builder class, anything else is returned as is.
+     */
+    public static String resolve(String deserializerType) {
+        for (ZipEventDeserializerType type : values()) {
+            if (type.builderClass == null) {
+                continue;
+            }
+            String simpleName = type.builderClass.getEnclosingClass().getSimpleName();
+            if (type.name().equals(deserializerType.toUpperCase(Locale.ENGLISH))
+                    || simpleName.equals(deserializerType)) {
+                return type.builderClass.getName();
+            }
+        }
+        return deserializerType;
+    }
+}
@@ -0,0 +1,197 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.ResettableInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A deserializer which ships zip data without inflating it, for sinks that
+ * store compressed data anyway.
+ *
+ * <p/>In {@link Mode#ENTRY} mode every file entry of the archive becomes one
+ * event whose body is the raw (deflate or stored) entry data, with the
+ * compression method, CRC32 and uncompressed size in the headers. In
+ * {@link Mode#ARCHIVE} mode the whole zip file is the body of a single event.
+ * Files in other formats (gzip, zlib, ...) have no entries and are always
+ * shipped whole, with the codec name as method header.
+ *
+ * <p/>Entries rejected by the configured {@link EntryFilter} are skipped in
+ * entry mode. The position tracked for the stream is the index of the next
+ * entry to ship, not an offset in the uncompressed data.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class ZipPassthroughDeserializer implements EventDeserializer {
+
+    public static final String MODE_KEY = "passthroughMode";
+    public static final String MODE_DEFAULT = Mode.ENTRY.name();
+
+    /** Headers describing the shipped data. */
+    public static final String METHOD_HEADER_KEY = "zipMethod";
+    public static final String CRC_HEADER_KEY = "zipCrc32";
+
+    public static final String METHOD_STORED = "stored";
+    public static final String METHOD_DEFLATED = "deflate";
+    public static final String METHOD_ZIP = "zip";
+
+    private static final int MAX_PRESIZED_BATCH = 1024;
+
+    private final ResettableZipInputStream in;
+    private final Mode mode;
+    private final EntryFilter entryFilter;
+    private volatile boolean isOpen;
+
+    protected ZipPassthroughDeserializer(Context context, ResettableInputStream in) {
+        Preconditions.checkArgument(in instanceof ResettableZipInputStream,
+                "%s requires a %s", getClass().getSimpleName(),
+                ResettableZipInputStream.class.getSimpleName());
+        this.in = (ResettableZipInputStream) in;
+        this.mode = Mode.valueOf(context.getString(MODE_KEY, MODE_DEFAULT)
+                .toUpperCase(Locale.ENGLISH));
+        this.entryFilter = EntryFilter.fromContext(context);
+        this.isOpen = true;
+    }
+
+    /**
+     * Returns the raw data of the next entry (or the whole archive)
+     * @return event with still compressed data, or null once done
+     * @throws IOException
+     */
+    @Override
+    public Event readEvent() throws IOException {
+        ensureOpen();
+        long next = in.tell();
+        if (!in.isZip()) {
+            if (next > 0) {
+                return null;
+            }
+            in.seek(1);
+            Event event = EventBuilder.withBody(Files.toByteArray(in.getFile()));
+            event.getHeaders().put(METHOD_HEADER_KEY, in.getCodec().getName());
+            return event;
+        }
+
+        ZipArchive archive = in.getArchive();
+        if (mode == Mode.ARCHIVE) {
+            if (next > 0) {
+                return null;
+            }
+            in.seek(1);
+            Event event = EventBuilder.withBody(toBytes(archive.getBuffer()));
+            event.getHeaders().put(METHOD_HEADER_KEY, METHOD_ZIP);
+            return event;
+        }
+
+        List<ZipArchive.Entry> entries = archive.getEntries();
+        while (next < entries.size() && (entries.get((int) next).isDirectory()
+                || !entryFilter.accept(entries.get((int) next)))) {
+            next++;
+        }
+        if (next >= entries.size()) {
+            in.seek(next);
+            return null;
+        }
+        ZipArchive.Entry entry = entries.get((int) next);
+        in.seek(next + 1);
+
+        Event event = EventBuilder.withBody(toBytes(archive.slice(entry)));
+        Map<String, String> headers = event.getHeaders();
+        headers.put(ZipDeserializer.ENTRY_HEADER_KEY, entry.getName());
+        headers.put(ZipDeserializer.ENTRY_SIZE_HEADER_KEY, String.valueOf(entry.getSize()));
+        headers.put(CRC_HEADER_KEY, String.valueOf(entry.getCrc()));
+        headers.put(METHOD_HEADER_KEY, methodName(entry.getMethod()));
+        return event;
+    }
+
+    @Override
+    public List<Event> readEvents(int numEvents) throws IOException {
+        ensureOpen();
+        List<Event> events = Lists.newArrayListWithCapacity(
+                Math.min(numEvents, MAX_PRESIZED_BATCH));
+        for (int i = 0; i < numEvents; i++) {
+            Event event = readEvent();
+            if (event != null) {
+                events.add(event);
+            } else {
+                break;
+            }
+        }
+        return events;
+    }
+
+    private static byte[] toBytes(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static String methodName(int method) {
+        switch (method) {
+            case ZipArchive.METHOD_STORED:
+                return METHOD_STORED;
+            case ZipArchive.METHOD_DEFLATED:
+                return METHOD_DEFLATED;
+            default:
+                return String.valueOf(method);
+        }
+    }
+
+    @Override
+    public void mark() throws IOException {
+        ensureOpen();
+        in.mark();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        ensureOpen();
+        in.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isOpen) {
+            reset();
+            in.close();
+            isOpen = false;
+        }
+    }
+
+    private void ensureOpen() {
+        if (!isOpen) {
+            throw new IllegalStateException("Serializer has been closed");
+        }
+    }
+
+    /** What to ship as event body. */
+    public enum Mode {
+        ENTRY, ARCHIVE
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // Nested classes:
+    ///////////////////////////////////////////////////////////////////////////////
+    /** Builder implementations MUST have a public no-arg constructor */
+    public static class Builder implements EventDeserializer.Builder {
+
+        @Override
+        public ZipPassthroughDeserializer build(Context context, ResettableInputStream in) {
+            return new ZipPassthroughDeserializer(context, in);
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Blocked gzip (BGZF): a series of independent gzip members of at most
+ * 64K each, whose compressed size is recorded in a "BC" extra field.
+ *
+ * <p/>Every BGZF file is valid gzip, so {@link #decompress(InputStream)}
+ * simply reads it sequentially. Random access and parallel inflation are
+ * provided by {@link BgzfIndex} and {@link BgzfInputStream}.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class BgzfCodec implements CompressionCodec {
+
+    /** Upper bound of the compressed and of the uncompressed size of a block. */
+    public static final int MAX_BLOCK_SIZE = 65536;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    @Override
+    public String getName() {
+        return "bgzf";
+    }
+
+    @Override
+    public boolean matches(byte[] magic, int length) {
+        // gzip with FEXTRA set, starting with the BC subfield of length 2
+        return length >= 16 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b
+                && magic[2] == 8 && (magic[3] & 4) != 0
+                && magic[12] == 'B' && magic[13] == 'C' && magic[14] == 2 && magic[15] == 0;
+    }
+
+    @Override
+    public List<String> getSuffixes() {
+        return ImmutableList.of(".bgz", ".bgzf");
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+}
@@ -0,0 +1,265 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.base.Preconditions;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Compressed and uncompressed start offsets of every block of a BGZF file.
+ *
+ * <p/>Building the index only reads the block headers and trailers, not the
+ * compressed data. It can be stored next to the position tracker meta file
+ * so that restarts don't scan the file again; a stored index is only used
+ * while the path, length and modification time of the file match.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class BgzfIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(BgzfIndex.class);
+
+    private static final int INDEX_MAGIC = 0x42474958; // "BGIX"
+    private static final int INDEX_VERSION = 1;
+
+    private static final int BLOCK_HEADER_SIZE = 18;
+    private static final int BLOCK_TRAILER_SIZE = 8;
+
+    // both have one more element than there are blocks, holding the totals
+    private final long[] compressedOffsets;
+    private final long[] uncompressedOffsets;
+
+    private BgzfIndex(long[] compressedOffsets, long[] uncompressedOffsets) {
+        this.compressedOffsets = compressedOffsets;
+        this.uncompressedOffsets = uncompressedOffsets;
+    }
+
+    /**
+     * Load the index of a file from indexFile if it is up to date, otherwise
+     * build it and store it there.
+     * @param indexFile
+     *        Where the index is kept, may be null to keep it in memory only
+     */
+    public static BgzfIndex open(File file, File indexFile) throws IOException {
+        if (indexFile != null) {
+            BgzfIndex index = load(indexFile, file);
+            if (index != null) {
+                return index;
+            }
+        }
+        BgzfIndex index = build(file);
+        if (indexFile != null) {
+            index.store(indexFile, file);
+        }
+        return index;
+    }
+
+    /**
+     * Scan the block headers of a file.
+     * @throws IOException if the file is not blocked gzip
+     */
+    public static BgzfIndex build(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            long[] compressed = new long[1024];
+            long[] uncompressed = new long[compressed.length];
+            ByteBuffer header = ByteBuffer.allocate(BgzfCodec.MAX_BLOCK_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            int count = 0;
+            long offset = 0;
+            long total = 0;
+            while (offset < length) {
+                if (count + 1 >= compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    uncompressed = Arrays.copyOf(uncompressed, uncompressed.length * 2);
+                }
+                compressed[count] = offset;
+                uncompressed[count] = total;
+
+                int blockSize = readBlockSize(channel, offset, header);
+                if (offset + blockSize > length) {
+                    throw new IOException("Truncated BGZF block at offset " + offset + " of " + file);
+                }
+                header.clear();
+                header.limit(4);
+                readFully(channel, header, offset + blockSize - 4);
+                total += header.getInt(0) & 0xffffffffL;
+                offset += blockSize;
+                count++;
+            }
+            compressed[count] = offset;
+            uncompressed[count] = total;
+            logger.debug("Indexed {} BGZF blocks of {} in {} ms", new Object[] {
+                    count, file, System.currentTimeMillis() - start });
+            return new BgzfIndex(Arrays.copyOf(compressed, count + 1),
+                    Arrays.copyOf(uncompressed, count + 1));
+        } finally {
+            raf.close();
+        }
+    }
+
+    // size of the block at offset, taken from its BC extra subfield
+    private static int readBlockSize(FileChannel channel, long offset, ByteBuffer header)
+            throws IOException {
+        header.clear();
+        header.limit(12);
+        readFully(channel, header, offset);
+        if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b
+                || header.get(2) != 8 || (header.get(3) & 4) == 0) {
+            throw new IOException("No BGZF block at offset " + offset);
+        }
+        int extraLength = header.getShort(10) & 0xffff;
+        header.clear();
+        header.limit(extraLength);
+        readFully(channel, header, offset + 12);
+        for (int pos = 0; pos + 4 <= extraLength; ) {
+            int subfieldLength = header.getShort(pos + 2) & 0xffff;
+            if (header.get(pos) == 'B' && header.get(pos + 1) == 'C' && subfieldLength == 2) {
+                int blockSize = (header.getShort(pos + 4) & 0xffff) + 1;
+                if (blockSize < BLOCK_HEADER_SIZE + BLOCK_TRAILER_SIZE) {
+                    throw new IOException("Invalid BGZF block size at offset " + offset);
+                }
+                return blockSize;
+            }
+            pos += 4 + subfieldLength;
+        }
+        throw new IOException("No BGZF block size at offset " + offset);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n == -1) {
+                throw new EOFException("Unexpected end of file at offset " + position);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * @return the stored index of the file, or null if there is none or it
+     * is out of date
+     */
+    static BgzfIndex load(File indexFile, File file) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                        || !in.readUTF().equals(file.getPath())
+                        || in.readLong() != file.length()
+                        || in.readLong() != file.lastModified()) {
+                    return null;
+                }
+                int count = in.readInt();
+                long[] compressed = new long[count + 1];
+                long[] uncompressed = new long[count + 1];
+                for (int i = 0; i <= count; i++) {
+                    compressed[i] = in.readLong();
+                    uncompressed[i] = in.readLong();
+                }
+                return new BgzfIndex(compressed, uncompressed);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable BGZF index " + indexFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the index, replacing indexFile only once it is complete.
+     */
+    void store(File indexFile, File file) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(file.getPath());
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeInt(getBlockCount());
+            for (int i = 0; i < compressedOffsets.length; i++) {
+                out.writeLong(compressedOffsets[i]);
+                out.writeLong(uncompressedOffsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Unable to delete old BGZF index " + indexFile);
+        }
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("Unable to rename " + tmp + " to " + indexFile);
+        }
+    }
+
+    public int getBlockCount() {
+        return compressedOffsets.length - 1;
+    }
+
+    /** Start of a block in the file, the file length for getBlockCount(). */
+    public long getCompressedOffset(int block) {
+        return compressedOffsets[block];
+    }
+
+    /** Uncompressed offset of the first byte of a block. */
+    public long getUncompressedOffset(int block) {
+        return uncompressedOffsets[block];
+    }
+
+    public long getUncompressedSize() {
+        return uncompressedOffsets[getBlockCount()];
+    }
+
+    /**
+     * @return the block holding the given uncompressed position, or
+     * getBlockCount() if the position is at or past the end
+     */
+    public int blockFor(long position) {
+        Preconditions.checkArgument(position >= 0, "Negative position %s", position);
+        if (position >= getUncompressedSize()) {
+            return getBlockCount();
+        }
+        // last block starting at or before position
+        int low = 0;
+        int high = getBlockCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (uncompressedOffsets[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+}
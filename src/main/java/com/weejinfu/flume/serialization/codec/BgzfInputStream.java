@@ -0,0 +1,209 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file from any block on, inflating the blocks ahead of the
+ * reader on an {@link Executor}. Blocks are handed out in file order no
+ * matter in which order their inflation completes; at most {@code window}
+ * blocks are read ahead, which bounds the memory used to about
+ * window * 128K.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class BgzfInputStream extends InputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final BgzfIndex index;
+    private final Executor executor;
+    private final int window;
+    private final Deque<Future<byte[]>> pending = Lists.newLinkedList();
+    private final byte[] single = new byte[1];
+    private int nextBlock;
+    private byte[] block = EMPTY;
+    private int blockPos;
+
+    /**
+     * @param file
+     *        BGZF file to read
+     *
+     * @param index
+     *        Block index of the file
+     *
+     * @param firstBlock
+     *        Block to start reading at
+     *
+     * @param executor
+     *        Inflates the blocks, null to inflate them on the reading thread
+     *
+     * @param window
+     *        Maximum number of blocks read ahead
+     */
+    public BgzfInputStream(File file, BgzfIndex index, int firstBlock,
+                           Executor executor, int window) throws IOException {
+        Preconditions.checkArgument(firstBlock >= 0 && firstBlock <= index.getBlockCount(),
+                "Block %s out of range", firstBlock);
+        Preconditions.checkArgument(window > 0, "Window must be positive: %s", window);
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.index = index;
+        this.executor = executor;
+        this.window = executor == null ? 1 : window;
+        this.nextBlock = firstBlock;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (blockPos >= block.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, block.length - blockPos);
+        System.arraycopy(block, blockPos, b, off, n);
+        blockPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return block.length - blockPos;
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (pending.size() < window && nextBlock < index.getBlockCount()) {
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new InflateTask(readBlock(nextBlock)));
+            nextBlock++;
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                task.run();
+            }
+            pending.add(task);
+        }
+        Future<byte[]> next = pending.poll();
+        if (next == null) {
+            return false;
+        }
+        try {
+            block = next.get();
+            blockPos = 0;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while inflating BGZF block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to inflate BGZF block", e.getCause());
+        }
+    }
+
+    private byte[] readBlock(int i) throws IOException {
+        long position = index.getCompressedOffset(i);
+        ByteBuffer raw = ByteBuffer.allocate(
+                (int) (index.getCompressedOffset(i + 1) - position));
+        while (raw.hasRemaining()) {
+            int n = channel.read(raw, position + raw.position());
+            if (n == -1) {
+                throw new EOFException("Unexpected end of BGZF file at offset "
+                        + (position + raw.position()));
+            }
+        }
+        return raw.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+        raf.close();
+    }
+
+    /** Inflates one complete block and verifies its checksum. */
+    private static class InflateTask implements Callable<byte[]> {
+        private final byte[] raw;
+
+        InflateTask(byte[] raw) {
+            this.raw = raw;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+            int dataStart = 12 + (buf.getShort(10) & 0xffff);
+            long crc = buf.getInt(raw.length - 8) & 0xffffffffL;
+            int size = buf.getInt(raw.length - 4);
+            if (size < 0 || size > BgzfCodec.MAX_BLOCK_SIZE) {
+                throw new IOException("Invalid BGZF block size " + size);
+            }
+
+            byte[] data = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                // the trailer after the deflate data saves a dummy input byte
+                inflater.setInput(raw, dataStart, raw.length - dataStart);
+                int filled = 0;
+                while (filled < size && !inflater.finished()) {
+                    int n = inflater.inflate(data, filled, size - filled);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    filled += n;
+                }
+                if (filled != size) {
+                    throw new IOException("BGZF block inflated to " + filled
+                            + " bytes instead of " + size);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt BGZF block", e);
+            } finally {
+                inflater.end();
+            }
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            if (crc32.getValue() != crc) {
+                throw new IOException("BGZF block checksum mismatch");
+            }
+            return data;
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.weejinfu.flume.serialization.codec;
+
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A compression format which can be read by
+ * {@link com.weejinfu.flume.serialization.ResettableZipInputStream}.
+ *
+ * <p/>Implementations must have a public no-arg constructor, additional
+ * codecs are picked up through {@link java.util.ServiceLoader} (see
+ * {@link CompressionCodecs}).
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public interface CompressionCodec {
+
+    /** Short name of the format, e.g. "gzip". */
+    String getName();
+
+    /**
+     * Whether the first bytes of a file identify this format.
+     * @param magic
+     *        Start of the file
+     * @param length
+     *        Number of valid bytes in magic, may be less than its length
+     *        for tiny files
+     */
+    boolean matches(byte[] magic, int length);
+
+    /** Lower case file name suffixes used when the magic bytes don't tell. */
+    List<String> getSuffixes();
+
+    /**
+     * Wrap the raw file data into a stream of decompressed data. Closing
+     * the returned stream closes the given one.
+     */
+    InputStream decompress(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,129 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceLoader;
+
+/**
+ * Selects the {@link CompressionCodec} of a file, by its magic bytes first
+ * and by its name suffix otherwise. The two byte zlib header is too weak to
+ * be trusted over a suffix: it only decides for files without a known one.
+ *
+ * <p/>The built-in codecs (zip, blocked gzip, gzip, zlib, raw deflate and
+ * plain tar) are always available; more can be registered in
+ * <tt>META-INF/services/com.weejinfu.flume.serialization.codec.CompressionCodec</tt>.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class CompressionCodecs {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressionCodecs.class);
+
+    /** Number of bytes read to detect the format of a file. */
+    public static final int MAGIC_LENGTH = 16;
+
+    private static final List<CompressionCodec> CODECS = loadCodecs();
+
+    private static List<CompressionCodec> loadCodecs() {
+        ImmutableList.Builder<CompressionCodec> codecs = ImmutableList.builder();
+        codecs.add(new ZipCodec(), new BgzfCodec(), new GzipCodec(), new ZlibCodec(), new DeflateCodec(),
+                new IdentityCodec());
+        for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class)) {
+            logger.info("Loaded compression codec {}", codec.getName());
+            codecs.add(codec);
+        }
+        return codecs.build();
+    }
+
+    public static List<CompressionCodec> getCodecs() {
+        return CODECS;
+    }
+
+    /**
+     * @return the codec with the given name (ignoring case), or null
+     */
+    public static CompressionCodec forName(String name) {
+        for (CompressionCodec codec : CODECS) {
+            if (codec.getName().equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or its format is unknown
+     */
+    public static CompressionCodec forFile(File file) throws IOException {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while (length < magic.length
+                    && (n = in.read(magic, length, magic.length - length)) != -1) {
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        CompressionCodec codec = forNestedMagic(magic, length);
+        if (codec == null) {
+            codec = forSuffix(file.getName());
+        }
+        if (codec == null) {
+            codec = forMagic(magic, length);
+        }
+        if (codec == null) {
+            throw new IOException("Unknown compression format of file " + file);
+        }
+        return codec;
+    }
+
+    /**
+     * @return the codec whose magic bytes start the given data, or null
+     */
+    public static CompressionCodec forMagic(byte[] magic, int length) {
+        for (CompressionCodec codec : CODECS) {
+            if (codec.matches(magic, length)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The codec of data found inside another compressed file. Only formats
+     * with a distinctive signature are considered: the two byte zlib header
+     * also matches plain text such as "x " or "80".
+     * @return the codec, or null if the data does not look compressed
+     */
+    public static CompressionCodec forNestedMagic(byte[] magic, int length) {
+        CompressionCodec codec = forMagic(magic, length);
+        return codec instanceof ZlibCodec ? null : codec;
+    }
+
+    private static CompressionCodec forSuffix(String fileName) {
+        String name = fileName.toLowerCase(Locale.ENGLISH);
+        for (CompressionCodec codec : CODECS) {
+            for (String suffix : codec.getSuffixes()) {
+                if (name.endsWith(suffix)) {
+                    return codec;
+                }
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.List;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate (RFC 1951) data without any header. There are no magic bytes,
+ * so it is only selected by file name suffix.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class DeflateCodec implements CompressionCodec {
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public boolean matches(byte[] magic, int length) {
+        return false;
+    }
+
+    @Override
+    public List<String> getSuffixes() {
+        return ImmutableList.of(".deflate");
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        // a nowrap inflater may need one byte past the end of the data
+        InputStream padded = new SequenceInputStream(in, new ByteArrayInputStream(new byte[1]));
+        return new ZlibCodec.OwnedInflaterInputStream(padded, new Inflater(true));
+    }
+
+}
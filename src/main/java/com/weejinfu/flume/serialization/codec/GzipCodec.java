@@ -0,0 +1,42 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gzip files, including several concatenated members which are read as
+ * one continuous stream.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class GzipCodec implements CompressionCodec {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public boolean matches(byte[] magic, int length) {
+        return length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+    }
+
+    @Override
+    public List<String> getSuffixes() {
+        return ImmutableList.of(".gz", ".gzip");
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.base.Preconditions;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a multi-member gzip file which is still being appended to, one
+ * complete member at a time.
+ *
+ * <p/>A member is only handed out once its trailer has been written and
+ * its checksum verified, so readers never see the data of a half written
+ * member. At the end of the complete members {@link #read} returns -1, and
+ * the next call checks whether the file has grown since. Every member is
+ * inflated into memory before it is returned, which suits writers which
+ * append members of moderate size, one per flush.
+ *
+ * <p/>A writer may flush in the middle of a line, so the data after the
+ * last line feed of the members read is held back until the next member
+ * completes it, or until {@link #finish()} declares that no member follows.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class GzipMemberInputStream extends InputStream {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int CHUNK_SIZE = 65536;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final NavigableMap<Long, Long> members;
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] single = new byte[1];
+    private long memberOffset;
+    private long uncompressedOffset;
+    // file length at which the next member was found incomplete
+    private long incompleteAt = -1;
+    // file length when the last member was looked for
+    private long checkedLength;
+    private byte[] member = EMPTY;
+    private int memberPos;
+    // unterminated last line, held back until the next member
+    private byte[] partialLine = EMPTY;
+    private boolean finished;
+
+    /**
+     * @param file
+     *        Gzip file to read
+     *
+     * @param memberOffset
+     *        Offset of the member to start reading at
+     *
+     * @param uncompressedOffset
+     *        Uncompressed offset of the first byte of that member
+     *
+     * @param members
+     *        Receives the uncompressed and compressed offsets of the end of
+     *        every complete member read, may be null
+     */
+    public GzipMemberInputStream(File file, long memberOffset, long uncompressedOffset,
+                                 NavigableMap<Long, Long> members) throws IOException {
+        Preconditions.checkArgument(memberOffset >= 0 && uncompressedOffset >= 0,
+                "Negative offset %s, %s", memberOffset, uncompressedOffset);
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.members = members;
+        this.memberOffset = memberOffset;
+        this.uncompressedOffset = uncompressedOffset;
+    }
+
+    /** Offset in the file right after the last complete member read. */
+    public long getMemberOffset() {
+        return memberOffset;
+    }
+
+    /** Whether the file has grown since a member was last looked for. */
+    public boolean hasGrown() throws IOException {
+        return channel.size() != checkedLength;
+    }
+
+    /**
+     * No more members will be appended: the data held back after the last
+     * line feed is returned too.
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (memberPos >= member.length) {
+            if (nextMember()) {
+                continue;
+            }
+            if (!finished || partialLine.length == 0) {
+                return -1;
+            }
+            member = partialLine;
+            memberPos = 0;
+            partialLine = EMPTY;
+        }
+        int n = Math.min(len, member.length - memberPos);
+        System.arraycopy(member, memberPos, b, off, n);
+        memberPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return member.length - memberPos;
+    }
+
+    // inflate the member at memberOffset if it has been written completely
+    private boolean nextMember() throws IOException {
+        long length = channel.size();
+        checkedLength = length;
+        if (memberOffset >= length || length == incompleteAt) {
+            return false;
+        }
+        long dataOffset = dataOffset(length);
+        if (dataOffset < 0) {
+            incompleteAt = length;
+            return false;
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] out = new byte[CHUNK_SIZE];
+        Inflater inflater = new Inflater(true);
+        long pos = dataOffset;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (pos >= length) {
+                        incompleteAt = length;
+                        return false;
+                    }
+                    chunk.clear();
+                    int n = channel.read(chunk, pos);
+                    inflater.setInput(chunk.array(), 0, n);
+                    pos += n;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Corrupt gzip member at offset " + memberOffset);
+                }
+                int n = inflater.inflate(out);
+                data.write(out, 0, n);
+            }
+            pos -= inflater.getRemaining();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip member at offset " + memberOffset, e);
+        } finally {
+            inflater.end();
+        }
+
+        if (pos + TRAILER_SIZE > length) {
+            incompleteAt = length;
+            return false;
+        }
+        ByteBuffer trailer = readAt(pos, TRAILER_SIZE);
+        byte[] bytes = data.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((trailer.getInt(0) & 0xffffffffL) != crc.getValue()
+                || trailer.getInt(4) != bytes.length) {
+            throw new IOException("Gzip member checksum mismatch at offset " + memberOffset);
+        }
+
+        holdPartialLine(bytes);
+        memberOffset = pos + TRAILER_SIZE;
+        uncompressedOffset += bytes.length;
+        incompleteAt = -1;
+        if (members != null) {
+            members.put(uncompressedOffset, memberOffset);
+        }
+        return true;
+    }
+
+    // return the new member up to its last line feed, keeping the rest
+    private void holdPartialLine(byte[] bytes) {
+        byte[] data = bytes;
+        if (partialLine.length > 0) {
+            data = new byte[partialLine.length + bytes.length];
+            System.arraycopy(partialLine, 0, data, 0, partialLine.length);
+            System.arraycopy(bytes, 0, data, partialLine.length, bytes.length);
+        }
+        int end = data.length;
+        if (!finished) {
+            while (end > 0 && data[end - 1] != '\n') {
+                end--;
+            }
+        }
+        member = end == data.length ? data : Arrays.copyOf(data, end);
+        partialLine = end == data.length ? EMPTY : Arrays.copyOfRange(data, end, data.length);
+        memberPos = 0;
+    }
+
+    // offset of the deflate data of the member, -1 if its header is incomplete
+    private long dataOffset(long length) throws IOException {
+        if (memberOffset + HEADER_SIZE > length) {
+            return -1;
+        }
+        ByteBuffer header = readAt(memberOffset, HEADER_SIZE);
+        if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b || header.get(2) != 8) {
+            throw new IOException("No gzip member at offset " + memberOffset);
+        }
+        int flags = header.get(3) & 0xff;
+        long pos = memberOffset + HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            if (pos + 2 > length) {
+                return -1;
+            }
+            pos += 2 + (readAt(pos, 2).getShort(0) & 0xffff);
+        }
+        for (int flag : new int[] { FNAME, FCOMMENT }) {
+            if ((flags & flag) != 0) {
+                pos = skipZeroTerminated(pos, length);
+                if (pos < 0) {
+                    return -1;
+                }
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        return pos > length ? -1 : pos;
+    }
+
+    private long skipZeroTerminated(long pos, long length) throws IOException {
+        while (pos < length) {
+            ByteBuffer bytes = readAt(pos, (int) Math.min(CHUNK_SIZE, length - pos));
+            for (int i = 0; i < bytes.limit(); i++) {
+                if (bytes.get(i) == 0) {
+                    return pos + i + 1;
+                }
+            }
+            pos += bytes.limit();
+        }
+        return -1;
+    }
+
+    private ByteBuffer readAt(long position, int size) throws IOException {
+        chunk.clear();
+        chunk.limit(size);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) == -1) {
+                throw new IOException("Gzip file truncated at offset " + position);
+            }
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+}
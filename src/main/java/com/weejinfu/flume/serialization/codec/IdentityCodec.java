@@ -0,0 +1,40 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Uncompressed containers, i.e. plain tar files, which are read as they
+ * are. Only selected by suffix, tar has no magic bytes at the start.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class IdentityCodec implements CompressionCodec {
+
+    @Override
+    public String getName() {
+        return "none";
+    }
+
+    @Override
+    public boolean matches(byte[] magic, int length) {
+        return false;
+    }
+
+    @Override
+    public List<String> getSuffixes() {
+        return ImmutableList.of(".tar");
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new BufferedInputStream(in, ZlibCodec.BUFFER_SIZE);
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Zip archives, of which only the first entry is read.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class ZipCodec implements CompressionCodec {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    @Override
+    public String getName() {
+        return "zip";
+    }
+
+    @Override
+    public boolean matches(byte[] magic, int length) {
+        // local file header, or the end of central directory of an empty zip
+        return length >= 4 && magic[0] == 'P' && magic[1] == 'K'
+                && ((magic[2] == 3 && magic[3] == 4) || (magic[2] == 5 && magic[3] == 6));
+    }
+
+    @Override
+    public List<String> getSuffixes() {
+        return ImmutableList.of(".zip");
+    }
+
+    /**
+     * @return an {@link EntryInputStream} positioned at the first entry
+     * @throws IOException if the archive has no entry
+     */
+    @Override
+    public EntryInputStream decompress(InputStream in) throws IOException {
+        EntryInputStream zin = new EntryInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        if (zin.getEntry() == null) {
+            zin.close();
+            throw new IOException("There is no compressed file in the zip file.");
+        }
+        return zin;
+    }
+
+    /** A {@link ZipInputStream} which remembers the entry it is reading. */
+    public static class EntryInputStream extends ZipInputStream {
+        private final ZipEntry entry;
+
+        EntryInputStream(InputStream in) throws IOException {
+            super(in);
+            this.entry = getNextEntry();
+        }
+
+        public ZipEntry getEntry() {
+            return entry;
+        }
+    }
+
+}
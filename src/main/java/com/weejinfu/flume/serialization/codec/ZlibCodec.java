@@ -0,0 +1,64 @@
+package com.weejinfu.flume.serialization.codec;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate data with a zlib (RFC 1950) header and trailer.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class ZlibCodec implements CompressionCodec {
+
+    static final int BUFFER_SIZE = 65536;
+
+    @Override
+    public String getName() {
+        return "zlib";
+    }
+
+    @Override
+    public boolean matches(byte[] magic, int length) {
+        if (length < 2) {
+            return false;
+        }
+        int cmf = magic[0] & 0xff;
+        int flg = magic[1] & 0xff;
+        // deflate with a window of at most 32K and a valid header checksum
+        return (cmf & 0x0f) == 8 && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    @Override
+    public List<String> getSuffixes() {
+        return ImmutableList.of(".zz", ".zlib");
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new OwnedInflaterInputStream(in, new Inflater());
+    }
+
+    /** Releases the native inflater memory on close. */
+    static class OwnedInflaterInputStream extends InflaterInputStream {
+        OwnedInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.weejinfu.flume.source;
+
+import com.google.common.base.Preconditions;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+
+/**
+ * Paces the delivery of events to channels which fill up, instead of
+ * sleeping for a fixed, doubling interval and then sending the same batch
+ * again in one piece.
+ *
+ * <p/>A rejected batch is kept by the caller and sent again in chunks of
+ * {@link #getBatchSize()} events, which is halved on every rejection and
+ * grows back additively as chunks are accepted. The delay before a retry is
+ * the time the channel took to accept that many events lately, as measured
+ * from the accepted chunks, so the source follows the rate at which the
+ * sinks drain the channel. It doubles on consecutive rejections, up to the
+ * maximum backoff, in case the drain rate has dropped.
+ *
+ * <p/>Chunks grow back up to the target batch size, which is fixed unless
+ * it is given bounds to tune it in. It is then adjusted after every
+ * committed batch by additive increase, multiplicative decrease: it grows
+ * by a twentieth of the range while batches which were read full are
+ * committed within the target latency, and shrinks by a quarter when a
+ * batch takes longer or when the last increase lowered the throughput.
+ *
+ * <p/>Instances are not thread safe.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class FlowController {
+
+    // weight of the newest sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+    private static final long INITIAL_DELAY = 250L;
+    private static final long MIN_DELAY = 10L;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetLatency;
+    private final long maxDelay;
+    private int targetBatchSize;
+    private int batchSize;
+    private int rejections;
+    // moving averages of the accepted events per millisecond, and of the
+    // milliseconds a chunk takes to be processed by the channels
+    private double acceptRate = -1;
+    private double latency = -1;
+    // time of the first rejection since the last accepted chunk
+    private long rejectedSince = -1;
+    // moving average of the events per second committed in full batches,
+    // and its value before the last increase of the target batch size
+    private double throughput = -1;
+    private double throughputBeforeIncrease = -1;
+
+    /**
+     * Flow control with a fixed batch size.
+     */
+    public FlowController(int batchSize, long maxDelay) {
+        this(batchSize, batchSize, batchSize, Long.MAX_VALUE, maxDelay);
+    }
+
+    /**
+     * @param batchSize
+     *        Initial target batch size, within the bounds
+     *
+     * @param targetLatency
+     *        Milliseconds a batch should take from being read to being
+     *        committed
+     */
+    public FlowController(int batchSize, int minBatchSize, int maxBatchSize,
+                          long targetLatency, long maxDelay) {
+        Preconditions.checkArgument(minBatchSize > 0 && minBatchSize <= maxBatchSize,
+                "Invalid batch size bounds: [%s, %s]", minBatchSize, maxBatchSize);
+        Preconditions.checkArgument(targetLatency > 0, "Invalid target latency: %s",
+                targetLatency);
+        Preconditions.checkArgument(maxDelay > 0, "Invalid maximum backoff: %s", maxDelay);
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetLatency = targetLatency;
+        this.maxDelay = maxDelay;
+        this.targetBatchSize = Math.min(maxBatchSize, Math.max(minBatchSize, batchSize));
+        this.batchSize = targetBatchSize;
+    }
+
+    /** Number of events to read or send at once. */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /** Batch size chunks grow back to, tuned within the bounds if they differ. */
+    public int getTargetBatchSize() {
+        return targetBatchSize;
+    }
+
+    /** Average milliseconds the channels take to process a chunk, -1 if unknown. */
+    public double getLatency() {
+        return latency;
+    }
+
+    /**
+     * Record a chunk accepted by the channels.
+     * @param latencyNanos
+     *        Time the channels took to process it
+     */
+    public void accepted(int events, long latencyNanos) {
+        latency = average(latency, latencyNanos / 1000000.0);
+        if (rejections > 0) {
+            long now = System.currentTimeMillis();
+            // the channel was full: events went in as fast as it drained
+            acceptRate = average(acceptRate, events / (double) Math.max(1L, now - rejectedSince));
+        }
+        rejections = 0;
+        batchSize = Math.min(targetBatchSize, batchSize + Math.max(1, targetBatchSize / 10));
+    }
+
+    /**
+     * Record a batch committed after all of its events have been accepted,
+     * and tune the target batch size.
+     * @param elapsedNanos
+     *        Time from reading the batch to committing it
+     */
+    public void committed(int events, long elapsedNanos) {
+        if (minBatchSize == maxBatchSize) {
+            return;
+        }
+        double millis = Math.max(elapsedNanos / 1000000.0, 0.001);
+        double sample = events * 1000.0 / millis;
+        // only full batches show whether a larger one would help
+        boolean full = events >= targetBatchSize;
+        boolean congested = batchSize < targetBatchSize;
+        if (millis > targetLatency || (full && throughputBeforeIncrease > 0
+                && sample < 0.9 * throughputBeforeIncrease)) {
+            targetBatchSize = Math.max(minBatchSize, targetBatchSize * 3 / 4);
+            throughputBeforeIncrease = -1;
+        } else if (full) {
+            throughput = average(throughput, sample);
+            if (targetBatchSize < maxBatchSize) {
+                targetBatchSize = Math.min(maxBatchSize,
+                        targetBatchSize + Math.max(1, (maxBatchSize - minBatchSize) / 20));
+                throughputBeforeIncrease = throughput;
+            } else {
+                throughputBeforeIncrease = -1;
+            }
+        }
+        // chunks shrunk by rejections keep growing back gradually
+        batchSize = congested ? Math.min(batchSize, targetBatchSize) : targetBatchSize;
+    }
+
+    /**
+     * Record a chunk rejected by the channels.
+     */
+    public void rejected(long latencyNanos) {
+        latency = average(latency, latencyNanos / 1000000.0);
+        if (rejections == 0) {
+            // the channel filled up since the last chunk
+            rejectedSince = System.currentTimeMillis();
+        }
+        rejections++;
+        batchSize = Math.max(1, batchSize / 2);
+    }
+
+    /** Milliseconds to wait before sending a rejected chunk again. */
+    public long getRetryDelay() {
+        long delay = acceptRate <= 0 ? INITIAL_DELAY : (long) (batchSize / acceptRate);
+        int doublings = Math.min(Math.max(0, rejections - 1), 30);
+        delay = Math.max(MIN_DELAY, delay) << doublings;
+        return Math.min(maxDelay, delay);
+    }
+
+    private static double average(double average, double sample) {
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.weejinfu.flume.source;
+
+import com.google.common.base.Preconditions;
+import org.apache.flume.annotations.InterfaceAudience;
+import org.apache.flume.annotations.InterfaceStability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the events and decompressed bytes per second a source reads, so
+ * that a backfill does not starve the real time traffic of other agents.
+ *
+ * <p/>Each limit is a token bucket holding up to a burst of some seconds
+ * worth of its rate. A batch takes what it needs from both buckets
+ * at once, going into debt if they run short, and the reader then sleeps
+ * until the debt has been paid back; it never spins. Batches larger than a
+ * bucket are therefore allowed, just paced.
+ *
+ * <p/>The limits can be changed at runtime through JMX, where the limiter
+ * is registered as "org.apache.flume.other:type=&lt;source&gt;.rateLimit"
+ * while the source runs, next to the time spent throttled.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class RateLimiter implements RateLimiterMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
+
+    private final String name;
+    private final TokenBucket events;
+    private final TokenBucket bytes;
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private ObjectName objectName;
+
+    /**
+     * @param burst
+     *        Seconds of the rates which may be read at once after being idle
+     */
+    public RateLimiter(String name, long maxEventsPerSecond, long maxBytesPerSecond,
+                       double burst) {
+        Preconditions.checkArgument(burst > 0, "Invalid rate limit burst: %s", burst);
+        this.name = name;
+        this.events = new TokenBucket(maxEventsPerSecond, burst);
+        this.bytes = new TokenBucket(maxBytesPerSecond, burst);
+    }
+
+    /**
+     * Take the tokens for a batch, and wait for them if necessary.
+     * @return false if interrupted while waiting
+     */
+    public boolean acquire(int eventCount, long byteCount) {
+        long now = System.nanoTime();
+        long wait = Math.max(events.reserve(eventCount, now), bytes.reserve(byteCount, now));
+        if (wait <= 0) {
+            return true;
+        }
+        throttledNanos.addAndGet(wait);
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public long getMaxEventsPerSecond() {
+        return events.getRate();
+    }
+
+    @Override
+    public void setMaxEventsPerSecond(long maxEventsPerSecond) {
+        events.setRate(maxEventsPerSecond, System.nanoTime());
+        logger.info("Rate limit of {} set to {} events per second", name, maxEventsPerSecond);
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return bytes.getRate();
+    }
+
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        bytes.setRate(maxBytesPerSecond, System.nanoTime());
+        logger.info("Rate limit of {} set to {} bytes per second", name, maxBytesPerSecond);
+    }
+
+    @Override
+    public long getThrottledTime() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /** Register with the platform MBean server. */
+    public synchronized void start() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName("org.apache.flume.other:type=" + name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (Exception e) {
+            logger.error("Failed to register rate limiter " + name, e);
+        }
+    }
+
+    public synchronized void stop() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            logger.warn("Failed to unregister rate limiter " + name, e);
+        }
+        objectName = null;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////
+    // Nested classes:
+    ///////////////////////////////////////////////////////////////////////////////
+    /** A token bucket which may go into debt, with a rate changeable at runtime. */
+    static class TokenBucket {
+        private final double burst;
+        private long rate;
+        private double tokens;
+        private long refilled;
+
+        TokenBucket(long rate, double burst) {
+            this.burst = burst;
+            setRate(rate, System.nanoTime());
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate, long now) {
+            refill(now);
+            boolean unlimited = this.rate <= 0;
+            this.rate = Math.max(0L, rate);
+            // a limit set on an unlimited bucket starts with a full one
+            tokens = unlimited ? capacity() : Math.min(tokens, capacity());
+        }
+
+        private double capacity() {
+            return Math.max(1.0, rate * burst);
+        }
+
+        private void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(capacity(), tokens + (now - refilled) * (rate / 1e9));
+            }
+            refilled = now;
+        }
+
+        /**
+         * Take tokens.
+         * @return nanoseconds to wait until the bucket is out of debt
+         */
+        synchronized long reserve(long count, long now) {
+            if (rate <= 0) {
+                return 0L;
+            }
+            refill(now);
+            tokens -= count;
+            return tokens >= 0 ? 0L : (long) Math.ceil(-tokens * 1e9 / rate);
+        }
+    }
+
+}
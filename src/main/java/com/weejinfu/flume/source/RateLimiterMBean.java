@@ -0,0 +1,20 @@
+package com.weejinfu.flume.source;
+
+/**
+ * Rate limits of a source, which can be changed while it runs. A limit of
+ * 0 or less lifts it.
+ */
+public interface RateLimiterMBean {
+
+    long getMaxEventsPerSecond();
+
+    void setMaxEventsPerSecond(long maxEventsPerSecond);
+
+    long getMaxBytesPerSecond();
+
+    void setMaxBytesPerSecond(long maxBytesPerSecond);
+
+    /** Total milliseconds the source waited for the limits. */
+    long getThrottledTime();
+
+}
@@ -2,9 +2,19 @@ package com.weejinfu.flume.source;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.weejinfu.flume.client.zip.MultiSpoolDirectoryEventReader;
+import com.weejinfu.flume.client.zip.PriorityLanes;
 import com.weejinfu.flume.client.zip.ReliableSpoolingZipFileEventReader;
+import com.weejinfu.flume.instrumentation.FlowCounter;
+import com.weejinfu.flume.serialization.LazyZipEvent;
+import com.weejinfu.flume.serialization.RecordFilter;
 import org.apache.flume.*;
+import org.apache.flume.client.avro.ReliableEventReader;
 import org.apache.flume.conf.Configurable;
 import org.apache.flume.instrumentation.SourceCounter;
 import org.apache.flume.serialization.DecodeErrorPolicy;
@@ -15,8 +25,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -40,12 +52,15 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
 
     /* Config options */
     private String completedSuffix;
-    private String spoolDirectory;
+    private List<SpoolDirectory> spoolDirectories;
     private boolean fileHeader;
     private String fileHeaderKey;
     private boolean basenameHeader;
     private String basenameHeaderKey;
     private int batchSize;
+    private int minBatchSize;
+    private int maxBatchSize;
+    private long targetBatchLatency;
     private String ignorePattern;
     private String trackerDirPath;
     private String deserializerType;
@@ -56,50 +71,140 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
     private volatile boolean hasFatalError = false;
 
     private SourceCounter sourceCounter;
-    ReliableSpoolingZipFileEventReader reader;
+    private FlowCounter flowCounter;
+    private RateLimiter rateLimiter;
+    // holds the shared record filter counter while the source runs
+    private RecordFilter recordFilter;
+    List<ReliableEventReader> readers;
     private ScheduledExecutorService executor;
     private boolean backoff = true;
-    private boolean hitChannelException = false;
+    private volatile boolean hitChannelException = false;
     private int maxBackoff;
     private ConsumeOrder consumeOrder;
+    private String fileTimestampFormat;
+    private String fileTimestampRegex;
+    private Context laneContext;
+    private List<PriorityLanes> priorityLanes = Lists.newArrayList();
+    private int packFiles;
+    private int packCompressionLevel;
+    private int decompressThreads;
+    private int maxNestingDepth;
+    private long tailIdleTimeout;
+    private int maxDirectoryDepth;
+    private String directoryPattern;
+    private int directoryListThreads;
+    private long completedDirectoryRetention;
+    private int shards;
+    private String agentId;
+    private long leaseTimeout;
 
     @Override
     public synchronized void start() {
-        logger.info("SpoolDirectorySource source starting with directory: {}",
-                spoolDirectory);
-
-        executor = Executors.newSingleThreadScheduledExecutor();
-
-        File directory = new File(spoolDirectory);
+        logger.info("SpoolDirectorySource source starting with directories: {}",
+                Joiner.on(", ").join(spoolDirectories));
+
+        List<String> names = Lists.newArrayList();
+        // readers of every shard
+        List<List<ReliableSpoolingZipFileEventReader>> shardReaders = Lists.newArrayList();
+        for (int shard = 0; shard < shards; shard++) {
+            shardReaders.add(Lists.<ReliableSpoolingZipFileEventReader>newArrayList());
+        }
+        List<Integer> weights = Lists.newArrayList();
+        Set<File> trackerDirectories = Sets.newHashSet();
+        priorityLanes.clear();
         try {
-            reader = new ReliableSpoolingZipFileEventReader.Builder()
-                    .spoolDirectory(directory)
-                    .completedSuffix(completedSuffix)
-                    .ignorePattern(ignorePattern)
-                    .trackerDirPath(trackerDirPath)
-                    .annotateFileName(fileHeader)
-                    .fileNameHeader(fileHeaderKey)
-                    .annotateBaseName(basenameHeader)
-                    .baseNameHeader(basenameHeaderKey)
-                    .deserializerType(deserializerType)
-                    .deserializerContext(deserializerContext)
-                    .deletePolicy(deletePolicy)
-                    .inputCharset(inputCharset)
-                    .decodeErrorPolicy(decodeErrorPolicy)
-                    .consumeOrder(consumeOrder)
-                    .build();
+            for (SpoolDirectory spool : spoolDirectories) {
+                List<File> directories = MultiSpoolDirectoryEventReader.expand(spool.path);
+                if (directories.isEmpty()) {
+                    logger.warn("No spool directory matches {}", spool.path);
+                }
+                for (File directory : directories) {
+                    String name = spool.name;
+                    // directories matched by a glob are told apart by their names
+                    if (!directory.getPath().equals(new File(spool.path).getPath())) {
+                        name = (name == null ? "" : name + ".") + directory.getName();
+                    }
+                    File trackerDirectory = new File(spool.trackerDirPath);
+                    if (!trackerDirectory.isAbsolute()) {
+                        trackerDirectory = new File(directory, spool.trackerDirPath);
+                    }
+                    Preconditions.checkArgument(
+                            trackerDirectories.add(trackerDirectory.getAbsoluteFile()),
+                            "Tracker directory %s is shared by several spool directories",
+                            trackerDirectory);
+                    names.add(name == null ? directory.getName() : name);
+                    weights.add(spool.weight);
+                    for (int shard = 0; shard < shards; shard++) {
+                        PriorityLanes lanes = PriorityLanes.fromContext(getName()
+                                + (name == null ? "" : "." + name)
+                                + (shards == 1 ? "" : ".shard" + shard) + ".lane", laneContext);
+                        if (lanes != null) {
+                            priorityLanes.add(lanes);
+                        }
+                        shardReaders.get(shard).add(new ReliableSpoolingZipFileEventReader.Builder()
+                                .spoolDirectory(directory)
+                                .completedSuffix(completedSuffix)
+                                .ignorePattern(spool.ignorePattern)
+                                .trackerDirPath(spool.trackerDirPath)
+                                .annotateFileName(fileHeader)
+                                .fileNameHeader(fileHeaderKey)
+                                .annotateBaseName(basenameHeader)
+                                .baseNameHeader(basenameHeaderKey)
+                                .deserializerType(deserializerType)
+                                .deserializerContext(deserializerContext)
+                                .deletePolicy(deletePolicy)
+                                .inputCharset(inputCharset)
+                                .decodeErrorPolicy(decodeErrorPolicy)
+                                .consumeOrder(consumeOrder)
+                                .fileTimestampFormat(fileTimestampFormat)
+                                .fileTimestampRegex(fileTimestampRegex)
+                                .priorityLanes(lanes)
+                                .packFiles(packFiles)
+                                .packCompressionLevel(packCompressionLevel)
+                                .decompressThreads(decompressThreads)
+                                .maxNestingDepth(maxNestingDepth)
+                                .tailIdleTimeout(tailIdleTimeout)
+                                .maxDirectoryDepth(maxDirectoryDepth)
+                                .directoryPattern(directoryPattern)
+                                .directoryListThreads(directoryListThreads)
+                                .completedDirectoryRetention(completedDirectoryRetention)
+                                .shard(shard, shards)
+                                .agentId(agentId)
+                                .leaseTimeout(leaseTimeout)
+                                .build());
+                    }
+                }
+            }
         } catch (IOException ioe) {
             throw new FlumeException("Error instantiating spooling event parser",
                     ioe);
         }
+        if (names.isEmpty()) {
+            throw new FlumeException("No spool directory to read");
+        }
 
-        Runnable runner = new SpoolDirectoryRunnable(reader, sourceCounter);
-        executor.scheduleWithFixedDelay(
-                runner, 0, POLL_DELAY_MS, TimeUnit.MILLISECONDS);
+        // started first, as it resets the batch sizes the shards report
+        flowCounter.start();
+        // one thread per shard, all sending to the same channel processor
+        executor = Executors.newScheduledThreadPool(shards);
+        readers = Lists.newArrayListWithCapacity(shards);
+        for (List<ReliableSpoolingZipFileEventReader> shard : shardReaders) {
+            ReliableEventReader reader = shard.size() == 1 ? shard.get(0)
+                    : new MultiSpoolDirectoryEventReader(names, shard, weights);
+            readers.add(reader);
+            Runnable runner = new SpoolDirectoryRunnable(reader, sourceCounter);
+            executor.scheduleWithFixedDelay(
+                    runner, 0, POLL_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
 
         super.start();
         logger.debug("SpoolDirectoryZipSource source started");
         sourceCounter.start();
+        rateLimiter.start();
+        for (PriorityLanes lanes : priorityLanes) {
+            lanes.start();
+        }
+        recordFilter = RecordFilter.fromContext(deserializerContext);
     }
 
     @Override
@@ -111,9 +216,28 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
             logger.info("Interrupted while awaiting termination", ex);
         }
         executor.shutdownNow();
+        // stops renewing the leases of the files being read
+        if (readers != null) {
+            for (ReliableEventReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.warn("Unable to close reader", e);
+                }
+            }
+        }
 
         super.stop();
         sourceCounter.stop();
+        flowCounter.stop();
+        rateLimiter.stop();
+        for (PriorityLanes lanes : priorityLanes) {
+            lanes.stop();
+        }
+        if (recordFilter != null) {
+            recordFilter.close();
+            recordFilter = null;
+        }
         logger.info("SpoolDir source {} stopped. Metrics: {}", getName(),
                 sourceCounter);
     }
@@ -121,13 +245,14 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
     @Override
     public String toString() {
         return "Spool Directory source " + getName() +
-                ": { spoolDir: " + spoolDirectory + " }";
+                ": { spoolDir: " + Joiner.on(", ").join(spoolDirectories) + " }";
     }
 
     @Override
     public synchronized void configure(Context context) {
-        spoolDirectory = context.getString(SPOOL_DIRECTORY);
-        Preconditions.checkState(spoolDirectory != null,
+        String spoolDirectory = context.getString(SPOOL_DIRECTORY);
+        String spoolDirectoryNames = context.getString(SPOOL_DIRECTORIES);
+        Preconditions.checkState(spoolDirectory != null || spoolDirectoryNames != null,
                 "Configuration must specify a spooling directory");
 
         completedSuffix = context.getString(SPOOLED_FILE_SUFFIX,
@@ -151,12 +276,65 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
         ignorePattern = context.getString(IGNORE_PAT, DEFAULT_IGNORE_PAT);
         trackerDirPath = context.getString(TRACKER_DIR, DEFAULT_TRACKER_DIR);
 
+        spoolDirectories = Lists.newArrayList();
+        if (spoolDirectory != null) {
+            spoolDirectories.add(new SpoolDirectory(null, spoolDirectory, ignorePattern,
+                    trackerDirPath, DEFAULT_SPOOL_DIRECTORY_WEIGHT));
+        }
+        if (spoolDirectoryNames != null) {
+            Context directoryContext = new Context(context.getSubProperties(
+                    SPOOL_DIRECTORIES + "."));
+            Set<String> names = Sets.newHashSet();
+            for (String name : Splitter.on(' ').trimResults().omitEmptyStrings()
+                    .split(spoolDirectoryNames)) {
+                Preconditions.checkArgument(names.add(name),
+                        "Duplicate spool directory name: %s", name);
+                String path = directoryContext.getString(name + "." + SPOOL_DIRECTORY);
+                Preconditions.checkArgument(path != null,
+                        "Spool directory %s has no %s", name, SPOOL_DIRECTORY);
+                int weight = directoryContext.getInteger(name + "." + SPOOL_DIRECTORY_WEIGHT,
+                        DEFAULT_SPOOL_DIRECTORY_WEIGHT);
+                Preconditions.checkArgument(weight > 0,
+                        "Weight of spool directory %s must be positive: %s", name, weight);
+                spoolDirectories.add(new SpoolDirectory(name, path,
+                        directoryContext.getString(name + "." + IGNORE_PAT, ignorePattern),
+                        directoryContext.getString(name + "." + TRACKER_DIR, trackerDirPath),
+                        weight));
+            }
+        }
+
         deserializerType = context.getString(DESERIALIZER, "ZipDeserializer");
         deserializerContext = new Context(context.getSubProperties(DESERIALIZER +
                 "."));
+        if (deserializerContext.getString(RecordFilter.COUNTER_NAME_KEY) == null) {
+            deserializerContext.put(RecordFilter.COUNTER_NAME_KEY, getName());
+        }
 
         consumeOrder = ConsumeOrder.valueOf(context.getString(CONSUME_ORDER,
                 DEFAULT_CONSUME_ORDER.toString()).toUpperCase(Locale.ENGLISH));
+        fileTimestampFormat = context.getString(FILE_TIMESTAMP_FORMAT);
+        fileTimestampRegex = context.getString(FILE_TIMESTAMP_REGEX);
+        // every spool directory gets lanes of its own on start
+        PriorityLanes.validate(context);
+        laneContext = new Context(context.getParameters());
+
+        packFiles = context.getInteger(PACK_FILES, DEFAULT_PACK_FILES);
+        packCompressionLevel = context.getInteger(PACK_COMPRESSION_LEVEL,
+                DEFAULT_PACK_COMPRESSION_LEVEL);
+        decompressThreads = context.getInteger(DECOMPRESS_THREADS,
+                DEFAULT_DECOMPRESS_THREADS);
+        maxNestingDepth = context.getInteger(MAX_NESTING_DEPTH, DEFAULT_MAX_NESTING_DEPTH);
+        tailIdleTimeout = context.getLong(TAIL_IDLE_TIMEOUT, DEFAULT_TAIL_IDLE_TIMEOUT);
+        maxDirectoryDepth = context.getInteger(MAX_DIRECTORY_DEPTH, DEFAULT_MAX_DIRECTORY_DEPTH);
+        directoryPattern = context.getString(DIRECTORY_PATTERN, DEFAULT_DIRECTORY_PATTERN);
+        directoryListThreads = context.getInteger(DIRECTORY_LIST_THREADS,
+                DEFAULT_DIRECTORY_LIST_THREADS);
+        completedDirectoryRetention = context.getLong(COMPLETED_DIRECTORY_RETENTION,
+                DEFAULT_COMPLETED_DIRECTORY_RETENTION);
+        shards = context.getInteger(SHARDS, DEFAULT_SHARDS);
+        Preconditions.checkArgument(shards > 0, "Invalid number of shards: %s", shards);
+        agentId = context.getString(AGENT_ID);
+        leaseTimeout = context.getLong(LEASE_TIMEOUT, DEFAULT_LEASE_TIMEOUT);
 
         // "Hack" to support backwards compatibility with previous generation of
         // spooling directory source, which did not support deserializers
@@ -167,10 +345,29 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
                     bufferMaxLineLength.toString());
         }
 
+        minBatchSize = context.getInteger(MIN_BATCH_SIZE, batchSize);
+        maxBatchSize = context.getInteger(MAX_BATCH_SIZE, batchSize);
+        targetBatchLatency = context.getLong(TARGET_BATCH_LATENCY, DEFAULT_TARGET_BATCH_LATENCY);
+        Preconditions.checkArgument(minBatchSize > 0 && minBatchSize <= batchSize
+                        && batchSize <= maxBatchSize,
+                "Batch size %s must be within [%s, %s]", batchSize, minBatchSize, maxBatchSize);
+
+        long maxEventsPerSecond = context.getLong(MAX_EVENTS_PER_SECOND,
+                DEFAULT_MAX_EVENTS_PER_SECOND);
+        long maxBytesPerSecond = context.getLong(MAX_BYTES_PER_SECOND,
+                DEFAULT_MAX_BYTES_PER_SECOND);
+        String burst = context.getString(RATE_LIMIT_BURST);
+        rateLimiter = new RateLimiter(getName() + ".rateLimit", maxEventsPerSecond,
+                maxBytesPerSecond, burst == null ? DEFAULT_RATE_LIMIT_BURST
+                        : Double.parseDouble(burst));
+
         maxBackoff = context.getInteger(MAX_BACKOFF, DEFAULT_MAX_BACKOFF);
         if (sourceCounter == null) {
             sourceCounter = new SourceCounter(getName());
         }
+        if (flowCounter == null) {
+            flowCounter = new FlowCounter(getName() + ".flow");
+        }
     }
 
     @VisibleForTesting
@@ -200,48 +397,83 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
         return sourceCounter;
     }
 
+    @VisibleForTesting
+    protected FlowCounter getFlowCounter() {
+        return flowCounter;
+    }
+
     private class SpoolDirectoryRunnable implements Runnable {
-        private ReliableSpoolingZipFileEventReader reader;
+        private ReliableEventReader reader;
         private SourceCounter sourceCounter;
-
-        public SpoolDirectoryRunnable(ReliableSpoolingZipFileEventReader reader,
+        private final FlowController flowController;
+        // batch read but not yet committed, of which the first events have
+        // already been accepted by the channels
+        private List<Event> pending = Collections.emptyList();
+        private int delivered;
+        private long readTime;
+        // batch size added to the flow counter
+        private int reportedBatchSize;
+
+        public SpoolDirectoryRunnable(ReliableEventReader reader,
                                       SourceCounter sourceCounter) {
             this.reader = reader;
             this.sourceCounter = sourceCounter;
+            this.flowController = new FlowController(batchSize, minBatchSize, maxBatchSize,
+                    targetBatchLatency, maxBackoff);
+            reportBatchSize();
         }
 
         @Override
         public void run() {
             System.out.println("start to run SpoolDirectoryRunnable...");
-            int backoffInterval = 250;
             try {
                 while (!Thread.interrupted()) {
-                    List<Event> events = reader.readEvents(batchSize);
-                    if (events.isEmpty()) {
-                        break;
+                    if (pending.isEmpty()) {
+                        pending = reader.readEvents(flowController.getBatchSize());
+                        if (pending.isEmpty()) {
+                            break;
+                        }
+                        delivered = 0;
+                        sourceCounter.addToEventReceivedCount(pending.size());
+                        sourceCounter.incrementAppendBatchReceivedCount();
+                        // time spent throttled does not count against the batch latency
+                        if (!rateLimiter.acquire(pending.size(), bodyLength(pending))) {
+                            break;
+                        }
+                        readTime = System.nanoTime();
                     }
-                    sourceCounter.addToEventReceivedCount(events.size());
-                    sourceCounter.incrementAppendBatchReceivedCount();
 
+                    // a rejected batch is sent again from memory, in smaller chunks
+                    List<Event> chunk = pending.subList(delivered,
+                            Math.min(pending.size(), delivered + flowController.getBatchSize()));
+                    long start = System.nanoTime();
                     try {
-                        getChannelProcessor().processEventBatch(events);
-                        reader.commit();
+                        getChannelProcessor().processEventBatch(chunk);
                     } catch (ChannelException ex) {
+                        flowController.rejected(System.nanoTime() - start);
+                        flowCounter.incrementChannelRejectedCount();
+                        long delay = flowController.getRetryDelay();
                         logger.warn("The channel is full, and cannot write data now. The " +
-                                "source will try again after " + String.valueOf(backoffInterval) +
+                                "source will try again after " + String.valueOf(delay) +
                                 " milliseconds");
                         hitChannelException = true;
                         if (backoff) {
-                            TimeUnit.MILLISECONDS.sleep(backoffInterval);
-                            backoffInterval = backoffInterval << 1;
-                            backoffInterval = backoffInterval >= maxBackoff ? maxBackoff :
-                                    backoffInterval;
+                            TimeUnit.MILLISECONDS.sleep(delay);
                         }
                         continue;
                     }
-                    backoffInterval = 250;
-                    sourceCounter.addToEventAcceptedCount(events.size());
-                    sourceCounter.incrementAppendBatchAcceptedCount();
+                    flowController.accepted(chunk.size(), System.nanoTime() - start);
+                    delivered += chunk.size();
+                    sourceCounter.addToEventAcceptedCount(chunk.size());
+                    if (delivered == pending.size()) {
+                        reader.commit();
+                        long elapsed = System.nanoTime() - readTime;
+                        flowController.committed(pending.size(), elapsed);
+                        flowCounter.setBatchLatency(TimeUnit.NANOSECONDS.toMillis(elapsed));
+                        pending = Collections.emptyList();
+                        sourceCounter.incrementAppendBatchAcceptedCount();
+                    }
+                    reportBatchSize();
                 }
             } catch (Throwable t) {
                 logger.error("FATAL: " + SpoolDirectoryZipSource.this.toString() + ": " +
@@ -251,6 +483,47 @@ public class SpoolDirectoryZipSource extends AbstractSource implements
                 Throwables.propagate(t);
             }
         }
+
+        private void reportBatchSize() {
+            int size = flowController.getBatchSize();
+            if (size != reportedBatchSize) {
+                flowCounter.addToBatchSize(size - reportedBatchSize);
+                reportedBatchSize = size;
+            }
+        }
+
+        private long bodyLength(List<Event> events) {
+            long length = 0L;
+            for (Event event : events) {
+                // lazy bodies are counted without inflating them
+                length += event instanceof LazyZipEvent ? ((LazyZipEvent) event).getBodyLength()
+                        : event.getBody().length;
+            }
+            return length;
+        }
     }
 
+
+    /** A configured spool directory, whose path may be a glob. */
+    private static class SpoolDirectory {
+        private final String name;
+        private final String path;
+        private final String ignorePattern;
+        private final String trackerDirPath;
+        private final int weight;
+
+        SpoolDirectory(String name, String path, String ignorePattern, String trackerDirPath,
+                       int weight) {
+            this.name = name;
+            this.path = path;
+            this.ignorePattern = ignorePattern;
+            this.trackerDirPath = trackerDirPath;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
 }
@@ -7,9 +7,29 @@ import org.apache.flume.serialization.DecodeErrorPolicy;
  */
 public class SpoolDirectoryZipSourceConfigurationConstants {
 
-    /** Directory where files are deposited. */
+    /**
+     * Directory where files are deposited. The last component of the path
+     * may be a glob, to read every directory it matches on start.
+     */
     public static final String SPOOL_DIRECTORY = "spoolDir";
 
+    /**
+     * Named spool directories read by one source, instead of or next to
+     * spoolDir, each with its own tracker state:
+     * <pre>
+     * spoolDirs = orders clicks
+     * spoolDirs.orders.spoolDir = /data/orders
+     * spoolDirs.orders.weight = 2
+     * spoolDirs.clicks.spoolDir = /data/clicks/*
+     * spoolDirs.clicks.ignorePattern = ^.*\.tmp$
+     * </pre>
+     * ignorePattern and trackerDir default to those of the source. Batches
+     * are taken from the directories with files by weighted round robin.
+     */
+    public static final String SPOOL_DIRECTORIES = "spoolDirs";
+    public static final String SPOOL_DIRECTORY_WEIGHT = "weight";
+    public static final int DEFAULT_SPOOL_DIRECTORY_WEIGHT = 1;
+
     /** Suffix appended to files when they are finished being sent. */
     public static final String SPOOLED_FILE_SUFFIX = "fileSuffix";
     public static final String DEFAULT_SPOOLED_FILE_SUFFIX = ".COMPLETED";
@@ -34,6 +54,29 @@ public class SpoolDirectoryZipSourceConfigurationConstants {
     public static final String BATCH_SIZE = "batchSize";
     public static final int DEFAULT_BATCH_SIZE = 100;
 
+    /**
+     * Bounds to tune the batch size in, starting from batchSize: it grows
+     * while batches are committed within the target latency (milliseconds)
+     * and shrinks when they take longer. Tuning is off unless the minimum
+     * is below the maximum.
+     */
+    public static final String MIN_BATCH_SIZE = "minBatchSize";
+    public static final String MAX_BATCH_SIZE = "maxBatchSize";
+    public static final String TARGET_BATCH_LATENCY = "targetBatchLatency";
+    public static final long DEFAULT_TARGET_BATCH_LATENCY = 1000L;
+
+    /**
+     * Events and decompressed bytes to read per second at most, 0 for no
+     * limit, and the seconds of these rates which may be read at once after
+     * being idle. The limits can be changed at runtime through JMX.
+     */
+    public static final String MAX_EVENTS_PER_SECOND = "maxEventsPerSecond";
+    public static final long DEFAULT_MAX_EVENTS_PER_SECOND = 0L;
+    public static final String MAX_BYTES_PER_SECOND = "maxBytesPerSecond";
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 0L;
+    public static final String RATE_LIMIT_BURST = "rateLimitBurst";
+    public static final double DEFAULT_RATE_LIMIT_BURST = 1.0;
+
     /** Maximum number of lines to buffer between commits. */
     @Deprecated
     public static final String BUFFER_MAX_LINES = "bufferMaxLines";
@@ -70,15 +113,95 @@ public class SpoolDirectoryZipSourceConfigurationConstants {
     public static final String DEFAULT_DECODE_ERROR_POLICY =
             DecodeErrorPolicy.FAIL.name();
 
+    /** Number of consecutive files packed into one event, packing is off below 2. */
+    public static final String PACK_FILES = "packFiles";
+    public static final int DEFAULT_PACK_FILES = 0;
+
+    /** Deflater level used to compress packed events, 0 leaves them uncompressed. */
+    public static final String PACK_COMPRESSION_LEVEL = "packCompressionLevel";
+    public static final int DEFAULT_PACK_COMPRESSION_LEVEL = 0;
+
+    /** Threads inflating the blocks of blocked gzip (BGZF) files. */
+    public static final String DECOMPRESS_THREADS = "decompressThreads";
+    public static final int DEFAULT_DECOMPRESS_THREADS = 1;
+
+    /** Archives nested inside a file to expand, 0 ships them compressed. */
+    public static final String MAX_NESTING_DEPTH = "maxNestingDepth";
+    public static final int DEFAULT_MAX_NESTING_DEPTH = 0;
+
+    /**
+     * Milliseconds a multi-member gzip file must stay unmodified before it is
+     * retired; until then it is tailed as members are appended. 0 disables
+     * tail mode.
+     */
+    public static final String TAIL_IDLE_TIMEOUT = "tailIdleTimeout";
+    public static final long DEFAULT_TAIL_IDLE_TIMEOUT = 0L;
+
+    /**
+     * Levels of subdirectories to read files from, 0 for the spool directory
+     * only, and the pattern of the subdirectory names to descend into.
+     * Hidden directories are never read.
+     */
+    public static final String MAX_DIRECTORY_DEPTH = "maxDirectoryDepth";
+    public static final int DEFAULT_MAX_DIRECTORY_DEPTH = 0;
+    public static final String DIRECTORY_PATTERN = "directoryPattern";
+    public static final String DEFAULT_DIRECTORY_PATTERN = "^.*$";
+
+    /** Threads listing the subdirectories of a level in parallel. */
+    public static final String DIRECTORY_LIST_THREADS = "directoryListThreads";
+    public static final int DEFAULT_DIRECTORY_LIST_THREADS = 1;
+
+    /**
+     * Milliseconds a subdirectory holding only completed files is kept once
+     * it has been idle, negative to keep it forever.
+     */
+    public static final String COMPLETED_DIRECTORY_RETENTION = "completedDirectoryRetention";
+    public static final long DEFAULT_COMPLETED_DIRECTORY_RETENTION = -1L;
+
+    /**
+     * Readers per spool directory, each with a thread and tracker file of
+     * its own. Files are assigned to them by a hash of their names.
+     */
+    public static final String SHARDS = "shards";
+    public static final int DEFAULT_SHARDS = 1;
+
+    /**
+     * Id of this agent among the agents sharing the spool directories, each
+     * of which needs one of its own. Files are then claimed through lease
+     * files, which are renewed while they are read; those left unrenewed for
+     * the lease timeout (milliseconds) are taken over by other agents.
+     */
+    public static final String AGENT_ID = "agentId";
+    public static final String LEASE_TIMEOUT = "leaseTimeout";
+    public static final long DEFAULT_LEASE_TIMEOUT = 60000L;
+
     public static final String MAX_BACKOFF = "maxBackoff";
 
     public static final Integer DEFAULT_MAX_BACKOFF = 4000;
 
-    /** Consume order. */
+    /**
+     * Consume order: by modification time, at random, by length (smallest
+     * first cuts the median latency of files when there is a backlog) or by
+     * the timestamp in the file name.
+     */
     public enum ConsumeOrder {
-        OLDEST, YOUNGEST, RANDOM
+        OLDEST, YOUNGEST, RANDOM, SMALLEST_FIRST, LARGEST_FIRST, FILENAME_TIMESTAMP
     }
     public static final String CONSUME_ORDER = "consumeOrder";
     public static final ConsumeOrder DEFAULT_CONSUME_ORDER = ConsumeOrder.OLDEST;
 
+    /**
+     * {@link java.text.SimpleDateFormat} pattern of the timestamp in file
+     * names, for the FILENAME_TIMESTAMP consume order. Files without one
+     * are ordered by their modification time.
+     */
+    public static final String FILE_TIMESTAMP_FORMAT = "fileTimestampFormat";
+
+    /**
+     * Regular expression locating the timestamp in file names, its first
+     * group is parsed if it has one. Derived from the format by default,
+     * which then may only contain numeric fields.
+     */
+    public static final String FILE_TIMESTAMP_REGEX = "fileTimestampRegex";
+
 }
@@ -0,0 +1,202 @@
+package com.weejinfu.flume.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Packs the contents of many small files into one framed event body, and
+ * unpacks it again on the consumer side.
+ *
+ * <p/>Layout of a packed body (all integers big endian):
+ * <pre>
+ *   magic "FPAK" | version (1 byte) | flags (1 byte) | file count (int)
+ *   count x [ name length (short) | name (UTF-8) | offset (int) | length (int) ]
+ *   payload length (int) | payload
+ * </pre>
+ * Offsets and lengths refer to the uncompressed payload, which holds the
+ * file contents back to back. The index is never compressed, so consumers
+ * can list the packed files cheaply; with {@link #FLAG_DEFLATED} set the
+ * payload is zlib compressed.
+ */
+public class PackUtil {
+
+    public static final byte[] MAGIC = {'F', 'P', 'A', 'K'};
+    public static final byte VERSION = 1;
+    public static final byte FLAG_DEFLATED = 1;
+
+    /** Header holding the number of files in a packed event. */
+    public static final String COUNT_HEADER = "packedFiles";
+
+    /**
+     * Builds one packed body. Not thread safe.
+     */
+    public static class Writer {
+        private final int level;
+        private final List<String> names = Lists.newArrayList();
+        private final List<Integer> lengths = Lists.newArrayList();
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        /**
+         * @param level
+         *        {@link Deflater} compression level of the payload, 0 does
+         *        not compress it at all
+         */
+        public Writer(int level) {
+            Preconditions.checkArgument(level >= Deflater.DEFAULT_COMPRESSION
+                    && level <= Deflater.BEST_COMPRESSION, "Invalid compression level %s", level);
+            this.level = level;
+        }
+
+        public Writer add(String name, byte[] data) {
+            return add(name, data, 0, data.length);
+        }
+
+        public Writer add(String name, byte[] data, int off, int len) {
+            names.add(name);
+            lengths.add(len);
+            payload.write(data, off, len);
+            return this;
+        }
+
+        public int size() {
+            return names.size();
+        }
+
+        /** Uncompressed payload bytes added so far. */
+        public int payloadLength() {
+            return payload.size();
+        }
+
+        public byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(payload.size() + 64 * names.size());
+            DataOutputStream out = new DataOutputStream(bos);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(level != 0 ? FLAG_DEFLATED : 0);
+            out.writeInt(names.size());
+            int offset = 0;
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i).getBytes(Charsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(offset);
+                out.writeInt(lengths.get(i));
+                offset += lengths.get(i);
+            }
+            out.writeInt(payload.size());
+            if (level != 0) {
+                Deflater deflater = new Deflater(level);
+                try {
+                    DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater);
+                    payload.writeTo(dos);
+                    dos.finish();
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                payload.writeTo(out);
+            }
+            out.flush();
+            return bos.toByteArray();
+        }
+    }
+
+    /** One file of a packed body. */
+    public static class PackedFile {
+        private final String name;
+        private final byte[] data;
+
+        PackedFile(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        public String getName() { return name; }
+        public byte[] getData() { return data; }
+    }
+
+    public static boolean isPacked(byte[] body) {
+        return body.length >= MAGIC.length
+                && Arrays.equals(MAGIC, Arrays.copyOf(body, MAGIC.length));
+    }
+
+    /**
+     * Read the file names of a packed body without touching the payload.
+     */
+    public static List<String> listFiles(byte[] body) throws IOException {
+        DataInputStream in = openIndex(body);
+        int count = in.readInt();
+        List<String> names = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            names.add(readName(in));
+            in.readInt();
+            in.readInt();
+        }
+        return names;
+    }
+
+    /**
+     * Split a packed body back into its files.
+     */
+    public static List<PackedFile> unpack(byte[] body) throws IOException {
+        DataInputStream in = openIndex(body);
+        boolean deflated = (body[MAGIC.length + 1] & FLAG_DEFLATED) != 0;
+        int count = in.readInt();
+        List<String> names = Lists.newArrayListWithCapacity(count);
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            names.add(readName(in));
+            offsets[i] = in.readInt();
+            lengths[i] = in.readInt();
+        }
+
+        byte[] payload = new byte[in.readInt()];
+        InputStream payloadIn = deflated ? new InflaterInputStream(in) : in;
+        new DataInputStream(payloadIn).readFully(payload);
+
+        List<PackedFile> files = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > payload.length) {
+                throw new IOException("Corrupt index entry for " + names.get(i));
+            }
+            files.add(new PackedFile(names.get(i),
+                    Arrays.copyOfRange(payload, offsets[i], offsets[i] + lengths[i])));
+        }
+        return files;
+    }
+
+    private static DataInputStream openIndex(byte[] body) throws IOException {
+        if (!isPacked(body)) {
+            throw new IOException("Not a packed event body");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        in.skipBytes(MAGIC.length);
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported pack version " + version);
+        }
+        in.readByte(); // flags
+        return in;
+    }
+
+    private static String readName(DataInputStream in) throws IOException {
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        return new String(name, Charsets.UTF_8);
+    }
+
+}
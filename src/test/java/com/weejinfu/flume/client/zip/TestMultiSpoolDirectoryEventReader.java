@@ -0,0 +1,99 @@
+package com.weejinfu.flume.client.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.weejinfu.flume.utils.ZipUtil;
+import org.apache.flume.Event;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class TestMultiSpoolDirectoryEventReader {
+
+    private File root;
+
+    @Before
+    public void setup() {
+        root = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File spoolDirectory(String name, int files) throws IOException {
+        File directory = new File(root, name);
+        Assert.assertTrue(directory.mkdir());
+        for (int i = 0; i < files; i++) {
+            File file = new File(directory, name + i);
+            Files.write(name + i + "\n", file, Charsets.UTF_8);
+            ZipUtil.zipFile(new File(directory, name + i + ".zip"), file);
+            file.delete();
+        }
+        return directory;
+    }
+
+    private static ReliableSpoolingZipFileEventReader reader(File directory) throws IOException {
+        return new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(directory)
+                .build();
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws IOException {
+        List<ReliableSpoolingZipFileEventReader> readers = Lists.newArrayList(
+                reader(spoolDirectory("a", 6)), reader(spoolDirectory("b", 6)),
+                reader(spoolDirectory("c", 0)));
+        MultiSpoolDirectoryEventReader reader = new MultiSpoolDirectoryEventReader(
+                Lists.newArrayList("a", "b", "c"), readers, Lists.newArrayList(2, 1, 1));
+
+        StringBuilder order = new StringBuilder();
+        List<Event> events;
+        while (!(events = reader.readEvents(10)).isEmpty()) {
+            // an uncommitted batch is read again from the same directory
+            if (order.length() == 1) {
+                Assert.assertEquals(events.get(0).getHeaders(), reader.readEvents(10).get(0)
+                        .getHeaders());
+                Assert.assertTrue(new File(reader.getLastFileRead()).getName().startsWith(
+                        new String(events.get(0).getBody(), Charsets.UTF_8).trim()));
+            }
+            order.append(new File(reader.getLastFileRead()).getParentFile().getName());
+            reader.commit();
+        }
+        // the empty directory does not take turns, b gets the rest once a is done
+        Assert.assertEquals("abaabaababbb", order.toString());
+        reader.close();
+    }
+
+    @Test
+    public void testExpand() throws IOException {
+        spoolDirectory("orders-1", 0);
+        spoolDirectory("orders-2", 0);
+        spoolDirectory("clicks", 0);
+        Assert.assertTrue(new File(root, "orders-3").createNewFile());
+
+        List<File> expanded = MultiSpoolDirectoryEventReader.expand(root.getPath() + "/orders-*");
+        Assert.assertEquals(Lists.newArrayList(new File(root, "orders-1"),
+                new File(root, "orders-2")), expanded);
+        Assert.assertEquals(Lists.newArrayList(new File(root, "clicks")),
+                MultiSpoolDirectoryEventReader.expand(root.getPath() + "/clicks"));
+    }
+
+}
@@ -3,10 +3,15 @@ package com.weejinfu.flume.client.zip;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.weejinfu.flume.serialization.MultilineDeserializer;
+import com.weejinfu.flume.utils.PackUtil;
 import com.weejinfu.flume.utils.ZipUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.client.avro.ReliableEventReader;
 import com.weejinfu.flume.client.zip.ReliableSpoolingZipFileEventReader.DeletePolicy;
+import com.weejinfu.flume.source.SpoolDirectoryZipSourceConfigurationConstants.ConsumeOrder;
 import org.apache.flume.client.avro.ReliableSpoolingFileEventReader;
 import org.apache.flume.source.SpoolDirectorySourceConfigurationConstants;
 import org.junit.After;
@@ -16,10 +21,14 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by Jason on 15/8/17.
@@ -182,6 +191,486 @@ public class TestReliableSpoolingZipFileEventReader {
                 trackerFiles.size());
     }
 
+    @Test
+    public void testFileHeadersCopiedOnWrite() throws IOException {
+        ReliableEventReader reader = new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(WORK_DIR)
+                .ignorePattern("^(?!file3.zip$).*$")
+                .annotateFileName(true)
+                .annotateBaseName(true)
+                .build();
+
+        ReliableSpoolingZipFileEventReader zipReader =
+                (ReliableSpoolingZipFileEventReader) reader;
+        List<Event> events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Event event = events.get(0);
+        String path = new File(WORK_DIR, "file3.zip").getAbsolutePath();
+        Assert.assertEquals(path, zipReader.getLastFileRead());
+        Assert.assertEquals(path, event.getHeaders().get(
+                SpoolDirectorySourceConfigurationConstants.DEFAULT_FILENAME_HEADER_KEY));
+        Assert.assertEquals("file3.zip", event.getHeaders().get(
+                SpoolDirectorySourceConfigurationConstants.DEFAULT_BASENAME_HEADER_KEY));
+
+        // modifying one event's headers must not leak into the shared headers
+        event.getHeaders().put("extra", "value");
+        event.getHeaders().remove(
+                SpoolDirectorySourceConfigurationConstants.DEFAULT_BASENAME_HEADER_KEY);
+        Assert.assertEquals(2, event.getHeaders().size());
+        reader.commit();
+        reader.close();
+    }
+
+    @Test
+    public void testPackFiles() throws IOException {
+        ReliableEventReader reader = new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(WORK_DIR)
+                .packFiles(3)
+                .packCompressionLevel(Deflater.BEST_SPEED)
+                .build();
+
+        List<Event> events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("3", events.get(0).getHeaders().get(PackUtil.COUNT_HEADER));
+
+        // not committed, the same pack comes back and nothing was retired
+        Assert.assertSame(events.get(0), reader.readEvents(10).get(0));
+        Assert.assertEquals(5, listFiles(WORK_DIR).size());
+        reader.commit();
+
+        List<PackUtil.PackedFile> packed = Lists.newArrayList(
+                PackUtil.unpack(events.get(0).getBody()));
+        events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("2", events.get(0).getHeaders().get(PackUtil.COUNT_HEADER));
+        packed.addAll(PackUtil.unpack(events.get(0).getBody()));
+        reader.commit();
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+
+        Assert.assertEquals(5, packed.size());
+        for (PackUtil.PackedFile file : packed) {
+            String name = file.getName();
+            Assert.assertTrue(name, name.endsWith(".zip"));
+            String content = new String(file.getData(), Charsets.UTF_8);
+            if (name.equals("emptylineFile.zip")) {
+                Assert.assertEquals("\n", content);
+            } else {
+                int lines = Integer.parseInt(name.substring(4, 5));
+                Assert.assertEquals(name, lines, content.isEmpty() ? 0 :
+                        content.split("\n").length);
+            }
+        }
+        for (File f : listFiles(WORK_DIR)) {
+            Assert.assertTrue(f.getName(), f.getName().endsWith(
+                    SpoolDirectorySourceConfigurationConstants.DEFAULT_SPOOLED_FILE_SUFFIX));
+        }
+    }
+
+    @Test
+    public void testPackCommitFailure() throws IOException {
+        ReliableEventReader reader = new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(WORK_DIR)
+                .packFiles(3)
+                .build();
+        String suffix = SpoolDirectorySourceConfigurationConstants.DEFAULT_SPOOLED_FILE_SUFFIX;
+        // the second file of the pack cannot be retired
+        File conflict = new File(WORK_DIR, "file1.zip" + suffix);
+        Files.write("conflict", conflict, Charsets.UTF_8);
+
+        List<Event> events = reader.readEvents(10);
+        Assert.assertEquals("3", events.get(0).getHeaders().get(PackUtil.COUNT_HEADER));
+        try {
+            reader.commit();
+            Assert.fail("Retiring a file onto an existing completed file should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertTrue(new File(WORK_DIR, "file0.zip" + suffix).exists());
+        Assert.assertTrue(new File(WORK_DIR, "file2.zip").exists());
+        conflict.delete();
+
+        // the files left are retired from their committed positions, not packed again
+        events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        List<String> names = Lists.newArrayList();
+        for (PackUtil.PackedFile file : PackUtil.unpack(events.get(0).getBody())) {
+            names.add(file.getName());
+        }
+        Collections.sort(names);
+        Assert.assertEquals(Lists.newArrayList("emptylineFile.zip", "file3.zip"), names);
+        reader.commit();
+        Assert.assertTrue(new File(WORK_DIR, "file1.zip" + suffix).exists());
+        Assert.assertTrue(new File(WORK_DIR, "file2.zip" + suffix).exists());
+        reader.close();
+    }
+
+    @Test
+    public void testTailGzip() throws IOException {
+        File live = new File(WORK_DIR, "live.log.gz");
+        Files.write(gzip("member0\n"), live);
+        ReliableEventReader reader = new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(WORK_DIR)
+                .ignorePattern("^(?!live.log.gz$).*$")
+                .tailIdleTimeout(60000L)
+                .build();
+
+        List<Event> events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("member0\n", new String(events.get(0).getBody(), Charsets.UTF_8));
+        reader.commit();
+
+        // still being written: nothing to read, but the file is kept
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+        Assert.assertTrue(live.exists());
+
+        Files.append(new String(gzip("member1\n"), Charsets.ISO_8859_1), live,
+                Charsets.ISO_8859_1);
+        events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("member1\n", new String(events.get(0).getBody(), Charsets.UTF_8));
+        reader.commit();
+
+        // idle for longer than the timeout: retired
+        Assert.assertTrue(live.setLastModified(System.currentTimeMillis() - 120000L));
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+        Assert.assertFalse(live.exists());
+        Assert.assertTrue(new File(WORK_DIR, live.getName()
+                + SpoolDirectorySourceConfigurationConstants.DEFAULT_SPOOLED_FILE_SUFFIX).exists());
+        reader.close();
+    }
+
+    @Test
+    public void testTailYieldsToOtherFiles() throws IOException {
+        File live = new File(WORK_DIR, "live.log.gz");
+        Files.write(gzip("line0\npart"), live);
+        // read after the tailed file
+        Assert.assertTrue(new File(WORK_DIR, "file1.zip").setLastModified(
+                System.currentTimeMillis() + 60000L));
+        ReliableEventReader reader = new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(WORK_DIR)
+                .ignorePattern("^(?!(live.log.gz|file1.zip)$).*$")
+                .tailIdleTimeout(60000L)
+                .build();
+
+        // the partial line is held back
+        List<Event> events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("line0\n", new String(events.get(0).getBody(), Charsets.UTF_8));
+        reader.commit();
+
+        // no new member: the other file is read meanwhile
+        events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("file1line0\n", new String(events.get(0).getBody(), Charsets.UTF_8));
+        reader.commit();
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+        Assert.assertFalse(new File(WORK_DIR, "file1.zip").exists());
+
+        Files.append(new String(gzip("ial\n"), Charsets.ISO_8859_1), live, Charsets.ISO_8859_1);
+        events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("partial\n", new String(events.get(0).getBody(), Charsets.UTF_8));
+        reader.commit();
+
+        // an unterminated last line is only read once the file is idle
+        Files.append(new String(gzip("end"), Charsets.ISO_8859_1), live, Charsets.ISO_8859_1);
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+        Assert.assertTrue(live.setLastModified(System.currentTimeMillis() - 120000L));
+        events = reader.readEvents(10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("end", new String(events.get(0).getBody(), Charsets.UTF_8));
+        reader.commit();
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+        Assert.assertFalse(live.exists());
+        reader.close();
+    }
+
+    @Test
+    public void testTailFlushesLastRecord() throws IOException {
+        File live = new File(WORK_DIR, "live.log.gz");
+        Files.write(gzip("line1 a\nline2 b"), live);
+        Context context = new Context();
+        context.put(MultilineDeserializer.START_PREFIX_KEY, "line");
+        // longer than the tail idle timeout
+        context.put(MultilineDeserializer.FLUSH_TIMEOUT_KEY, "600000");
+        ReliableEventReader reader = new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(WORK_DIR)
+                .ignorePattern("^(?!live.log.gz$).*$")
+                .deserializerType("MULTILINE")
+                .deserializerContext(context)
+                .tailIdleTimeout(60000L)
+                .build();
+
+        // the last record may still grow
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+
+        // once the file is idle, its unterminated last record is complete too
+        Assert.assertTrue(live.setLastModified(System.currentTimeMillis() - 120000L));
+        List<String> bodies = Lists.newArrayList();
+        for (Event event : reader.readEvents(10)) {
+            bodies.add(new String(event.getBody(), Charsets.UTF_8));
+        }
+        Assert.assertEquals(Lists.newArrayList("line1 a", "line2 b"), bodies);
+        reader.commit();
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+        Assert.assertFalse(live.exists());
+        reader.close();
+    }
+
+    private static byte[] gzip(String data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data.getBytes(Charsets.UTF_8));
+        gos.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testConsumeOrders() throws IOException {
+        for (File f : listFiles(WORK_DIR)) {
+            f.delete();
+        }
+        String[] names = { "app-20150820-1200.log.gz", "app-20150819-0900.log.gz",
+                "app-20150821-0000.log.gz" };
+        int[] lengths = { 3000, 10, 200 };
+        for (int i = 0; i < names.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < lengths[i]; j++) {
+                sb.append(names[i]).append(j).append('\n');
+            }
+            File file = new File(WORK_DIR, names[i]);
+            Files.write(gzip(sb.toString()), file);
+            // modification times in the reverse order of the name timestamps
+            Assert.assertTrue(file.setLastModified(1000000000000L - i * 60000L));
+        }
+
+        Assert.assertEquals(Lists.newArrayList(names[1], names[2], names[0]),
+                consume(ConsumeOrder.SMALLEST_FIRST, names));
+        Assert.assertEquals(Lists.newArrayList(names[0], names[2], names[1]),
+                consume(ConsumeOrder.LARGEST_FIRST, names));
+        Assert.assertEquals(Lists.newArrayList(names[1], names[0], names[2]),
+                consume(ConsumeOrder.FILENAME_TIMESTAMP, names));
+        Assert.assertEquals(Lists.newArrayList(names[2], names[1], names[0]),
+                consume(ConsumeOrder.OLDEST, names));
+    }
+
+    @Test
+    public void testPriorityLanes() throws IOException {
+        for (File f : listFiles(WORK_DIR)) {
+            f.delete();
+        }
+        List<String> names = Lists.newArrayList();
+        for (int i = 0; i < 6; i++) {
+            names.add("bulk-" + i + ".gz");
+        }
+        names.add("alert-0.gz");
+        names.add("alert-1.gz");
+        names.add("alert-2.gz");
+        for (int i = 0; i < names.size(); i++) {
+            File file = new File(WORK_DIR, names.get(i));
+            Files.write(gzip(names.get(i) + "\n"), file);
+            Assert.assertTrue(file.setLastModified(1000000000000L + i * 60000L));
+        }
+
+        Context context = new Context();
+        context.put(PriorityLanes.LANES, "alert");
+        context.put("lanes.alert.pattern", "alert-.*");
+        context.put("lanes.alert.weight", "2");
+        PriorityLanes lanes = PriorityLanes.fromContext("test.lane", context);
+        ReliableSpoolingZipFileEventReader reader =
+                new ReliableSpoolingZipFileEventReader.Builder()
+                        .spoolDirectory(WORK_DIR)
+                        .priorityLanes(lanes)
+                        .build();
+        List<String> consumed = Lists.newArrayList();
+        while (!reader.readEvents(1).isEmpty()) {
+            String name = new File(reader.getLastFileRead()).getName();
+            if (consumed.isEmpty() || !consumed.get(consumed.size() - 1).equals(name)) {
+                consumed.add(name);
+            }
+            reader.commit();
+        }
+        reader.close();
+
+        // the younger alert files get two turns out of three
+        Assert.assertEquals(Lists.newArrayList("alert-0.gz", "bulk-0.gz", "alert-1.gz",
+                "alert-2.gz", "bulk-1.gz", "bulk-2.gz", "bulk-3.gz", "bulk-4.gz", "bulk-5.gz"),
+                consumed);
+        Assert.assertEquals(3, lanes.getCounter(0).getFileOpenedCount());
+        Assert.assertEquals(6, lanes.getCounter(1).getFileOpenedCount());
+        Assert.assertEquals(0, lanes.getCounter(1).getBacklog());
+        Assert.assertTrue(lanes.getCounter(1).getLastWaitTime() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLaneWeight() {
+        Context context = new Context();
+        context.put(PriorityLanes.LANES, "alert");
+        context.put("lanes.alert.pattern", "alert-.*");
+        context.put("lanes.default.weight", "0");
+        PriorityLanes.validate(context);
+    }
+
+    // consumes the files, then puts them back
+    private List<String> consume(ConsumeOrder order, String[] names) throws IOException {
+        ReliableSpoolingZipFileEventReader reader =
+                new ReliableSpoolingZipFileEventReader.Builder()
+                        .spoolDirectory(WORK_DIR)
+                        .consumeOrder(order)
+                        .fileTimestampFormat("yyyyMMdd-HHmm")
+                        .build();
+        List<String> consumed = Lists.newArrayList();
+        while (!reader.readEvents(1).isEmpty()) {
+            String name = new File(reader.getLastFileRead()).getName();
+            if (consumed.isEmpty() || !consumed.get(consumed.size() - 1).equals(name)) {
+                consumed.add(name);
+            }
+            reader.commit();
+        }
+        reader.close();
+        for (String name : names) {
+            File completed = new File(WORK_DIR, name
+                    + SpoolDirectorySourceConfigurationConstants.DEFAULT_SPOOLED_FILE_SUFFIX);
+            File file = new File(WORK_DIR, name);
+            long lastModified = completed.lastModified();
+            Assert.assertTrue(completed.renameTo(file));
+            Assert.assertTrue(file.setLastModified(lastModified));
+        }
+        return consumed;
+    }
+
+    @Test
+    public void testRecursiveDirectories() throws IOException {
+        File root = Files.createTempDir();
+        try {
+            for (String path : new String[] { "top", "2026/10/01/a", "2026/10/02/b", "skip/c" }) {
+                zip(new File(root, path));
+            }
+            ReliableSpoolingZipFileEventReader reader =
+                    new ReliableSpoolingZipFileEventReader.Builder()
+                            .spoolDirectory(root)
+                            .maxDirectoryDepth(3)
+                            .directoryPattern("^\\d+$")
+                            .directoryListThreads(2)
+                            .build();
+            Assert.assertEquals(Lists.newArrayList("a", "b", "top"), drain(reader));
+            Assert.assertTrue(new File(root, "skip/c.zip").exists());
+
+            // directories modified within the mtime granularity are listed again
+            reader.readEvents(1);
+            Assert.assertEquals(5, reader.getListedDirectoryCount());
+
+            // consumed directories are stat'ed instead of listed
+            age(root);
+            reader.readEvents(1);
+            reader.readEvents(1);
+            Assert.assertEquals(1, reader.getListedDirectoryCount());
+
+            // until something arrives
+            zip(new File(root, "2026/10/02/d"));
+            Assert.assertEquals(Lists.newArrayList("d"), drain(reader));
+            age(root);
+            reader.readEvents(1);
+            reader.readEvents(1);
+            Assert.assertEquals(1, reader.getListedDirectoryCount());
+            reader.close();
+
+            reader = new ReliableSpoolingZipFileEventReader.Builder()
+                    .spoolDirectory(root)
+                    .maxDirectoryDepth(3)
+                    .completedDirectoryRetention(0L)
+                    .build();
+            Assert.assertEquals(Lists.newArrayList("c"), drain(reader));
+            age(root);
+            reader.readEvents(1);
+            Assert.assertFalse(new File(root, "2026").exists());
+            Assert.assertFalse(new File(root, "skip").exists());
+            Assert.assertTrue(new File(root, "top.zip.COMPLETED").exists());
+            reader.close();
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    // date the directories back, as if they had been idle for a while
+    private static void age(File directory) {
+        Assert.assertTrue(directory.setLastModified(System.currentTimeMillis() - 60000L));
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                age(file);
+            }
+        }
+    }
+
+    @Test
+    public void testShards() throws Exception {
+        final List<List<String>> consumed = Lists.newArrayList();
+        List<Thread> threads = Lists.newArrayList();
+        for (int shard = 0; shard < 2; shard++) {
+            final ReliableSpoolingZipFileEventReader reader =
+                    new ReliableSpoolingZipFileEventReader.Builder()
+                            .spoolDirectory(WORK_DIR)
+                            .shard(shard, 2)
+                            .build();
+            final List<String> names = Lists.newArrayList();
+            consumed.add(names);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        names.addAll(drain(reader));
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every file read once, by the shard of its name
+        List<String> all = Lists.newArrayList();
+        for (int shard = 0; shard < 2; shard++) {
+            for (String name : consumed.get(shard)) {
+                Assert.assertEquals(shard,
+                        ReliableSpoolingZipFileEventReader.shardOf(name + ".zip", 2));
+            }
+            all.addAll(consumed.get(shard));
+        }
+        Collections.sort(all);
+        Assert.assertEquals(Lists.newArrayList("emptylineFile", "file1", "file2", "file3"), all);
+        for (File file : listFiles(WORK_DIR)) {
+            Assert.assertTrue(file.getName(), file.getName().endsWith(".COMPLETED"));
+        }
+        Assert.assertFalse(consumed.get(0).isEmpty());
+        Assert.assertFalse(consumed.get(1).isEmpty());
+    }
+
+    private static void zip(File file) throws IOException {
+        Files.createParentDirs(file);
+        Files.write(file.getName() + "\n", file, Charsets.UTF_8);
+        ZipUtil.zipFile(new File(file.getPath() + ".zip"), file);
+        Assert.assertTrue(file.delete());
+    }
+
+    // names of the files consumed, without extension
+    private static List<String> drain(ReliableSpoolingZipFileEventReader reader)
+            throws IOException {
+        List<String> consumed = Lists.newArrayList();
+        while (!reader.readEvents(10).isEmpty()) {
+            String name = new File(reader.getLastFileRead()).getName();
+            consumed.add(name.substring(0, name.indexOf('.')));
+            reader.commit();
+        }
+        Collections.sort(consumed);
+        return consumed;
+    }
+
     @Test(expected = NullPointerException.class)
     public void testNullConsumeOrder() throws IOException {
         new ReliableSpoolingFileEventReader.Builder()
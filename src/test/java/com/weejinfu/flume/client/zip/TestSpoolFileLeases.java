@@ -0,0 +1,266 @@
+package com.weejinfu.flume.client.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.weejinfu.flume.serialization.MultilineDeserializer;
+import com.weejinfu.flume.utils.ZipUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+public class TestSpoolFileLeases {
+
+    private File spoolDir;
+
+    @Before
+    public void setup() {
+        spoolDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(spoolDir);
+    }
+
+    private void zip(String name, String contents) throws IOException {
+        File file = new File(spoolDir, name);
+        Files.write(contents, file, Charsets.UTF_8);
+        ZipUtil.zipFile(new File(spoolDir, name + ".zip"), file);
+        Assert.assertTrue(file.delete());
+    }
+
+    private ReliableSpoolingZipFileEventReader agent(String agentId, long leaseTimeout)
+            throws IOException {
+        Context context = new Context();
+        context.put(MultilineDeserializer.START_PREFIX_KEY, "line");
+        return new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(spoolDir)
+                .deserializerType("MULTILINE")
+                .deserializerContext(context)
+                .agentId(agentId)
+                .leaseTimeout(leaseTimeout)
+                .build();
+    }
+
+    private static List<String> bodies(List<Event> events) {
+        List<String> bodies = Lists.newArrayList();
+        for (Event event : events) {
+            bodies.add(new String(event.getBody(), Charsets.UTF_8));
+        }
+        return bodies;
+    }
+
+    @Test
+    public void testAgentsShareDirectory() throws Exception {
+        List<String> expected = Lists.newArrayList();
+        for (int i = 0; i < 30; i++) {
+            zip("file" + i, "line" + i + "\n");
+            expected.add("line" + i);
+        }
+
+        final List<String> consumed = Collections.synchronizedList(Lists.<String>newArrayList());
+        List<Thread> agents = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            final ReliableSpoolingZipFileEventReader reader = agent("agent" + i, 60000L);
+            agents.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        List<Event> events;
+                        while (!(events = reader.readEvents(10)).isEmpty()) {
+                            consumed.addAll(bodies(events));
+                            reader.commit();
+                        }
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        for (Thread agent : agents) {
+            agent.start();
+        }
+        for (Thread agent : agents) {
+            agent.join();
+        }
+
+        // every file read by exactly one agent
+        Collections.sort(consumed);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, consumed);
+        Assert.assertEquals(0, new File(spoolDir, SpoolFileLeases.LEASE_DIRECTORY).list().length);
+    }
+
+    @Test
+    public void testExpiredLeaseTakenOver() throws Exception {
+        zip("file", "line1\nline2\nline3\nline4\n");
+
+        ReliableSpoolingZipFileEventReader dead = agent("dead", 300L);
+        Assert.assertEquals(Lists.newArrayList("line1", "line2"), bodies(dead.readEvents(2)));
+        dead.commit();
+        Assert.assertEquals(Lists.newArrayList("line3"), bodies(dead.readEvents(1)));
+        // dies before committing line3
+        dead.close();
+
+        ReliableSpoolingZipFileEventReader live = agent("live", 300L);
+        Assert.assertTrue(live.readEvents(10).isEmpty());
+        Thread.sleep(500L);
+        // the lease has expired: resumed after the last commit
+        Assert.assertEquals(Lists.newArrayList("line3", "line4"), bodies(live.readEvents(10)));
+        live.commit();
+        Assert.assertTrue(live.readEvents(10).isEmpty());
+        Assert.assertTrue(new File(spoolDir, "file.zip.COMPLETED").exists());
+        Assert.assertEquals(0, new File(spoolDir, SpoolFileLeases.LEASE_DIRECTORY).list().length);
+        // copied from, not taken away from the dead agent
+        Assert.assertTrue(new File(spoolDir, ".flumespool/.flumespool-dead-main.meta").exists());
+        live.close();
+    }
+
+    @Test
+    public void testPackedTakeover() throws Exception {
+        zip("file0", "line0\n");
+        zip("file1", "line1\n");
+        // the second file of the pack cannot be retired
+        File conflict = new File(spoolDir, "file1.zip.COMPLETED");
+        Files.write("conflict", conflict, Charsets.UTF_8);
+
+        ReliableSpoolingZipFileEventReader dead = packingAgent("dead");
+        Assert.assertEquals(1, dead.readEvents(10).size());
+        try {
+            dead.commit();
+            Assert.fail("Retiring a file onto an existing completed file should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        dead.close();
+        Assert.assertTrue(conflict.delete());
+
+        // the committed position is adopted: the file is not sent again
+        ReliableSpoolingZipFileEventReader live = packingAgent("live");
+        Thread.sleep(500L);
+        Assert.assertTrue(live.readEvents(10).isEmpty());
+        Assert.assertTrue(new File(spoolDir, "file1.zip.COMPLETED").exists());
+        live.close();
+
+        // and the tracker of the dead agent is left in place
+        boolean deadTracker = false;
+        for (String name : new File(spoolDir, ".flumespool").list()) {
+            deadTracker |= name.startsWith(".flumespool-dead-main-file-");
+        }
+        Assert.assertTrue(deadTracker);
+    }
+
+    private ReliableSpoolingZipFileEventReader packingAgent(String agentId) throws IOException {
+        return new ReliableSpoolingZipFileEventReader.Builder()
+                .spoolDirectory(spoolDir)
+                .packFiles(2)
+                .agentId(agentId)
+                .leaseTimeout(300L)
+                .build();
+    }
+
+    @Test
+    public void testConcurrentTakeover() throws Exception {
+        final File file = new File(spoolDir, "file.zip");
+        SpoolFileLeases dead = new SpoolFileLeases(spoolDir, "dead", 300L);
+        Assert.assertEquals("dead", dead.claim(file));
+        dead.close();
+        final File lease = new File(spoolDir, SpoolFileLeases.LEASE_DIRECTORY + "/file.zip.lease");
+        Assert.assertTrue(lease.setLastModified(System.currentTimeMillis() - 60000L));
+
+        final List<String> resumed = Collections.synchronizedList(Lists.<String>newArrayList());
+        final List<Boolean> leaseFound = Collections.synchronizedList(Lists.<Boolean>newArrayList());
+        final List<SpoolFileLeases> agents = Lists.newArrayList();
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            final SpoolFileLeases agent = new SpoolFileLeases(spoolDir, "agent" + i, 300L);
+            agents.add(agent);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    String resumeFrom = agent.claim(file);
+                    if (resumeFrom != null) {
+                        resumed.add(resumeFrom);
+                    }
+                    leaseFound.add(lease.exists());
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // a single agent took the file over, and the lease never vanished
+        Assert.assertEquals(Lists.newArrayList("dead"), resumed);
+        Assert.assertFalse(leaseFound.contains(false));
+        int holders = 0;
+        for (SpoolFileLeases agent : agents) {
+            holders += agent.holds(file) ? 1 : 0;
+            agent.close();
+        }
+        Assert.assertEquals(1, holders);
+        Assert.assertEquals(1, new File(spoolDir, SpoolFileLeases.LEASE_DIRECTORY).list().length);
+    }
+
+    @Test
+    public void testStaleTakeoverMarker() throws Exception {
+        File file = new File(spoolDir, "file.zip");
+        SpoolFileLeases dead = new SpoolFileLeases(spoolDir, "dead", 300L);
+        Assert.assertEquals("dead", dead.claim(file));
+        dead.close();
+        File lease = new File(spoolDir, SpoolFileLeases.LEASE_DIRECTORY + "/file.zip.lease");
+        long lastModified = System.currentTimeMillis() - 60000L;
+        Assert.assertTrue(lease.setLastModified(lastModified));
+        lastModified = lease.lastModified();
+
+        // left by an agent which died while taking the file over
+        File marker = new File(lease.getPath() + ".dead." + lastModified
+                + SpoolFileLeases.TAKEOVER_SUFFIX);
+        Files.touch(marker);
+        SpoolFileLeases live = new SpoolFileLeases(spoolDir, "live", 300L);
+        Assert.assertNull(live.claim(file));
+        Assert.assertTrue(marker.setLastModified(lastModified));
+        Assert.assertEquals("dead", live.claim(file));
+        Assert.assertTrue(live.holds(file));
+        Assert.assertFalse(marker.exists());
+        live.close();
+    }
+
+    @Test(timeout = 10000L)
+    public void testUnwritableLeaseDirectory() throws Exception {
+        zip("file", "line1\n");
+
+        ReliableSpoolingZipFileEventReader reader = agent("agent", 300L);
+        // a file in the way of the lease directory, which even root cannot write into
+        File leaseDirectory = new File(spoolDir, SpoolFileLeases.LEASE_DIRECTORY);
+        Assert.assertTrue(leaseDirectory.delete());
+        Files.touch(leaseDirectory);
+
+        // the file is given up on instead of claimed over and over
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+        Assert.assertTrue(reader.readEvents(10).isEmpty());
+
+        // and tried again once the lease timeout has passed
+        Assert.assertTrue(leaseDirectory.delete());
+        Assert.assertTrue(leaseDirectory.mkdir());
+        Thread.sleep(500L);
+        Assert.assertEquals(Lists.newArrayList("line1"), bodies(reader.readEvents(10)));
+        reader.commit();
+        reader.close();
+    }
+
+}
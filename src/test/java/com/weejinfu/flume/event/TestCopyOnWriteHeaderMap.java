@@ -0,0 +1,50 @@
+package com.weejinfu.flume.event;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.flume.Event;
+import org.apache.flume.event.SimpleEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+public class TestCopyOnWriteHeaderMap {
+
+    private static final Map<String, String> FILE_HEADERS =
+            ImmutableMap.of("file", "/spool/a.zip", "basename", "a.zip");
+
+    private static Event event() {
+        Event event = new SimpleEvent();
+        event.setHeaders(new CopyOnWriteHeaderMap(FILE_HEADERS));
+        return event;
+    }
+
+    @Test
+    public void testViewsCopyOnWrite() {
+        Event first = event();
+        Event second = event();
+
+        // an interceptor dropping a header through the key set
+        Assert.assertTrue(first.getHeaders().keySet().remove("file"));
+        Assert.assertEquals(ImmutableMap.of("basename", "a.zip"), first.getHeaders());
+        Assert.assertEquals(FILE_HEADERS, second.getHeaders());
+
+        // or through an iterator, or by setting an entry
+        Iterator<String> it = second.getHeaders().values().iterator();
+        while (it.hasNext()) {
+            if (it.next().equals("a.zip")) {
+                it.remove();
+            }
+        }
+        Event third = event();
+        for (Map.Entry<String, String> entry : third.getHeaders().entrySet()) {
+            entry.setValue(entry.getValue().toUpperCase());
+        }
+        Assert.assertEquals(ImmutableMap.of("file", "/spool/a.zip"), second.getHeaders());
+        Assert.assertEquals(ImmutableMap.of("file", "/SPOOL/A.ZIP", "basename", "A.ZIP"),
+                third.getHeaders());
+        Assert.assertEquals(FILE_HEADERS, event().getHeaders());
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.weejinfu.flume.instrumentation.RecordFilterCounter;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.serialization.DurablePositionTracker;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.EventDeserializerFactory;
+import org.apache.flume.serialization.PositionTracker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class TestMultilineDeserializer extends Assert {
+
+    private static final String LOG =
+            "2015-08-20 10:00:00 INFO started\n"
+            + "2015-08-20 10:00:01 ERROR failed\n"
+            + "java.lang.IllegalStateException: boom\n"
+            + "\tat com.example.Foo.bar(Foo.java:42)\n"
+            + "\tat com.example.Foo.main(Foo.java:7)\n"
+            + "2015-08-20 10:00:02 INFO {\n"
+            + "  \"tenant\": \"t1\"\n"
+            + "}\n"
+            + "2015-08-20 10:00:03 INFO done";
+
+    private File tmpDir;
+    private File meta;
+
+    @Before
+    public void setup() {
+        tmpDir = Files.createTempDir();
+        meta = new File(tmpDir, ".flumespool-main.meta");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : tmpDir.listFiles()) {
+            f.delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testStartPattern() throws IOException {
+        Context ctx = new Context();
+        ctx.put(MultilineDeserializer.START_PATTERN_KEY, "\\d{4}-\\d{2}-\\d{2} ");
+        EventDeserializer des = EventDeserializerFactory.getInstance(
+                ZipEventDeserializerType.resolve("multiline"), ctx, openStream(writeGzip(LOG)));
+
+        List<Event> events = des.readEvents(2);
+        assertEquals(2, events.size());
+        assertBody("2015-08-20 10:00:00 INFO started", events.get(0));
+        assertBody("2015-08-20 10:00:01 ERROR failed\n"
+                + "java.lang.IllegalStateException: boom\n"
+                + "\tat com.example.Foo.bar(Foo.java:42)\n"
+                + "\tat com.example.Foo.main(Foo.java:7)", events.get(1));
+        des.mark();
+
+        assertBody("2015-08-20 10:00:02 INFO {\n  \"tenant\": \"t1\"\n}", des.readEvent());
+        des.reset();
+        events = des.readEvents(10);
+        assertEquals(2, events.size());
+        assertBody("2015-08-20 10:00:02 INFO {\n  \"tenant\": \"t1\"\n}", events.get(0));
+        assertBody("2015-08-20 10:00:03 INFO done", events.get(1));
+        assertNull(des.readEvent());
+        des.mark();
+        des.close();
+
+        // resumes at the record boundary marked before closing
+        des = EventDeserializerFactory.getInstance(
+                ZipEventDeserializerType.resolve("multiline"), ctx, openStream(writeGzip(LOG)));
+        assertNull(des.readEvent());
+        des.close();
+    }
+
+    @Test
+    public void testStartPrefixAndMaxRecordSize() throws IOException {
+        Context ctx = new Context();
+        ctx.put(MultilineDeserializer.START_PREFIX_KEY, "2015");
+        ctx.put(MultilineDeserializer.MAX_RECORD_SIZE_KEY, "40");
+        EventDeserializer des = new MultilineDeserializer.Builder().build(
+                ctx, openStream(writeGzip(LOG)));
+
+        List<Event> events = des.readEvents(100);
+        StringBuilder all = new StringBuilder();
+        for (Event event : events) {
+            assertTrue(event.getBody().length <= 40);
+            all.append(new String(event.getBody(), Charsets.UTF_8));
+        }
+        assertEquals("2015-08-20 10:00:00 INFO started", body(events.get(0)));
+        assertEquals(LOG.replace("\n2015", "2015"), all.toString());
+        des.close();
+    }
+
+    @Test
+    public void testExtractFields() throws IOException {
+        String json = "{\"meta\": {\"tenant\": \"nested\"}, \"list\": [\"level\", 1],\n"
+                + "  \"tenant\": \"t\\\"1\\u0041\", \"level\": 3}\n"
+                + "{\"level\": \"WARN\"}\n";
+        Context ctx = new Context();
+        ctx.put(MultilineDeserializer.START_PREFIX_KEY, "{");
+        ctx.put(FieldExtractor.JSON_KEYS_KEY, "tenant:tenantId, level");
+        EventDeserializer des = new MultilineDeserializer.Builder().build(
+                ctx, openStream(writeGzip(json)));
+        List<Event> events = des.readEvents(10);
+        assertEquals(2, events.size());
+        assertEquals("t\"1A", events.get(0).getHeaders().get("tenantId"));
+        assertEquals("3", events.get(0).getHeaders().get("level"));
+        assertEquals("WARN", events.get(1).getHeaders().get("level"));
+        assertNull(events.get(1).getHeaders().get("tenantId"));
+        des.close();
+        meta.delete();
+
+        ctx = new Context();
+        ctx.put(MultilineDeserializer.START_PATTERN_KEY, "\\d");
+        ctx.put(FieldExtractor.COLUMNS_KEY, "0:ts, 2");
+        ctx.put(FieldExtractor.COLUMN_DELIMITER_KEY, "|");
+        des = new MultilineDeserializer.Builder().build(
+                ctx, openStream(writeGzip("1|t1|INFO|x\r\n2|t2\n")));
+        events = des.readEvents(10);
+        assertEquals(2, events.size());
+        assertEquals("1", events.get(0).getHeaders().get("ts"));
+        assertEquals("INFO", events.get(0).getHeaders().get("column2"));
+        assertEquals("2", events.get(1).getHeaders().get("ts"));
+        assertNull(events.get(1).getHeaders().get("column2"));
+        des.close();
+    }
+
+    @Test
+    public void testFilterAndSample() throws IOException {
+        Context ctx = new Context();
+        ctx.put(MultilineDeserializer.START_PATTERN_KEY, "\\d{4}-\\d{2}-\\d{2} ");
+        ctx.put(RecordFilter.EXCLUDE_KEY, "\" INFO \", Foo.bar");
+        ctx.put(RecordFilter.COUNTER_NAME_KEY, "testFilter");
+        EventDeserializer des = new MultilineDeserializer.Builder().build(
+                ctx, openStream(writeGzip(LOG + "\n2015-08-20 10:00:04 WARN slow")));
+        List<Event> events = des.readEvents(10);
+        assertEquals(1, events.size());
+        assertBody("2015-08-20 10:00:04 WARN slow", events.get(0));
+        RecordFilterCounter counter = RecordFilterCounter.getInstance("testFilter");
+        assertEquals(1, counter.getRecordAcceptedCount());
+        assertEquals(4, counter.getRecordExcludedCount());
+        des.close();
+        meta.delete();
+
+        // given back by all its users, the counter is unregistered
+        RecordFilterCounter.release(counter);
+        counter = RecordFilterCounter.getInstance("testFilter");
+        assertEquals(0, counter.getRecordAcceptedCount());
+        RecordFilterCounter.release(counter);
+
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lines.append("line ").append(i).append('\n');
+        }
+        ctx = new Context();
+        ctx.put(MultilineDeserializer.START_PREFIX_KEY, "line");
+        ctx.put(RecordFilter.SAMPLE_RATE_KEY, "0.25");
+        des = new MultilineDeserializer.Builder().build(
+                ctx, openStream(writeGzip(lines.toString())));
+        events = des.readEvents(1000);
+        assertTrue(events.size() > 200 && events.size() < 300);
+        List<String> sampled = Lists.newArrayList();
+        for (Event event : events) {
+            sampled.add(body(event));
+        }
+
+        // a replay selects the same records
+        des.reset();
+        events = des.readEvents(1000);
+        assertEquals(sampled.size(), events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertBody(sampled.get(i), events.get(i));
+        }
+        des.close();
+    }
+
+    private static void assertBody(String expected, Event event) {
+        assertNotNull(event);
+        assertEquals(expected, body(event));
+    }
+
+    private static String body(Event event) {
+        return new String(event.getBody(), Charsets.UTF_8);
+    }
+
+    private File writeGzip(String content) throws IOException {
+        File file = new File(tmpDir, "app.log.gz");
+        GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        out.write(content.getBytes(Charsets.UTF_8));
+        out.close();
+        return file;
+    }
+
+    private ResettableZipInputStream openStream(File file) throws IOException {
+        PositionTracker tracker = DurablePositionTracker.getInstance(meta, file.getPath());
+        return new ResettableZipInputStream(file, tracker);
+    }
+}
@@ -2,6 +2,9 @@ package com.weejinfu.flume.serialization;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
+import com.weejinfu.flume.serialization.codec.CompressionCodecs;
+import com.weejinfu.flume.serialization.codec.IdentityCodec;
+import com.weejinfu.flume.serialization.codec.ZlibCodec;
 import com.weejinfu.flume.utils.ZipUtil;
 import org.apache.flume.serialization.DurablePositionTracker;
 import org.apache.flume.serialization.PositionTracker;
@@ -14,9 +17,21 @@ import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Created by Jason on 15/8/17.
@@ -57,7 +72,7 @@ public class TestResettableZipInputStream {
         ZipUtil.zipFile(zipFile, file);
 
         PositionTracker tracker = DurablePositionTracker.getInstance(meta, zipFile.getPath());
-        ResettableInputStream in = new ResettableZipInputStream(zipFile, tracker);
+        ResettableZipInputStream in = new ResettableZipInputStream(zipFile, tracker);
 
         String result = readLine(in, output.length());
         assertEquals(output, result);
@@ -65,9 +80,385 @@ public class TestResettableZipInputStream {
         String afterEOF = readLine(in, output.length());
         assertNull(afterEOF);
 
+        // a deflated entry is streamed without mapping the file
+        assertFalse(in.isArchiveOpen());
         in.close();
     }
 
+    @Test
+    public void testStoredEntry() throws IOException {
+        // several times the size of the read buffer
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 65536; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        byte[] data = sb.toString().getBytes(Charsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry("stored");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
+        zos.putNextEntry(entry);
+        zos.write(data);
+        zos.closeEntry();
+        zos.close();
+
+        PositionTracker tracker = DurablePositionTracker.getInstance(meta, zipFile.getPath());
+        ResettableZipInputStream in = new ResettableZipInputStream(zipFile, tracker);
+        assertEquals(data.length, in.remaining());
+        assertEquals("line 0\n", readLine(in, 100));
+        in.mark();
+
+        in.seek(data.length - 2);
+        byte[] tail = new byte[10];
+        assertEquals(2, in.read(tail, 0, tail.length));
+        assertEquals(-1, in.read(tail, 0, tail.length));
+
+        in.reset();
+        assertEquals("line 1\n", readLine(in, 100));
+        ZipArchive archive = in.getArchive();
+        in.close();
+
+        // the mapping is released with the stream
+        try {
+            archive.getBuffer();
+            fail("A closed archive should not be readable");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testZip64() throws IOException {
+        byte[] stored = linesOf(0, 200);
+        byte[] plain = linesOf(200, 400);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(deflated,
+                new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        dos.write(plain);
+        dos.close();
+        writeZip64(zipFile, new String[] { "stored", "deflated" },
+                new byte[][] { stored, plain }, new byte[][] { stored, deflated.toByteArray() });
+
+        // tiny segments, so that entries and header fields span several of them
+        ZipArchive archive = ZipArchive.open(zipFile, 7);
+        assertEquals(2, archive.getEntries().size());
+        ZipArchive.Entry entry = archive.getEntry("stored");
+        assertEquals(stored.length, entry.getSize());
+        assertFalse(archive.hasContiguousData(entry));
+        assertArrayEquals(stored, archive.read(entry, 0, stored.length));
+        assertEquals(ByteBuffer.wrap(stored), archive.slice(entry));
+        assertArrayEquals(plain, archive.read(archive.getEntry("deflated"), 0, plain.length));
+        assertArrayEquals("line 399\n".getBytes(Charsets.UTF_8),
+                archive.read(archive.getEntry("deflated"), plain.length - 9, 9));
+        try {
+            archive.getBuffer();
+            fail("Multi segment archive returned a single buffer");
+        } catch (IOException expected) {
+        }
+
+        PositionTracker tracker = DurablePositionTracker.getInstance(meta, zipFile.getPath());
+        ResettableZipInputStream in = new ResettableZipInputStream(zipFile, tracker);
+        assertArrayEquals(stored, readAll(in));
+        in.close();
+    }
+
+    // one local header per entry, then a central directory which only has
+    // its sizes and offsets in zip64 extra fields and records
+    private static void writeZip64(File zipFile, String[] names, byte[][] plain, byte[][] data)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        long[] offsets = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            CRC32 crc = new CRC32();
+            crc.update(plain[i]);
+            offsets[i] = buf.position();
+            buf.putInt(0x04034b50).putShort((short) 45).putShort((short) 0)
+                    .putShort((short) (plain[i] == data[i] ? 0 : 8))
+                    .putInt(0).putInt((int) crc.getValue())
+                    .putInt(data[i].length).putInt(plain[i].length)
+                    .putShort((short) names[i].length()).putShort((short) 0)
+                    .put(names[i].getBytes(Charsets.UTF_8)).put(data[i]);
+        }
+        long centralDirectory = buf.position();
+        for (int i = 0; i < names.length; i++) {
+            CRC32 crc = new CRC32();
+            crc.update(plain[i]);
+            buf.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                    .putShort((short) (plain[i] == data[i] ? 0 : 8))
+                    .putInt(0).putInt((int) crc.getValue()).putInt(-1).putInt(-1)
+                    .putShort((short) names[i].length()).putShort((short) 28)
+                    .putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                    .putInt(0).putInt(-1)
+                    .put(names[i].getBytes(Charsets.UTF_8))
+                    .putShort((short) 1).putShort((short) 24)
+                    .putLong(plain[i].length).putLong(data[i].length).putLong(offsets[i]);
+        }
+        long zip64End = buf.position();
+        buf.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                .putInt(0).putInt(0).putLong(names.length).putLong(names.length)
+                .putLong(zip64End - centralDirectory).putLong(centralDirectory);
+        buf.putInt(0x07064b50).putInt(0).putLong(zip64End).putInt(1);
+        buf.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) -1).putShort((short) -1).putInt(-1).putInt(-1)
+                .putShort((short) 0);
+        Files.write(Arrays.copyOf(buf.array(), buf.position()), zipFile);
+    }
+
+    @Test
+    public void testGzipMultiMember() throws IOException {
+        File gzFile = new File(WORK_DIR, file.getName() + ".gz");
+        byte[] first = linesOf(0, 20000);
+        byte[] second = linesOf(20000, 30000);
+        FileOutputStream fos = new FileOutputStream(gzFile);
+        for (byte[] member : new byte[][] {first, second}) {
+            GZIPOutputStream gos = new GZIPOutputStream(fos);
+            gos.write(member);
+            gos.finish();
+        }
+        fos.close();
+
+        try {
+            PositionTracker tracker = DurablePositionTracker.getInstance(meta, gzFile.getPath());
+            ResettableZipInputStream in = new ResettableZipInputStream(gzFile, tracker);
+            assertEquals("gzip", in.getCodec().getName());
+            assertEquals(-1, in.remaining());
+
+            byte[] all = readAll(in);
+            assertEquals(first.length + second.length, all.length);
+            assertEquals(new String(first, Charsets.UTF_8) + new String(second, Charsets.UTF_8),
+                    new String(all, Charsets.UTF_8));
+
+            // seek back far outside of the buffer and read across the members
+            in.seek(first.length - "line 19999\n".length());
+            in.mark();
+            assertEquals("line 19999\n", readLine(in, 100));
+            assertEquals("line 20000\n", readLine(in, 100));
+            in.reset();
+            assertEquals("line 19999\n", readLine(in, 100));
+            in.close();
+        } finally {
+            gzFile.delete();
+        }
+    }
+
+    @Test
+    public void testGzipTail() throws IOException {
+        File gzFile = new File(WORK_DIR, file.getName() + ".gz");
+        byte[] first = linesOf(0, 1000);
+        byte[] second = linesOf(1000, 2000);
+        byte[] secondMember = gzip(second);
+        Files.write(gzip(first), gzFile);
+
+        try {
+            PositionTracker tracker = DurablePositionTracker.getInstance(meta, gzFile.getPath());
+            ResettableZipInputStream in = new ResettableZipInputStream.Builder()
+                    .file(gzFile).tracker(tracker).tail(true).build();
+            assertTrue(in.isTail());
+            assertArrayEquals(first, readAll(in));
+            in.mark();
+
+            // half a member is not read
+            int half = secondMember.length / 2;
+            Files.append(new String(secondMember, 0, half, Charsets.ISO_8859_1),
+                    gzFile, Charsets.ISO_8859_1);
+            assertEquals(-1, in.read());
+            assertEquals(gzFile.length() - half, in.getCompleteLength());
+
+            Files.append(new String(secondMember, half, secondMember.length - half,
+                    Charsets.ISO_8859_1), gzFile, Charsets.ISO_8859_1);
+            assertEquals("line 1000\n", readLine(in, 100));
+            in.reset();
+            assertArrayEquals(second, readAll(in));
+            assertEquals(gzFile.length(), in.getCompleteLength());
+
+            // seeking back restarts at the boundary of the second member
+            in.seek(first.length - "line 999\n".length());
+            assertEquals("line 999\n", readLine(in, 100));
+            assertEquals("line 1000\n", readLine(in, 100));
+            in.close();
+        } finally {
+            gzFile.delete();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data);
+        gos.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testZlibAndRawDeflate() throws IOException {
+        byte[] data = linesOf(0, 5000);
+        File zlibFile = new File(WORK_DIR, file.getName() + ".data");
+        File deflateFile = new File(WORK_DIR, file.getName() + ".deflate");
+        DeflaterOutputStream zos = new DeflaterOutputStream(new FileOutputStream(zlibFile));
+        zos.write(data);
+        zos.close();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        DeflaterOutputStream dos = new DeflaterOutputStream(new FileOutputStream(deflateFile), deflater);
+        dos.write(data);
+        dos.close();
+        deflater.end();
+
+        try {
+            for (File f : new File[] {zlibFile, deflateFile}) {
+                meta.delete();
+                PositionTracker tracker = DurablePositionTracker.getInstance(meta, f.getPath());
+                ResettableZipInputStream in = new ResettableZipInputStream(f, tracker);
+                assertEquals(new String(data, Charsets.UTF_8),
+                        new String(readAll(in), Charsets.UTF_8));
+                in.close();
+            }
+        } finally {
+            zlibFile.delete();
+            deflateFile.delete();
+        }
+    }
+
+    @Test
+    public void testSuffixOverZlibMagic() throws IOException {
+        // "80" is also a valid two byte zlib header
+        File tarFile = new File(WORK_DIR, file.getName() + ".tar");
+        File dataFile = new File(WORK_DIR, file.getName() + ".data");
+        try {
+            Files.write("80 plain tar member name", tarFile, Charsets.UTF_8);
+            assertTrue(CompressionCodecs.forFile(tarFile) instanceof IdentityCodec);
+            Files.write("80 plain tar member name", dataFile, Charsets.UTF_8);
+            assertTrue(CompressionCodecs.forFile(dataFile) instanceof ZlibCodec);
+        } finally {
+            tarFile.delete();
+            dataFile.delete();
+        }
+    }
+
+    @Test
+    public void testBgzf() throws IOException {
+        File bgzfFile = new File(WORK_DIR, file.getName() + ".gz");
+        File indexFile = new File(WORK_DIR, file.getName() + ".bgzfidx");
+        byte[] data = linesOf(0, 30000);
+        FileOutputStream fos = new FileOutputStream(bgzfFile);
+        for (int off = 0; off < data.length; off += 10000) {
+            writeBgzfBlock(fos, data, off, Math.min(10000, data.length - off));
+        }
+        writeBgzfBlock(fos, data, 0, 0); // end of file marker
+        fos.close();
+
+        try {
+            PositionTracker tracker = DurablePositionTracker.getInstance(meta, bgzfFile.getPath());
+            ResettableZipInputStream in = new ResettableZipInputStream.Builder()
+                    .file(bgzfFile).tracker(tracker)
+                    .blockIndexFile(indexFile).decompressThreads(3).build();
+            assertEquals("bgzf", in.getCodec().getName());
+            assertTrue(indexFile.exists());
+            assertEquals(new String(data, Charsets.UTF_8), new String(readAll(in), Charsets.UTF_8));
+
+            // jump backwards and forwards between blocks
+            String line = "line 12345\n";
+            long pos = new String(data, Charsets.UTF_8).indexOf(line);
+            in.seek(pos);
+            in.mark();
+            assertEquals(line, readLine(in, 100));
+            in.seek(new String(data, Charsets.UTF_8).indexOf("line 100\n"));
+            assertEquals("line 100\n", readLine(in, 100));
+            in.close();
+
+            // resume from the stored index and the tracked position
+            tracker = DurablePositionTracker.getInstance(meta, bgzfFile.getPath());
+            in = new ResettableZipInputStream.Builder()
+                    .file(bgzfFile).tracker(tracker).blockIndexFile(indexFile).build();
+            assertEquals(line, readLine(in, 100));
+            in.close();
+        } finally {
+            bgzfFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    private static void writeBgzfBlock(OutputStream out, byte[] data, int off, int len)
+            throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater);
+        dos.write(data, off, len);
+        dos.close();
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+
+        ByteBuffer block = ByteBuffer.allocate(18 + compressed.size() + 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        block.put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+        block.putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2);
+        block.putShort((short) (block.capacity() - 1));
+        block.put(compressed.toByteArray());
+        block.putInt((int) crc.getValue()).putInt(len);
+        out.write(block.array());
+    }
+
+    @Test
+    public void testBgzfTail() throws IOException {
+        File bgzfFile = new File(WORK_DIR, file.getName() + ".gz");
+        byte[] first = linesOf(0, 1000);
+        byte[] second = linesOf(1000, 2000);
+        FileOutputStream fos = new FileOutputStream(bgzfFile);
+        writeBgzfBlock(fos, first, 0, first.length);
+        fos.close();
+
+        try {
+            PositionTracker tracker = DurablePositionTracker.getInstance(meta, bgzfFile.getPath());
+            ResettableZipInputStream in = new ResettableZipInputStream.Builder()
+                    .file(bgzfFile).tracker(tracker).tail(true).build();
+            assertEquals("bgzf", in.getCodec().getName());
+            assertTrue(in.isTail());
+            assertArrayEquals(first, readAll(in));
+            assertFalse(in.hasTailGrown());
+
+            // blocks appended later are read as they come, up to the end of file marker
+            fos = new FileOutputStream(bgzfFile, true);
+            writeBgzfBlock(fos, second, 0, second.length);
+            writeBgzfBlock(fos, second, 0, 0);
+            fos.close();
+            assertTrue(in.hasTailGrown());
+            assertArrayEquals(second, readAll(in));
+            assertEquals(bgzfFile.length(), in.getCompleteLength());
+            in.close();
+        } finally {
+            bgzfFile.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownFormat() throws IOException {
+        singleLineFileInit(file, Charsets.UTF_8);
+        PositionTracker tracker = DurablePositionTracker.getInstance(meta, file.getPath());
+        new ResettableZipInputStream(file, tracker);
+    }
+
+    private static byte[] linesOf(int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        return sb.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static byte[] readAll(ResettableInputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) != -1) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
     private static String singleLineFileInit(File file, Charset charset)
             throws IOException {
         String output = "Weejinfu is gonna be great!\n";
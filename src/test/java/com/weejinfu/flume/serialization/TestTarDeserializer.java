@@ -0,0 +1,185 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.serialization.DurablePositionTracker;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.EventDeserializerFactory;
+import org.apache.flume.serialization.PositionTracker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class TestTarDeserializer extends Assert {
+
+    private File tmpDir;
+    private File meta;
+    private String longName;
+    private String big;
+
+    @Before
+    public void setup() {
+        tmpDir = Files.createTempDir();
+        meta = new File(tmpDir, ".flumespool-main.meta");
+        longName = Strings.repeat("directory/", 15) + "file3";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("file2line").append(i).append('\n');
+        }
+        big = sb.toString();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : tmpDir.listFiles()) {
+            f.delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testTarGz() throws Exception {
+        File tarGz = writeTar("bundle.tar.gz", true);
+        Context ctx = new Context();
+        ctx.put(TarDeserializer.CHUNK_SIZE_KEY, "5000");
+        EventDeserializer des = EventDeserializerFactory.getInstance(
+                ZipEventDeserializerType.resolve("tar"), ctx, openStream(tarGz));
+
+        List<Event> events = des.readEvents(10);
+        assertEquals(6, events.size());
+        assertMember(events.get(0), "logs/file1", 0, "file1line1\n");
+
+        StringBuilder file2 = new StringBuilder();
+        for (int i = 1; i < 4; i++) {
+            Event event = events.get(i);
+            assertEquals("logs/file2", event.getHeaders().get(TarDeserializer.MEMBER_HEADER_KEY));
+            assertEquals(String.valueOf(big.length()),
+                    event.getHeaders().get(TarDeserializer.MEMBER_SIZE_HEADER_KEY));
+            assertEquals(String.valueOf(file2.length()),
+                    event.getHeaders().get(TarDeserializer.MEMBER_OFFSET_HEADER_KEY));
+            assertTrue(event.getBody().length <= 5000);
+            file2.append(new String(event.getBody(), Charsets.UTF_8));
+        }
+        assertEquals(big, file2.toString());
+        assertMember(events.get(4), longName, 0, "file3line1\n");
+        assertMember(events.get(5), "pax/file4", 0, "file4line1\n");
+        assertNull(des.readEvent());
+        des.close();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        File tar = writeTar("bundle.tar", false);
+        Context ctx = new Context();
+        ctx.put(TarDeserializer.CHUNK_SIZE_KEY, "5000");
+        EventDeserializer des = new TarDeserializer(ctx, openStream(tar));
+
+        // commit file1 and the first chunk of file2, then roll back one chunk
+        assertEquals(2, des.readEvents(2).size());
+        des.mark();
+        Event uncommitted = des.readEvent();
+        assertMember(uncommitted, "logs/file2", 5000, null);
+        des.reset();
+        Event again = des.readEvent();
+        assertMember(again, "logs/file2", 5000, null);
+        assertArrayEquals(uncommitted.getBody(), again.getBody());
+        des.reset();
+        des.close();
+
+        // a new deserializer picks up at the committed member and offset
+        des = new TarDeserializer(ctx, openStream(tar));
+        List<Event> events = des.readEvents(10);
+        assertEquals(4, events.size());
+        assertMember(events.get(0), "logs/file2", 5000, null);
+        assertMember(events.get(2), longName, 0, "file3line1\n");
+        des.mark();
+        assertNull(des.readEvent());
+        des.mark();
+        des.close();
+
+        des = new TarDeserializer(ctx, openStream(tar));
+        assertNull(des.readEvent());
+        des.close();
+    }
+
+    private static void assertMember(Event event, String name, long offset, String body) {
+        assertEquals(name, event.getHeaders().get(TarDeserializer.MEMBER_HEADER_KEY));
+        assertEquals(String.valueOf(offset),
+                event.getHeaders().get(TarDeserializer.MEMBER_OFFSET_HEADER_KEY));
+        if (body != null) {
+            assertEquals(body, new String(event.getBody(), Charsets.UTF_8));
+        }
+    }
+
+    private ResettableZipInputStream openStream(File file) throws IOException {
+        PositionTracker tracker = DurablePositionTracker.getInstance(meta, file.getPath());
+        return new ResettableZipInputStream(file, tracker);
+    }
+
+    /**
+     * A directory, a small file, a file spanning several chunks, a file with
+     * a GNU long name and one with a pax path.
+     */
+    private File writeTar(String name, boolean gzip) throws IOException {
+        File file = new File(tmpDir, name);
+        OutputStream out = new FileOutputStream(file);
+        if (gzip) {
+            out = new GZIPOutputStream(out);
+        }
+        writeMember(out, "logs/", '5', new byte[0]);
+        writeMember(out, "logs/file1", '0', "file1line1\n".getBytes(Charsets.UTF_8));
+        writeMember(out, "logs/file2", '0', big.getBytes(Charsets.UTF_8));
+        writeMember(out, "././@LongLink", 'L', (longName + "\0").getBytes(Charsets.UTF_8));
+        writeMember(out, "truncated", '0', "file3line1\n".getBytes(Charsets.UTF_8));
+        String record = "path=pax/file4\n";
+        record = (record.length() + 3) + " " + record;
+        writeMember(out, "PaxHeaders/file4", 'x', record.getBytes(Charsets.UTF_8));
+        writeMember(out, "file4", '0', "file4line1\n".getBytes(Charsets.UTF_8));
+        out.write(new byte[1024]);
+        out.close();
+        return file;
+    }
+
+    private static void writeMember(OutputStream out, String name, char type, byte[] data)
+            throws IOException {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 124, 12, data.length);
+        putOctal(header, 136, 12, 0);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\00000".getBytes(Charsets.US_ASCII), 0, header, 257, 8);
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        int sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        putOctal(header, 148, 7, sum);
+
+        ByteArrayOutputStream member = new ByteArrayOutputStream();
+        member.write(header);
+        member.write(data);
+        member.write(new byte[(512 - data.length % 512) % 512]);
+        member.writeTo(out);
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Strings.padStart(Long.toOctalString(value), length - 1, '0');
+        System.arraycopy(octal.getBytes(Charsets.US_ASCII), 0, header, offset, length - 1);
+    }
+}
@@ -2,6 +2,7 @@ package com.weejinfu.flume.serialization;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
+import com.weejinfu.flume.instrumentation.RecordFilterCounter;
 import com.weejinfu.flume.utils.ZipUtil;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -12,8 +13,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Created by Jason on 15/8/14.
@@ -93,6 +99,203 @@ public class TestZipDeserializer extends Assert {
         assertNull(des.readEvent());
     }
 
+    @Test
+    public void testRecordFilter() throws IOException {
+        ResettableInputStream in = setTestInputStream();
+        Context ctx = new Context();
+        ctx.put(ZipDeserializer.MAX_FILE_LENGTH_KEY, "11");
+        ctx.put(RecordFilter.EXCLUDE_KEY, "line2");
+        ctx.put(RecordFilter.COUNTER_NAME_KEY, "testZipFilter");
+
+        EventDeserializer des = new ZipDeserializer(ctx, in);
+        assertEventBodyEquals("file1line1\n", des.readEvent());
+        assertEventBodyEquals("file1line3\n", des.readEvent());
+        assertNull(des.readEvent());
+        RecordFilterCounter counter = RecordFilterCounter.getInstance("testZipFilter");
+        assertEquals(2, counter.getRecordAcceptedCount());
+        assertEquals(1, counter.getRecordExcludedCount());
+        des.close();
+        RecordFilterCounter.release(counter);
+    }
+
+    @Test
+    public void testLazyBody() throws IOException {
+        ResettableInputStream in = setTestInputStream();
+        Context ctx = new Context();
+        ctx.put(ZipDeserializer.LAZY_BODY_KEY, "true");
+
+        EventDeserializer des = new ZipDeserializer(ctx, in);
+        Event event = des.readEvent();
+        assertTrue(event instanceof LazyZipEvent);
+        assertFalse(((LazyZipEvent) event).isBodyLoaded());
+        assertEquals("file1", event.getHeaders().get(ZipDeserializer.ENTRY_HEADER_KEY));
+        assertEquals(String.valueOf(content.length()),
+                event.getHeaders().get(ZipDeserializer.ENTRY_SIZE_HEADER_KEY));
+        assertNull(des.readEvent());
+
+        assertEventBodyEquals(content, event);
+        assertTrue(((LazyZipEvent) event).isBodyLoaded());
+        des.mark();
+        des.close();
+    }
+
+    @Test
+    public void testLazyBodyDeflatedChunks() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append(String.format("line-%04d\n", i));
+        }
+        content = sb.toString();
+        ResettableInputStream in = setTestInputStream();
+        assertEquals(ZipArchive.METHOD_DEFLATED,
+                ZipArchive.open(new File(zipFile)).getEntries().get(0).getMethod());
+        Context ctx = new Context();
+        ctx.put(ZipDeserializer.LAZY_BODY_KEY, "true");
+        ctx.put(ZipDeserializer.MAX_FILE_LENGTH_KEY, "1500");
+
+        EventDeserializer des = new ZipDeserializer(ctx, in);
+        List<Event> events = des.readEvents(100);
+        assertEquals(14, events.size());
+        // inflated chunk after chunk, each from where the previous one ended
+        for (int i = 0; i < events.size(); i++) {
+            assertEventBodyEquals(content.substring(i * 1500,
+                    Math.min(content.length(), (i + 1) * 1500)), events.get(i));
+        }
+        des.close();
+    }
+
+    @Test
+    public void testLazyBodyMaxFileLength() throws IOException {
+        ResettableInputStream in = setTestInputStream();
+        Context ctx = new Context();
+        ctx.put(ZipDeserializer.LAZY_BODY_KEY, "true");
+        ctx.put(ZipDeserializer.MAX_FILE_LENGTH_KEY, "10");
+
+        EventDeserializer des = new ZipDeserializer(ctx, in);
+        des.mark();
+        Event first = des.readEvent();
+        des.reset();
+        assertEventBodyEquals("file1line1", des.readEvent());
+        assertEventBodyEquals("\nfile1line", des.readEvent());
+        assertEventBodyEquals("2\nfile1lin", des.readEvent());
+        assertEventBodyEquals("e3\n", des.readEvent());
+        assertNull(des.readEvent());
+        assertEventBodyEquals("file1line1", first);
+    }
+
+    @Test
+    public void testNestedArchives() throws IOException {
+        setTestInputStream().close();
+        File outer = new File(tmpDir, "outer.zip");
+        ZipUtil.zipFile(outer.getPath(), new File(zipFile));
+        File metaFile = new File(tmpDir, metaFileName);
+
+        // without expansion the inner archive is shipped as it is
+        PositionTracker tracker = DurablePositionTracker.getInstance(metaFile, outer.getPath());
+        ResettableZipInputStream in = new ResettableZipInputStream(outer, tracker);
+        assertNull(in.getNestedPath());
+        EventDeserializer des = new ZipDeserializer(new Context(), in);
+        assertArrayEquals(Files.toByteArray(new File(zipFile)), des.readEvent().getBody());
+        des.close();
+
+        tracker = DurablePositionTracker.getInstance(metaFile, outer.getPath());
+        in = new ResettableZipInputStream.Builder()
+                .file(outer).tracker(tracker).maxNestingDepth(2).build();
+        assertEquals("outer.zip!/file1!/file1", in.getNestedPath());
+        des = new ZipDeserializer(new Context(), in);
+        des.mark();
+        Event event = des.readEvent();
+        assertEventBodyEquals(content, event);
+        assertEquals("outer.zip!/file1!/file1",
+                event.getHeaders().get(ZipDeserializer.NESTED_PATH_HEADER_KEY));
+        assertNull(des.readEvent());
+        des.reset();
+        assertEventBodyEquals(content, des.readEvent());
+        des.close();
+    }
+
+    @Test
+    public void testEntryFilter() throws IOException {
+        File archive = new File(tmpDir, "mixed.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive));
+        for (String name : new String[] {"MANIFEST.MF", "logs/a.log", "thumbs/a.png",
+                "logs/huge.log", "logs/b.log"}) {
+            zos.putNextEntry(new ZipEntry(name));
+            zos.write((name.equals("logs/huge.log") ? content + content : content)
+                    .getBytes(Charsets.UTF_8));
+            zos.closeEntry();
+        }
+        zos.close();
+
+        // corrupt the rejected entries, they must never be inflated
+        ZipArchive zip = ZipArchive.open(archive);
+        RandomAccessFile raf = new RandomAccessFile(archive, "rw");
+        for (String name : new String[] {"MANIFEST.MF", "thumbs/a.png", "logs/huge.log"}) {
+            ZipArchive.Entry entry = zip.getEntry(name);
+            raf.seek(zip.dataOffset(entry));
+            raf.write(new byte[(int) entry.getCompressedSize()]);
+        }
+        raf.close();
+
+        Context ctx = new Context();
+        ctx.put(EntryFilter.INCLUDE_KEY, "**.log, regex:.*\\.png");
+        ctx.put(EntryFilter.EXCLUDE_KEY, "thumbs/*");
+        ctx.put(EntryFilter.MAX_SIZE_KEY, String.valueOf(content.length()));
+        ctx.put(ZipDeserializer.MAX_FILE_LENGTH_KEY, "20");
+        File metaFile = new File(tmpDir, metaFileName);
+        PositionTracker tracker = DurablePositionTracker.getInstance(metaFile, archive.getPath());
+        EventDeserializer des = new ZipDeserializer(ctx,
+                new ResettableZipInputStream(archive, tracker));
+
+        List<Event> events = des.readEvents(3);
+        assertEquals(3, events.size());
+        assertEquals("logs/a.log", events.get(0).getHeaders().get(ZipDeserializer.ENTRY_HEADER_KEY));
+        assertEventBodyEquals(content.substring(0, 20), events.get(0));
+        assertEventBodyEquals(content.substring(20), events.get(1));
+        assertEquals("logs/b.log", events.get(2).getHeaders().get(ZipDeserializer.ENTRY_HEADER_KEY));
+        assertEventBodyEquals(content.substring(0, 20), events.get(2));
+        des.mark();
+        assertEventBodyEquals(content.substring(20), des.readEvent());
+        assertNull(des.readEvent());
+        des.reset();
+        assertEventBodyEquals(content.substring(20), des.readEvent());
+        des.close();
+
+        // resume in the middle of logs/b.log
+        tracker = DurablePositionTracker.getInstance(metaFile, archive.getPath());
+        des = new ZipDeserializer(ctx, new ResettableZipInputStream(archive, tracker));
+        assertEventBodyEquals(content.substring(20), des.readEvent());
+        assertNull(des.readEvent());
+        des.close();
+    }
+
+    @Test
+    public void testTranscode() throws IOException {
+        Charset gbk = Charset.forName("GBK");
+        String text = "\u6587\u4ef6\u4e00 line1\n\u6587\u4ef6\u4e00 line2\n";
+        Files.write(text, file, gbk);
+        ZipUtil.zipFile(zipFile, file);
+        PositionTracker tracker = DurablePositionTracker.getInstance(
+                new File(tmpDir, metaFileName), zipFile);
+        ResettableZipInputStream in = new ResettableZipInputStream.Builder()
+                .file(new File(zipFile)).tracker(tracker).charset(gbk).build();
+        Context context = new Context();
+        context.put(ZipDeserializer.TRANSCODE_KEY, "true");
+        EventDeserializer des = new ZipDeserializer(context, in);
+        Event event = des.readEvent();
+        assertArrayEquals(text.getBytes(Charsets.UTF_8), event.getBody());
+        des.close();
+
+        // no conversion at all for ASCII and for valid UTF-8 read as UTF-8
+        byte[] ascii = "plain ascii\n".getBytes(Charsets.US_ASCII);
+        assertSame(ascii, new Utf8Transcoder(gbk, DecodeErrorPolicy.FAIL).transcode(ascii));
+        byte[] utf8 = text.getBytes(Charsets.UTF_8);
+        Utf8Transcoder fromUtf8 = new Utf8Transcoder(Charsets.UTF_8, DecodeErrorPolicy.REPLACE);
+        assertSame(utf8, fromUtf8.transcode(utf8));
+        assertEquals("a\ufffdb", new String(fromUtf8.transcode(
+                new byte[] { 'a', (byte) 0xc0, 'b' }), Charsets.UTF_8));
+    }
+
     private void assertEventBodyEquals(String expected, Event event) {
         String bodyStr = new String(event.getBody(), Charsets.UTF_8);
         assertEquals(expected, bodyStr);
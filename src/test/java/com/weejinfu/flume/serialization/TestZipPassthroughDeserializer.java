@@ -0,0 +1,132 @@
+package com.weejinfu.flume.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.serialization.DurablePositionTracker;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.EventDeserializerFactory;
+import org.apache.flume.serialization.PositionTracker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class TestZipPassthroughDeserializer extends Assert {
+
+    private File tmpDir;
+    private File zipFile;
+    private String deflated;
+    private String stored;
+
+    @Before
+    public void setup() throws IOException {
+        tmpDir = Files.createTempDir();
+        zipFile = new File(tmpDir, "file1.zip");
+        deflated = "file1line1\nfile1line2\nfile1line3\nfile1line1\nfile1line2\n";
+        stored = "file2line1\n";
+
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
+        zos.putNextEntry(new ZipEntry("file1"));
+        zos.write(deflated.getBytes(Charsets.UTF_8));
+        zos.closeEntry();
+
+        byte[] storedBytes = stored.getBytes(Charsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(storedBytes);
+        ZipEntry storedEntry = new ZipEntry("file2");
+        storedEntry.setMethod(ZipEntry.STORED);
+        storedEntry.setSize(storedBytes.length);
+        storedEntry.setCompressedSize(storedBytes.length);
+        storedEntry.setCrc(crc.getValue());
+        zos.putNextEntry(storedEntry);
+        zos.write(storedBytes);
+        zos.closeEntry();
+        zos.close();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : tmpDir.listFiles()) {
+            f.delete();
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testEntryMode() throws Exception {
+        EventDeserializer des = EventDeserializerFactory.getInstance(
+                ZipEventDeserializerType.resolve("passthrough"), new Context(), openStream());
+        List<Event> events = des.readEvents(10);
+        assertEquals(2, events.size());
+
+        Event first = events.get(0);
+        assertEquals("file1", first.getHeaders().get(ZipDeserializer.ENTRY_HEADER_KEY));
+        assertEquals(ZipPassthroughDeserializer.METHOD_DEFLATED,
+                first.getHeaders().get(ZipPassthroughDeserializer.METHOD_HEADER_KEY));
+        assertEquals(String.valueOf(deflated.length()),
+                first.getHeaders().get(ZipDeserializer.ENTRY_SIZE_HEADER_KEY));
+        assertTrue(first.getBody().length < deflated.length());
+        String inflated = inflate(first.getBody(), deflated.length());
+        assertEquals(deflated, inflated);
+        CRC32 crc = new CRC32();
+        crc.update(inflated.getBytes(Charsets.UTF_8));
+        assertEquals(String.valueOf(crc.getValue()),
+                first.getHeaders().get(ZipPassthroughDeserializer.CRC_HEADER_KEY));
+
+        Event second = events.get(1);
+        assertEquals(ZipPassthroughDeserializer.METHOD_STORED,
+                second.getHeaders().get(ZipPassthroughDeserializer.METHOD_HEADER_KEY));
+        assertEquals(stored, new String(second.getBody(), Charsets.UTF_8));
+        assertNull(des.readEvent());
+
+        // nothing was committed, so both entries are shipped again
+        des.reset();
+        assertEquals(2, des.readEvents(10).size());
+        des.mark();
+        des.reset();
+        assertNull(des.readEvent());
+        des.close();
+    }
+
+    @Test
+    public void testArchiveMode() throws Exception {
+        Context ctx = new Context();
+        ctx.put(ZipPassthroughDeserializer.MODE_KEY, "archive");
+        EventDeserializer des = new ZipPassthroughDeserializer(ctx, openStream());
+        Event event = des.readEvent();
+        assertArrayEquals(Files.toByteArray(zipFile), event.getBody());
+        assertEquals(ZipPassthroughDeserializer.METHOD_ZIP,
+                event.getHeaders().get(ZipPassthroughDeserializer.METHOD_HEADER_KEY));
+        assertNull(des.readEvent());
+        des.close();
+    }
+
+    private ResettableZipInputStream openStream() throws IOException {
+        PositionTracker tracker = DurablePositionTracker.getInstance(
+                new File(tmpDir, ".flumespool-main.meta"), zipFile.getPath());
+        return new ResettableZipInputStream(zipFile, tracker);
+    }
+
+    private static String inflate(byte[] raw, int size) throws Exception {
+        Inflater inflater = new Inflater(true);
+        byte[] input = new byte[raw.length + 1];
+        System.arraycopy(raw, 0, input, 0, raw.length);
+        inflater.setInput(input);
+        byte[] out = new byte[size];
+        int n = inflater.inflate(out);
+        inflater.end();
+        assertEquals(size, n);
+        return new String(out, Charsets.UTF_8);
+    }
+}
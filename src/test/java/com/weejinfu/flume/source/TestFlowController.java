@@ -0,0 +1,76 @@
+package com.weejinfu.flume.source;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFlowController {
+
+    @Test
+    public void testShrinkAndGrow() throws InterruptedException {
+        FlowController flow = new FlowController(100, 4000L);
+        Assert.assertEquals(100, flow.getBatchSize());
+        Assert.assertEquals(250L, flow.getRetryDelay());
+
+        flow.rejected(1000000L);
+        Assert.assertEquals(50, flow.getBatchSize());
+        flow.rejected(1000000L);
+        Assert.assertEquals(25, flow.getBatchSize());
+        // no drain rate measured yet: doubles from the initial delay
+        Assert.assertEquals(500L, flow.getRetryDelay());
+
+        Thread.sleep(100L);
+        flow.accepted(25, 1000000L);
+        Assert.assertEquals(35, flow.getBatchSize());
+        // 25 events went in after about 100ms, so 35 take about 140ms
+        long delay = flow.getRetryDelay();
+        Assert.assertTrue("Unexpected delay " + delay, delay >= 100L && delay <= 1000L);
+
+        for (int i = 0; i < 10; i++) {
+            flow.accepted(flow.getBatchSize(), 1000000L);
+        }
+        Assert.assertEquals(100, flow.getBatchSize());
+        Assert.assertEquals(1.0, flow.getLatency(), 0.001);
+
+        for (int i = 0; i < 20; i++) {
+            flow.rejected(1000000L);
+        }
+        Assert.assertEquals(1, flow.getBatchSize());
+        Assert.assertEquals(4000L, flow.getRetryDelay());
+    }
+
+    @Test
+    public void testTuneBatchSize() {
+        FlowController flow = new FlowController(100, 10, 1000, 50L, 4000L);
+
+        // full batches within the target latency: additive increase
+        flow.committed(100, 1000000L);
+        Assert.assertEquals(149, flow.getTargetBatchSize());
+        Assert.assertEquals(149, flow.getBatchSize());
+        flow.committed(149, 1000000L);
+        Assert.assertEquals(198, flow.getTargetBatchSize());
+        // batches which are not full give no reason to grow
+        flow.committed(20, 1000000L);
+        Assert.assertEquals(198, flow.getTargetBatchSize());
+
+        // too slow: multiplicative decrease
+        flow.committed(198, 80000000L);
+        Assert.assertEquals(148, flow.getTargetBatchSize());
+
+        // an increase which lowers the throughput is taken back
+        flow.committed(148, 1000000L);
+        Assert.assertEquals(197, flow.getTargetBatchSize());
+        flow.committed(197, 20000000L);
+        Assert.assertEquals(147, flow.getTargetBatchSize());
+
+        for (int i = 0; i < 50; i++) {
+            flow.committed(flow.getBatchSize(), 80000000L);
+        }
+        Assert.assertEquals(10, flow.getTargetBatchSize());
+
+        // a fixed batch size is not tuned
+        flow = new FlowController(100, 4000L);
+        flow.committed(100, 1000000L);
+        Assert.assertEquals(100, flow.getTargetBatchSize());
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.weejinfu.flume.source;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestRateLimiter {
+
+    @Test
+    public void testTokenBucket() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(100L, 1.0);
+        long now = System.nanoTime();
+        // a full bucket lets a burst of one second through
+        Assert.assertEquals(0L, bucket.reserve(100L, now));
+        // then goes into debt: 50 events take half a second
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(500L), bucket.reserve(50L, now), 1000L);
+        // and refills at the rate
+        now += TimeUnit.MILLISECONDS.toNanos(1500L);
+        Assert.assertEquals(0L, bucket.reserve(100L, now));
+
+        // unlimited
+        bucket.setRate(0L, now);
+        Assert.assertEquals(0L, bucket.reserve(1000000L, now));
+        bucket.setRate(10L, now);
+        Assert.assertEquals(0L, bucket.reserve(10L, now));
+        Assert.assertEquals(TimeUnit.SECONDS.toNanos(1L), bucket.reserve(10L, now), 1000L);
+    }
+
+    @Test
+    public void testAcquire() {
+        RateLimiter limiter = new RateLimiter("test.rateLimit", 0L, 1000L, 0.1);
+        long start = System.nanoTime();
+        Assert.assertTrue(limiter.acquire(1, 100L));
+        // 100 bytes more than the bucket holds take 100 milliseconds
+        Assert.assertTrue(limiter.acquire(1, 200L));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Unexpected elapsed time " + elapsed, elapsed >= 90L);
+        Assert.assertTrue(limiter.getThrottledTime() >= 90L);
+
+        // limits changed at runtime apply at once
+        limiter.setMaxBytesPerSecond(0L);
+        limiter.setMaxEventsPerSecond(0L);
+        long throttled = limiter.getThrottledTime();
+        Assert.assertTrue(limiter.acquire(1000000, 1000000000L));
+        Assert.assertEquals(throttled, limiter.getThrottledTime());
+        Assert.assertEquals(0L, limiter.getMaxBytesPerSecond());
+
+        limiter.start();
+        limiter.stop();
+    }
+
+}
@@ -4,6 +4,7 @@ import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.weejinfu.flume.utils.ZipUtil;
+import org.apache.commons.io.FileUtils;
 import org.apache.flume.*;
 import org.apache.flume.channel.ChannelProcessor;
 import org.apache.flume.channel.MemoryChannel;
@@ -207,6 +208,77 @@ public class TestSpoolDirectoryZipSource {
         }
     }
 
+    @Test
+    public void testMultipleSpoolDirectories() throws IOException, InterruptedException {
+        for (String name : new String[] { "in-a", "in-b", "other" }) {
+            File directory = new File(tmpDir, name);
+            Assert.assertTrue(directory.mkdir());
+            File file = new File(directory, name);
+            Files.write(name + "line1\n" + name + "line2\n", file, Charsets.UTF_8);
+            ZipUtil.zipFile(new File(directory, name + ".zip"), file);
+            file.delete();
+        }
+
+        Context context = new Context();
+        context.put(SpoolDirectoryZipSourceConfigurationConstants.SPOOL_DIRECTORIES, "in other");
+        context.put("spoolDirs.in.spoolDir", tmpDir.getAbsolutePath() + "/in-*");
+        context.put("spoolDirs.in.weight", "2");
+        context.put("spoolDirs.other.spoolDir", tmpDir.getAbsolutePath() + "/other");
+        context.put("spoolDirs.other.ignorePattern", "^other\\.zip$");
+        Configurables.configure(source, context);
+        source.start();
+        try {
+            // one event per zip entry
+            while (source.getSourceCounter().getEventAcceptedCount() < 2) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(500);
+            Assert.assertEquals(2, source.getSourceCounter().getEventAcceptedCount());
+            Assert.assertTrue(new File(tmpDir, "in-a/in-a.zip.COMPLETED").exists());
+            Assert.assertTrue(new File(tmpDir, "in-b/in-b.zip.COMPLETED").exists());
+            Assert.assertTrue(new File(tmpDir, "other/other.zip").exists());
+        } finally {
+            source.stop();
+            for (File directory : tmpDir.listFiles()) {
+                FileUtils.deleteQuietly(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testShards() throws IOException, InterruptedException {
+        File f1 = new File(tmpDir, "file");
+        Files.write("line1\nline2\n", f1, Charsets.UTF_8);
+        for (int i = 0; i < 8; i++) {
+            ZipUtil.zipFile(new File(tmpDir, "file" + i + ".zip"), f1);
+        }
+        f1.delete();
+
+        Context context = new Context();
+        context.put(SpoolDirectorySourceConfigurationConstants.SPOOL_DIRECTORY,
+                tmpDir.getAbsolutePath());
+        context.put(SpoolDirectoryZipSourceConfigurationConstants.SHARDS, "3");
+        context.put(SpoolDirectorySourceConfigurationConstants.BATCH_SIZE, "10");
+        Configurables.configure(source, context);
+        source.start();
+        try {
+            // the batch sizes of the shards add up
+            Assert.assertEquals(30, source.getFlowCounter().getBatchSize());
+            while (source.getSourceCounter().getEventAcceptedCount() < 8) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(500);
+            Assert.assertEquals(8, source.getSourceCounter().getEventAcceptedCount());
+            for (int i = 0; i < 8; i++) {
+                Assert.assertTrue(new File(tmpDir, "file" + i + ".zip.COMPLETED").exists());
+            }
+            Assert.assertFalse(source.hasFatalError());
+        } finally {
+            source.stop();
+            FileUtils.deleteQuietly(new File(tmpDir, ".flumespool"));
+        }
+    }
+
     @Test
     public void testReconfigure() throws InterruptedException, IOException {
         final int NUM_RECONFIGS = 20;